@@ -0,0 +1,206 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.Frame;
+import utils.Message;
+import utils.Message.MessageType;
+import utils.MessageCodec;
+import utils.MessageFrames;
+import utils.User;
+
+/**
+ * Measures a single broadcast against the number of connected users, comparing the previous
+ * behaviour (every recipient encodes the message itself) with the encode-once
+ * {@link Server#broadcastMessage(Message)}.
+ * <p>
+ * Recipients write into a discarding stream, so the numbers contain the encoding and copying cost
+ * of a broadcast, but not the cost of the socket writes themselves.
+ * <p>
+ * USAGE: java -jar target/benchmarks.jar BroadcastBenchmark
+ *
+ * @author Group4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+  @Param({"10", "100", "1000", "10000"})
+  public int recipients;
+
+  private List<FakeConnection> clients;
+  private Message message;
+
+  @Setup
+  public void setUp() {
+    clients = register(recipients);
+    message = new Message(MessageType.CHAT, "alice", "",
+        "The quick brown fox jumps over the lazy dog, again and again and again.");
+  }
+
+  @TearDown
+  public void tearDown() {
+    unregister(clients);
+  }
+
+  /**
+   * The previous broadcast, which encoded the message once per recipient.
+   */
+  @Benchmark
+  public void perRecipient() {
+    for (FakeConnection client : clients) {
+      if (client.isConnected()) {
+        client.sendMessage(message);
+      }
+    }
+  }
+
+  /**
+   * The current broadcast, which encodes the message into a single frame for all recipients.
+   */
+  @Benchmark
+  public void encodeOnce() {
+    Server.broadcastMessage(message);
+  }
+
+  /**
+   * Adds the given number of fake clients to the server's connected clients.
+   */
+  static List<FakeConnection> register(int count) {
+    List<FakeConnection> clients = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      FakeConnection client = new FakeConnection("user" + i);
+      Server.addClient(client, client.getUser().getUsername());
+      clients.add(client);
+    }
+    return clients;
+  }
+
+  /**
+   * Removes fake clients from the server's connected clients.
+   */
+  static void unregister(List<FakeConnection> clients) {
+    for (FakeConnection client : clients) {
+      Server.removeClient(client.getUser().getUsername(), client);
+    }
+  }
+
+  /**
+   * A connected client that writes its frames into a discarding stream, the same way
+   * {@link utils.AbstractThread} writes them into a socket.
+   */
+  static class FakeConnection implements ClientConnection {
+
+    private final OutputStream out = OutputStream.nullOutputStream();
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
+    private User user;
+    private boolean connected = true;
+
+    FakeConnection(String username) {
+      this.user = new User(username, InetAddress.getLoopbackAddress());
+    }
+
+    @Override
+    public synchronized void sendMessage(Message message) {
+      try {
+        writeBuffer = MessageFrames.writeFrame(message, MessageCodec.DEFAULT, writeBuffer);
+        out.write(writeBuffer.array(), 0, writeBuffer.limit());
+      } catch (IOException ignored) {
+      }
+    }
+
+    @Override
+    public synchronized void sendFrame(Frame frame) {
+      try {
+        frame.writeTo(out);
+      } catch (IOException ignored) {
+      }
+    }
+
+    @Override
+    public User getUser() {
+      return user;
+    }
+
+    @Override
+    public void setUser(User user) {
+      this.user = user;
+    }
+
+    @Override
+    public boolean isConnected() {
+      return connected;
+    }
+
+    @Override
+    public void setConnected(boolean connected) {
+      this.connected = connected;
+    }
+
+    @Override
+    public void disconnect() {
+      connected = false;
+    }
+
+    @Override
+    public void connectionLost() {
+      connected = false;
+    }
+
+    @Override
+    public long getLastActivityNanos() {
+      return System.nanoTime();
+    }
+
+    @Override
+    public long takeUnconfirmedFrames(List<Frame> frames) {
+      return 0;
+    }
+
+    @Override
+    public boolean isCompressionEnabled() {
+      return false;
+    }
+
+    @Override
+    public long getBytesRead() {
+      return 0;
+    }
+
+    @Override
+    public long getBytesWritten() {
+      return 0;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+      return user.getIp();
+    }
+
+    @Override
+    public int getPort() {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.Message;
+import utils.Message.MessageType;
+
+/**
+ * Measures {@link Server#sendRoomMessage(String, Message)} against the size of the room, with
+ * 10,000 users connected in total. The broadcast to every connected user is measured by
+ * {@link BroadcastBenchmark}.
+ * <p>
+ * Recipients write into a discarding stream, so the numbers contain the encoding, locking and
+ * copying cost of a room message, but not the cost of the socket writes themselves.
+ * <p>
+ * USAGE: java -jar target/benchmarks.jar FanOutBenchmark
+ *
+ * @author Group4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FanOutBenchmark {
+
+  /* The number of connected users while a room message is measured */
+  private static final int TOTAL_USERS = 10_000;
+  private static final Message MESSAGE = new Message(MessageType.CHAT, "alice", "",
+      "The quick brown fox jumps over the lazy dog, again and again and again.");
+
+  /**
+   * A room with the given number of members, among 10,000 connected users.
+   */
+  @State(Scope.Benchmark)
+  public static class RoomState {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int members;
+
+    private List<BroadcastBenchmark.FakeConnection> clients;
+    private String room;
+
+    @Setup
+    public void setUp() {
+      clients = BroadcastBenchmark.register(TOTAL_USERS);
+      room = "#bench-" + members;
+      for (BroadcastBenchmark.FakeConnection client : clients.subList(0, members)) {
+        Server.getRooms().join(room, client.getUser().getUsername(), client);
+      }
+    }
+
+    @TearDown
+    public void tearDown() {
+      /* Leave the room first, so no members are left behind for the next run */
+      for (BroadcastBenchmark.FakeConnection client : clients.subList(0, members)) {
+        Server.getRooms().leave(room, client.getUser().getUsername(), client);
+      }
+      BroadcastBenchmark.unregister(clients);
+    }
+  }
+
+  @Benchmark
+  public boolean room(RoomState room) {
+    return Server.sendRoomMessage(room.room, MESSAGE);
+  }
+}
@@ -0,0 +1,128 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.Message;
+
+/**
+ * Measures the client registry: listing the connected usernames while other threads read it and a
+ * user keeps joining and leaving, validating usernames the way every new client is validated, and
+ * several threads registering and removing clients at the same time, either with usernames of
+ * their own or all racing for the same username.
+ * <p>
+ * The number of threads can be changed with JMH's {@code -t} option, and the number of readers of
+ * the {@code usernames} group with {@code -tg}.
+ * <p>
+ * USAGE: java -jar target/benchmarks.jar RegistryBenchmark
+ *
+ * @author Group4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class RegistryBenchmark {
+
+  private static final int CONNECTED_USERS = 1_000;
+
+  private List<BroadcastBenchmark.FakeConnection> clients;
+
+  @Setup
+  public void setUp() {
+    clients = BroadcastBenchmark.register(CONNECTED_USERS);
+  }
+
+  @TearDown
+  public void tearDown() {
+    BroadcastBenchmark.unregister(clients);
+  }
+
+  /**
+   * The connection of a thread that joins and leaves, with a username of its own.
+   */
+  @State(Scope.Thread)
+  public static class Joiner {
+
+    private static final AtomicInteger joiners = new AtomicInteger();
+
+    private BroadcastBenchmark.FakeConnection client;
+    private String username;
+
+    @Setup
+    public void setUp() {
+      username = "joiner" + joiners.getAndIncrement();
+      client = new BroadcastBenchmark.FakeConnection(username);
+    }
+  }
+
+  @Benchmark
+  public String checkUsernameValid() {
+    return Server.checkUsername("new_user-42");
+  }
+
+  @Benchmark
+  public String checkUsernameInvalid() {
+    return Server.checkUsername("Not A Valid Name");
+  }
+
+  @Benchmark
+  public String checkUsernameTaken() {
+    return Server.checkUsername("user500");
+  }
+
+  /**
+   * Lists the connected usernames, while {@link #usernamesChurn(Joiner)} joins and leaves.
+   */
+  @Benchmark
+  @Group("usernames")
+  @GroupThreads(4)
+  public List<String> usernamesRead() {
+    return Server.getClientUsernames();
+  }
+
+  @Benchmark
+  @Group("usernames")
+  @GroupThreads(1)
+  public void usernamesChurn(Joiner joiner) {
+    Server.addClient(joiner.client, joiner.username);
+    Server.removeClient(joiner.username, joiner.client);
+  }
+
+  /**
+   * Every thread joins and leaves with a username of its own.
+   */
+  @Benchmark
+  @Threads(4)
+  public void join(Joiner joiner) {
+    Server.addClient(joiner.client, joiner.username);
+    Server.removeClient(joiner.username, joiner.client);
+  }
+
+  /**
+   * Every thread tries to take the same username, only the winner leaves again.
+   */
+  @Benchmark
+  @Threads(4)
+  public void joinSameUsername(Joiner joiner) {
+    if (Server.addClient(joiner.client, "contended") != Message.NO_ID) {
+      Server.removeClient("contended", joiner.client);
+    }
+  }
+}
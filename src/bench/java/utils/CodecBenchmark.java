@@ -0,0 +1,65 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.Message.MessageType;
+
+/**
+ * Measures encoding and decoding a chat message with the legacy Java serialization codec and with
+ * the binary codec.
+ * <p>
+ * USAGE: java -jar target/benchmarks.jar CodecBenchmark
+ *
+ * @author Group4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+  @Param({"serialized", "binary"})
+  public String codecName;
+
+  private MessageCodec codec;
+  private Message message;
+  /* Reused for every encoded message, as a connection reuses its write buffer */
+  private ByteBuffer buffer;
+  private ByteBuffer encoded;
+
+  @Setup
+  public void setUp() throws IOException {
+    codec = "binary".equals(codecName) ? new BinaryMessageCodec() : new SerializedMessageCodec();
+    message = new Message(MessageType.CHAT, "alice", "",
+        "The quick brown fox jumps over the lazy dog, again and again and again.");
+    buffer = ByteBuffer.allocate(1024);
+    encoded = codec.encode(message, ByteBuffer.allocate(1024));
+    encoded.flip();
+  }
+
+  @Benchmark
+  public ByteBuffer encode() throws IOException {
+    buffer.clear();
+    buffer = codec.encode(message, buffer);
+    return buffer;
+  }
+
+  @Benchmark
+  public Message decode() throws IOException {
+    return codec.decode(encoded.duplicate());
+  }
+}
@@ -2,21 +2,35 @@ package GUI;
 
 import client.ClientThread;
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.event.ActionEvent;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.BorderFactory;
-import javax.swing.DefaultComboBoxModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.AbstractAction;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.JScrollBar;
 import javax.swing.JTextField;
+import javax.swing.KeyStroke;
+import javax.swing.Timer;
 import javax.swing.border.Border;
-import javax.swing.text.DefaultCaret;
 import utils.Message;
 import utils.Message.MessageType;
 
@@ -25,6 +39,12 @@ import utils.Message.MessageType;
  * <p>
  * It includes an exit button, a message area where messages are displayed, a text field where
  * messages can be typed, and a list of online users.
+ * <p>
+ * Messages arrive on the client thread, and are queued until the next frame interval
+ * ({@code chat.gui.frameMillis}, 16 ms by default), when they are added to the view in one update
+ * on the event dispatch thread. The view keeps the last {@code chat.gui.maxLines} lines (5000 by
+ * default), and only lays out the lines that are visible. Changes to the list of online users are
+ * collected and applied in the same update, as the difference to the list that is shown.
  *
  * @author Group4
  */
@@ -32,14 +52,31 @@ public class ChatGUI {
 
   private static ClientThread clientThread;
   private static JComboBox<String> userListBox;
-  private static DefaultComboBoxModel<String> userListModel;
+  private static final UserListModel userListModel = new UserListModel();
   private static final JButton exitButton = new JButton();
   private static JButton sendButton = new JButton();
   private static JTextField messageField = new JTextField();
-  private static JTextArea messageArea = new JTextArea();
+  /* The maximum number of lines kept in the message view */
+  private static final int MAX_LINES = Integer.getInteger("chat.gui.maxLines", 5000);
+  /* How long messages are collected before they are added to the message view */
+  private static final int FRAME_MILLIS = Integer.getInteger("chat.gui.frameMillis", 16);
+  private static final ChatMessageModel messageModel = new ChatMessageModel(MAX_LINES);
+  private static final JList<String> messageList = new JList<>(messageModel);
+  private static final JScrollPane messageScroll = new JScrollPane(messageList);
+  /* Messages received by the client thread that are not shown yet */
+  private static final ConcurrentLinkedQueue<Message> pendingMessages =
+      new ConcurrentLinkedQueue<>();
+  /* Changes to the list of online users that are not shown yet, oldest first */
+  private static final ConcurrentLinkedQueue<UserEvent> pendingUserEvents =
+      new ConcurrentLinkedQueue<>();
+  /* Indicates that the flush timer is running and will show the pending messages and users */
+  private static final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+  private static final Timer flushTimer = new Timer(FRAME_MILLIS, e -> flush());
   private static final JFrame frame = new JFrame();
   private static final JPanel container = new JPanel();
   private static String username;
+  /* The room that typed messages are sent to */
+  private static String currentRoom = Message.LOBBY;
 
   /**
    * Constructor that takes a client thread as an argument.
@@ -59,7 +96,7 @@ public class ChatGUI {
    * visibility.
    */
   static void init() {
-    frame.setTitle("ChatRoom");
+    frame.setTitle("ChatRoom - " + currentRoom);
     frame.setSize(520, 460);
     frame.setResizable(false);
     frame.setLayout(null);
@@ -93,25 +130,25 @@ public class ChatGUI {
     });
     frame.add(exitButton);
 
-    // Design of the area that will display messages that are sent and received.
-    messageArea = new JTextArea(16, 19);
-    messageArea.setFont(new Font("SansSerif", Font.PLAIN, 15));
-    messageArea.setForeground(Color.black);
-    messageArea.setEditable(false);
-    Border border = BorderFactory.createLineBorder(Color.gray);
-    messageArea.setBorder(BorderFactory.createCompoundBorder(border,
-        BorderFactory.createEmptyBorder(10, 10, 10, 10)));
-    messageArea.setLineWrap(true);
+    // Design of the list that will display messages that are sent and received. Every line has
+    // the same height, so the list only renders the lines that are visible.
+    messageList.setFont(new Font("SansSerif", Font.PLAIN, 15));
+    messageList.setForeground(Color.black);
+    messageList.setFocusable(false);
+    messageList.setFixedCellWidth(270);
+    messageList.setFixedCellHeight(
+        messageList.getFontMetrics(messageList.getFont()).getHeight());
+    messageList.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+    flushTimer.setRepeats(false);
 
     // Adding a scroll in case the messages get to the end of the area
-    JScrollPane scroll = new JScrollPane(messageArea);
-    DefaultCaret caret = (DefaultCaret) messageArea.getCaret();
-    caret.setUpdatePolicy(
-        DefaultCaret.ALWAYS_UPDATE); //will make sure the JScrollPane moves down automatically
+    Border border = BorderFactory.createLineBorder(Color.gray);
+    messageScroll.setBorder(border);
+    messageScroll.setPreferredSize(new Dimension(310, 310));
 
     //Using a JPanel to sort of group the textArea and the scroller together
     container.setBounds(50, 45, 320, 320);
-    container.add(scroll);
+    container.add(messageScroll);
     frame.add(container);
 
     //Messages will be typed in this field
@@ -119,6 +156,15 @@ public class ChatGUI {
     messageField.setBounds(50, 380, 320, 30);
     messageField.setFont(new Font("SansSerif", Font.PLAIN, 15));
     messageField.setForeground(Color.black);
+    /* Tab completes the username of a whisper, instead of moving the focus */
+    messageField.setFocusTraversalKeysEnabled(false);
+    messageField.getInputMap().put(KeyStroke.getKeyStroke("TAB"), "completeUsername");
+    messageField.getActionMap().put("completeUsername", new AbstractAction() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        completeUsername();
+      }
+    });
     frame.add(messageField);
 
     JLabel usernameLabel = new JLabel();
@@ -142,16 +188,15 @@ public class ChatGUI {
     userListLabel.setBounds(390, 120, 110, 20);
     frame.add(userListLabel);
 
-    userListModel = new DefaultComboBoxModel<>();
-    userListModel.addAll(clientThread.getConnectedUsers());
+    userListModel.setUsers(clientThread.getConnectedUsers());
     userListBox = new JComboBox<>(userListModel);
     userListBox.setBounds(390, 150, 110, 20);
     userListBox.addActionListener(e -> {
       if (e.getSource() == userListBox) {
         /* Avoid appending @<your username> or @null to the message text field */
-        if (userListBox.getItemAt(userListBox.getSelectedIndex()) != null &&
-            !userListBox.getItemAt(userListBox.getSelectedIndex()).equals(username)) {
-          messageField.setText("@" + userListBox.getItemAt(userListBox.getSelectedIndex()) + " ");
+        Object selected = userListBox.getSelectedItem();
+        if (selected != null && !selected.equals(username)) {
+          messageField.setText("@" + selected + " ");
         }
       }
     });
@@ -177,14 +222,21 @@ public class ChatGUI {
           String textFieldContent = messageField.getText();
           String receiver;
           String messageContent;
-          if (textFieldContent.contains("@")) {
+          if (textFieldContent.startsWith("/join ")) {
+            /* Join a room, it becomes the current room once the server confirms it */
+            String room = textFieldContent.substring("/join ".length()).trim();
+            sendMessage(new Message(MessageType.JOIN_ROOM, username, "", room));
+          } else if (textFieldContent.trim().equals("/leave")) {
+            /* Leave the current room */
+            sendMessage(new Message(MessageType.LEAVE_ROOM, username, "", currentRoom));
+          } else if (textFieldContent.contains("@")) {
             /* Send whisper message */
             receiver = textFieldContent.substring(1, textFieldContent.indexOf(" "));
             messageContent = textFieldContent.substring(textFieldContent.indexOf(" "));
             sendMessage(new Message(MessageType.WHISPER, username, receiver, messageContent));
           } else {
-            /* Send a normal message */
-            sendMessage(new Message(MessageType.CHAT, username, "", textFieldContent));
+            /* Send a normal message to the current room */
+            sendMessage(new Message(MessageType.CHAT, username, currentRoom, textFieldContent));
           }
           /* Clear the message field when the message is sent  */
           messageField.setText("");
@@ -196,11 +248,12 @@ public class ChatGUI {
     //This text area will indicate how users can use "whispering"
 
     JTextArea helpArea = new JTextArea();
-    helpArea.setBounds(390, 190, 110, 140);
+    helpArea.setBounds(390, 190, 110, 170);
     helpArea.setFont(new Font("SansSerif", Font.PLAIN, 12));
     helpArea.setForeground(Color.black);
     helpArea.setEditable(false);
-    helpArea.setText("For Whispers:\n\nType:\n\n'@(name)'\n\nE.g @Kyle Hi");
+    helpArea.setText("For Whispers:\n'@(name)'\nE.g @Kyle Hi\nTab completes\n\n"
+        + "For Rooms:\n/join #(room)\n/leave");
     Border border1 = BorderFactory.createLineBorder(Color.gray);
     helpArea.setBorder(BorderFactory.createCompoundBorder(border1,
         BorderFactory.createEmptyBorder(10, 10, 10, 10)));
@@ -220,30 +273,186 @@ public class ChatGUI {
   }
 
   /**
-   * This method updates the user list in the JComboBox, when a user joins or leaves
+   * This method replaces the user list in the JComboBox with a full snapshot of the connected
+   * users. It can be called from any thread.
+   *
+   * @param users the usernames of the connected users
+   */
+  public static void updateUsers(List<String> users) {
+    pendingUserEvents.offer(new UserEvent(null, false, users));
+    scheduleFlush();
+  }
+
+  /**
+   * This method adds a user to the user list in the JComboBox, when the user joins. It can be
+   * called from any thread.
+   *
+   * @param username the username of the user that joined
+   */
+  public static void userJoined(String username) {
+    pendingUserEvents.offer(new UserEvent(username, true, null));
+    scheduleFlush();
+  }
+
+  /**
+   * This method removes a user from the user list in the JComboBox, when the user leaves. It can
+   * be called from any thread.
+   *
+   * @param username the username of the user that left
    */
-  public static void updateUsers() {
-    userListModel.removeAllElements();
-    userListModel.addAll(clientThread.getConnectedUsers());
+  public static void userLeft(String username) {
+    pendingUserEvents.offer(new UserEvent(username, false, null));
+    scheduleFlush();
   }
 
   /**
-   * This method appends the message to the text area. These messages include whispering and the
-   * handling of users disconnecting.
+   * This method queues a message to be shown in the message view, with the other messages that
+   * arrive in the same frame interval. These messages include whispering and the handling of users
+   * disconnecting. It can be called from any thread.
    *
-   * @param message the message to be appended to the textarea
+   * @param message the message to be shown
    */
   public static void updateChat(Message message) {
+    pendingMessages.offer(message);
+    scheduleFlush();
+  }
+
+  /**
+   * This method starts the flush timer, unless it is already running.
+   */
+  private static void scheduleFlush() {
+    if (flushScheduled.compareAndSet(false, true)) {
+      flushTimer.restart();
+    }
+  }
+
+  /**
+   * This method shows the pending changes to the list of online users and the pending messages.
+   * Called by the flush timer on the event dispatch thread.
+   */
+  private static void flush() {
+    /* Messages and users queued from now on start the timer again */
+    flushScheduled.set(false);
+    flushUsers();
+    flushMessages();
+  }
+
+  /**
+   * This method applies the pending changes to the list of online users. Only the last snapshot
+   * and the changes after it are applied, and only the last change of every user.
+   */
+  private static void flushUsers() {
+    List<String> snapshot = null;
+    Map<String, Boolean> changes = new LinkedHashMap<>();
+    UserEvent event;
+    while ((event = pendingUserEvents.poll()) != null) {
+      if (event.snapshot != null) {
+        snapshot = event.snapshot;
+        changes.clear();
+      } else {
+        changes.put(event.username, event.joined);
+      }
+    }
+
+    if (snapshot != null) {
+      Set<String> users = new HashSet<>(snapshot);
+      for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+        if (change.getValue()) {
+          users.add(change.getKey());
+        } else {
+          users.remove(change.getKey());
+        }
+      }
+      userListModel.setUsers(users);
+      return;
+    }
+    for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+      if (change.getValue()) {
+        userListModel.add(change.getKey());
+      } else {
+        userListModel.remove(change.getKey());
+      }
+    }
+  }
+
+  /**
+   * This method completes the username of a whisper that is being typed ({@code @ka} becomes
+   * {@code @kate }) with the first online user whose username starts with the typed part.
+   */
+  private static void completeUsername() {
+    String text = messageField.getText();
+    if (!text.startsWith("@") || text.indexOf(' ') >= 0) {
+      return;
+    }
+    String match = userListModel.complete(text.substring(1));
+    if (match != null) {
+      messageField.setText("@" + match + " ");
+    }
+  }
+
+  /**
+   * This method adds the pending messages to the message view in a single update. The view only
+   * follows the new messages if it was scrolled to the bottom, so reading older messages is not
+   * interrupted.
+   */
+  private static void flushMessages() {
+    FontMetrics metrics = messageList.getFontMetrics(messageList.getFont());
+    int width = messageList.getFixedCellWidth() - 4;
+    List<String> lines = new ArrayList<>();
+    Message message;
+    while ((message = pendingMessages.poll()) != null) {
+      String line = format(message);
+      if (line != null) {
+        ChatMessageModel.wrap(line, metrics, width, lines);
+      }
+    }
+    if (lines.isEmpty()) {
+      return;
+    }
+
+    JScrollBar scrollBar = messageScroll.getVerticalScrollBar();
+    boolean atBottom =
+        scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum() - 1;
+    messageModel.addAll(lines);
+    if (atBottom) {
+      messageList.ensureIndexIsVisible(messageModel.getSize() - 1);
+    }
+  }
+
+  /**
+   * This method formats a message as it is shown in the message view. Messages that change the
+   * current room also update the title of the window.
+   *
+   * @param message the message to be shown
+   * @return the text of the message, or null if it is not shown
+   */
+  private static String format(Message message) {
     String sender = message.getSender();
     String content = message.getBody();
     switch (message.getType()) {
       case CHAT:
+        String room = message.getReceiver();
+        if (room == null || room.isEmpty() || room.equals(Message.LOBBY)) {
+          return sender + ": " + content;
+        }
+        return "[" + room + "] " + sender + ": " + content;
       case WHISPER:
-        messageArea.append(sender + ": " + content + "\n");
-        break;
+        return sender + ": " + content;
+      case JOIN_ROOM:
+        currentRoom = content;
+        frame.setTitle("ChatRoom - " + currentRoom);
+        return "** Joined " + content + " **";
+      case LEAVE_ROOM:
+        if (content.equals(currentRoom)) {
+          currentRoom = Message.LOBBY;
+          frame.setTitle("ChatRoom - " + currentRoom);
+        }
+        return "** Left " + content + " **";
       case NEW_USER:
       case DISCONNECTION:
-        messageArea.append("** " + content + " **\n");
+        return "** " + content + " **";
+      default:
+        return null;
     }
   }
 
@@ -255,4 +464,21 @@ public class ChatGUI {
   public static void showErrorMessage(String message) {
     JOptionPane.showMessageDialog(frame, message, "alert", JOptionPane.ERROR_MESSAGE);
   }
+
+  /**
+   * A change to the list of online users: a user that joined or left, or a snapshot of all users.
+   */
+  private static final class UserEvent {
+
+    private final String username;
+    private final boolean joined;
+    /* The usernames of all online users, or null if a single user joined or left */
+    private final List<String> snapshot;
+
+    private UserEvent(String username, boolean joined, List<String> snapshot) {
+      this.username = username;
+      this.joined = joined;
+      this.snapshot = snapshot;
+    }
+  }
 }
@@ -0,0 +1,46 @@
+package GUI;
+
+import client.ClientListener;
+import java.util.List;
+import javax.swing.SwingUtilities;
+import utils.Message;
+
+/**
+ * Forwards the events of a client thread to the chat GUI. The events arrive on the client's network
+ * thread, so they are all handed over to the event dispatch thread.
+ *
+ * @author Group4
+ */
+class ChatGUIListener implements ClientListener {
+
+  @Override
+  public void onMessage(Message message) {
+    ChatGUI.updateChat(message);
+  }
+
+  @Override
+  public void onError(String error) {
+    /* The dialog is shown on the event dispatch thread, not the client's network thread */
+    SwingUtilities.invokeLater(() -> ChatGUI.showErrorMessage(error));
+  }
+
+  @Override
+  public void onUsersChanged(List<String> users) {
+    ChatGUI.updateUsers(users);
+  }
+
+  @Override
+  public void onUserJoined(String username) {
+    ChatGUI.userJoined(username);
+  }
+
+  @Override
+  public void onUserLeft(String username) {
+    ChatGUI.userLeft(username);
+  }
+
+  @Override
+  public void onDisconnected() {
+    /* The chat window stays open, so the conversation can still be read */
+  }
+}
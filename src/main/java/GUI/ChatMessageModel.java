@@ -0,0 +1,122 @@
+package GUI;
+
+import java.awt.FontMetrics;
+import java.util.List;
+import javax.swing.AbstractListModel;
+
+/**
+ * The lines of the chat view, kept in a ring of a fixed size.
+ * <p>
+ * Once the ring is full, every new line replaces the oldest one, so a busy room never makes the
+ * view grow without bound. Lines are added in batches, and every batch fires at most one removal
+ * and one addition event. Long messages are wrapped into several lines before they are added, so
+ * that every line has the same height and the list only has to lay out the visible lines. The
+ * model must only be used on the event dispatch thread.
+ *
+ * @author Group4
+ */
+final class ChatMessageModel extends AbstractListModel<String> {
+
+  /*  An identifier that is used to serialize/deserialize an object of a Serializable class */
+  private static final long serialVersionUID = 1L;
+
+  /* Continuation lines of a wrapped message are indented by this prefix */
+  private static final String CONTINUATION = "    ";
+
+  private final String[] lines;
+  /* The index of the oldest line in the ring, and the number of lines */
+  private int head = 0;
+  private int size = 0;
+
+  /**
+   * Constructor
+   *
+   * @param capacity The maximum number of lines that are kept
+   */
+  ChatMessageModel(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.lines = new String[capacity];
+  }
+
+  @Override
+  public int getSize() {
+    return size;
+  }
+
+  @Override
+  public String getElementAt(int index) {
+    return lines[(head + index) % lines.length];
+  }
+
+  /**
+   * Appends a batch of lines, removing the oldest lines if the ring overflows.
+   *
+   * @param batch The lines to append, oldest first
+   */
+  void addAll(List<String> batch) {
+    /* Of a batch that is larger than the ring, only the newest lines are kept */
+    int skipped = Math.max(0, batch.size() - lines.length);
+    int added = batch.size() - skipped;
+    if (added == 0) {
+      return;
+    }
+
+    int removed = Math.max(0, size + added - lines.length);
+    if (removed > 0) {
+      for (int i = 0; i < removed; i++) {
+        lines[(head + i) % lines.length] = null;
+      }
+      head = (head + removed) % lines.length;
+      size -= removed;
+      fireIntervalRemoved(this, 0, removed - 1);
+    }
+
+    int first = size;
+    for (int i = skipped; i < batch.size(); i++) {
+      lines[(head + size++) % lines.length] = batch.get(i);
+    }
+    fireIntervalAdded(this, first, size - 1);
+  }
+
+  /**
+   * Wraps a message into lines that fit into the given width, breaking at spaces where possible.
+   *
+   * @param text    The message
+   * @param metrics The metrics of the font the lines are shown in
+   * @param width   The width available to a line, in pixels
+   * @param wrapped Receives the lines of the message
+   */
+  static void wrap(String text, FontMetrics metrics, int width, List<String> wrapped) {
+    String prefix = "";
+    int start = 0;
+    int lineWidth = 0;
+    int lastSpace = -1;
+    for (int i = 0; i < text.length(); i++) {
+      if (i < start) {
+        continue;
+      }
+      char c = text.charAt(i);
+      lineWidth += metrics.charWidth(c);
+      if (lineWidth > width && i > start) {
+        /* Break at the last space of the line, or in the middle of a word that is too long */
+        int end = lastSpace > start ? lastSpace : i;
+        wrapped.add(prefix + text.substring(start, end));
+        start = end;
+        while (start < text.length() && text.charAt(start) == ' ') {
+          start++;
+        }
+        prefix = CONTINUATION;
+        lineWidth = metrics.stringWidth(prefix + text.substring(start, Math.max(start, i + 1)));
+        lastSpace = -1;
+      }
+      if (c == ' ') {
+        lastSpace = i;
+      }
+    }
+    if (start < text.length() || start == 0) {
+      wrapped.add(prefix + text.substring(start));
+    }
+  }
+}
@@ -102,14 +102,14 @@ public class GUILaunch {
           String username = enterUsername.getText();
 
           try {
-            ClientThread clientThread = new ClientThread(IPAddress, port);
+            ClientThread clientThread = new ClientThread(IPAddress, port, new ChatGUIListener());
             /* Run the registration process in a separate thread to prevent the GUI from halting */
             new Thread(() -> {
               if (clientThread.register(username)) {
                 launchFrame.dispose();
                 /* Start the GUI before message listening */
                 new ChatGUI(clientThread);
-                clientThread.start();
+                new Thread(clientThread).start();
               }
             }).start();
           } catch (IOException ex) {
@@ -0,0 +1,166 @@
+package GUI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.swing.AbstractListModel;
+import javax.swing.ComboBoxModel;
+
+/**
+ * The sorted list of online users shown in the chat GUI.
+ * <p>
+ * Users are kept in alphabetical order (ignoring case), so a user is found, added or removed with
+ * a binary search, and only the rows that actually change fire list events. A snapshot of the
+ * users is applied as the difference to the current list, so a snapshot that changes a few users
+ * of a large list only updates those rows. The model must only be used on the event dispatch
+ * thread.
+ *
+ * @author Group4
+ */
+final class UserListModel extends AbstractListModel<String> implements ComboBoxModel<String> {
+
+  /*  An identifier that is used to serialize/deserialize an object of a Serializable class */
+  private static final long serialVersionUID = 2L;
+
+  /* Alphabetical order ignoring case, with the case as a tie-breaker so the order is total */
+  static final Comparator<String> ORDER =
+      String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+  private final List<String> users = new ArrayList<>();
+  private Object selected;
+
+  @Override
+  public int getSize() {
+    return users.size();
+  }
+
+  @Override
+  public String getElementAt(int index) {
+    return users.get(index);
+  }
+
+  @Override
+  public void setSelectedItem(Object item) {
+    selected = item;
+    /* Index -1 tells the combo box that the selection changed */
+    fireContentsChanged(this, -1, -1);
+  }
+
+  @Override
+  public Object getSelectedItem() {
+    return selected;
+  }
+
+  /**
+   * Adds a user, unless it is already in the list.
+   *
+   * @param username The username of the user
+   */
+  void add(String username) {
+    int index = Collections.binarySearch(users, username, ORDER);
+    if (index < 0) {
+      index = -index - 1;
+      users.add(index, username);
+      fireIntervalAdded(this, index, index);
+    }
+  }
+
+  /**
+   * Removes a user, if it is in the list.
+   *
+   * @param username The username of the user
+   */
+  void remove(String username) {
+    int index = Collections.binarySearch(users, username, ORDER);
+    if (index >= 0) {
+      users.remove(index);
+      if (username.equals(selected)) {
+        selected = null;
+      }
+      fireIntervalRemoved(this, index, index);
+    }
+  }
+
+  /**
+   * Replaces the list with a snapshot of the online users. The current list and the sorted
+   * snapshot are merged, and every run of consecutive rows that were added or removed fires one
+   * event.
+   *
+   * @param snapshot The usernames of the online users, in any order
+   */
+  void setUsers(Collection<String> snapshot) {
+    List<String> sorted = new ArrayList<>(snapshot);
+    sorted.sort(ORDER);
+
+    int index = 0;
+    for (int i = 0; i < sorted.size(); i++) {
+      String username = sorted.get(i);
+      if (i > 0 && username.equals(sorted.get(i - 1))) {
+        continue;
+      }
+      /* Remove the users that sort before the next user of the snapshot */
+      int end = index;
+      while (end < users.size() && ORDER.compare(users.get(end), username) < 0) {
+        end++;
+      }
+      removeRange(index, end);
+      if (index < users.size() && users.get(index).equals(username)) {
+        index++;
+      } else {
+        /* Add the run of new users up to the next user that is already in the list */
+        int runEnd = i;
+        while (runEnd + 1 < sorted.size() && (index == users.size()
+            || ORDER.compare(sorted.get(runEnd + 1), users.get(index)) < 0)) {
+          runEnd++;
+        }
+        int first = index;
+        for (int j = i; j <= runEnd; j++) {
+          if (j == i || !sorted.get(j).equals(sorted.get(j - 1))) {
+            users.add(index++, sorted.get(j));
+          }
+        }
+        fireIntervalAdded(this, first, index - 1);
+        i = runEnd;
+      }
+    }
+    removeRange(index, users.size());
+  }
+
+  /**
+   * Finds the first user whose username starts with the given prefix, ignoring case.
+   *
+   * @param prefix The start of a username
+   * @return The first matching username in the list's order, or null if no user matches
+   */
+  String complete(String prefix) {
+    int index = Collections.binarySearch(users, prefix, String.CASE_INSENSITIVE_ORDER);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    /* A binary search finds any of several names that are equal ignoring case, find the first */
+    while (index > 0 && String.CASE_INSENSITIVE_ORDER.compare(users.get(index - 1), prefix) >= 0) {
+      index--;
+    }
+    if (index < users.size() && users.get(index).regionMatches(true, 0, prefix, 0,
+        prefix.length())) {
+      return users.get(index);
+    }
+    return null;
+  }
+
+  /**
+   * Removes the rows from {@code from} (inclusive) to {@code to} (exclusive), with one event.
+   */
+  private void removeRange(int from, int to) {
+    if (from >= to) {
+      return;
+    }
+    if (selected != null && users.subList(from, to).contains(selected)) {
+      selected = null;
+    }
+    users.subList(from, to).clear();
+    fireIntervalRemoved(this, from, to - 1);
+  }
+}
@@ -1,15 +1,24 @@
 import GUI.GUILaunch;
+import client.LoadGenerator;
 import java.io.IOException;
 import server.Server;
 import utils.Logger;
+import utils.Logger.Level;
 
 /**
- * Driver class for a TCP chat program. The program can be run in 2 modes, client or server. This is
- * determined using CLI arguments.
+ * Driver class for a TCP chat program. The program can be run in 3 modes, client, server or loadtest.
+ * This is determined using CLI arguments.
  * <p>
  * CLIENT MODE: java TCPChatApp client
  * <p>
- * SERVER MODE: java TCPChatApp server [IP ADDRESS] [PORT NUMBER]
+ * SERVER MODE: java TCPChatApp server [IP ADDRESS] [PORT NUMBER] [ENGINE]
+ * <p>
+ * ENGINE (optional): blocking (default) / virtual / nio
+ * <p>
+ * LOAD TEST MODE: java TCPChatApp loadtest [IP ADDRESS] [PORT NUMBER] [USERS] [CHATS/S] [WHISPERS/S]
+ * [SECONDS] [ROOMS]
+ * <p>
+ * ROOMS (optional): the number of chat rooms the simulated users are spread over (default 1)
  *
  * @author Group4
  */
@@ -22,7 +31,7 @@ public class TCPChatApp {
     /* Check if CLI arguments were given */
     if (args.length < 1) {
       System.err.println("usage: java TCPChatApp <MODE>");
-      System.err.println("MODE: client / server");
+      System.err.println("MODE: client / server / loadtest");
       System.exit(1);
     }
 
@@ -30,8 +39,9 @@ public class TCPChatApp {
       /* Run in server mode */
 
       /* Check if the IPAddress and Port have been provided as CLI arguments */
-      if (args.length != 3) {
-        System.err.println("usage: java TCPChatAPP <IP ADDRESS> <PORT NUMBER>");
+      if (args.length != 3 && args.length != 4) {
+        System.err.println("usage: java TCPChatAPP <IP ADDRESS> <PORT NUMBER> [ENGINE]");
+        System.err.println("ENGINE: blocking / virtual / nio");
         System.exit(1);
       }
 
@@ -46,14 +56,40 @@ public class TCPChatApp {
           port = 5000;
         }
 
+        Server.Engine engine = Server.Engine.BLOCKING;
+        if (args.length == 4) {
+          try {
+            engine = Server.Engine.valueOf(args[3].toUpperCase());
+          } catch (IllegalArgumentException ignored) {
+            System.err.println("Invalid engine provided...");
+            System.err.println("Defaulting to the blocking engine");
+          }
+        }
+
         /* Create a server instance */
-        new Server(IPAddress, port);
+        new Server(IPAddress, port, engine);
       } catch (IOException e) {
-        Logger.toConsole("SERVER ERROR", "Failed to start the server");
+        Logger.log(Level.ERROR, "SERVER ERROR", "Failed to start the server");
       }
     } else if (args[0].equals("client")) {
       /* Run in client mode */
       new GUILaunch();
+    } else if (args[0].equals("loadtest")) {
+      /* Run a headless load test against a running server */
+      if (args.length != 7 && args.length != 8) {
+        System.err.println("usage: java TCPChatApp loadtest <IP ADDRESS> <PORT NUMBER> <USERS> "
+            + "<CHATS/S> <WHISPERS/S> <SECONDS> [ROOMS]");
+        System.exit(1);
+      }
+
+      try {
+        new LoadGenerator(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+            Double.parseDouble(args[4]), Double.parseDouble(args[5]),
+            Integer.parseInt(args[6]), args.length == 8 ? Integer.parseInt(args[7]) : 1).run();
+      } catch (NumberFormatException e) {
+        System.err.println("Invalid number provided: " + e.getMessage());
+        System.exit(1);
+      }
     }
   }
 }
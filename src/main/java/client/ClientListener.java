@@ -0,0 +1,58 @@
+package client;
+
+import java.util.List;
+import utils.Message;
+
+/**
+ * Receives the events of a {@link ClientThread}, so the client protocol can be used both by the
+ * chat GUI and by headless clients such as the load generator.
+ * <p>
+ * The methods are called on the thread that listens for messages from the server (or the thread
+ * that registers the client), so implementations that update a user interface must hand the work
+ * over to its own thread.
+ *
+ * @author Group4
+ */
+public interface ClientListener {
+
+  /**
+   * Called when a message that is shown in the chat arrives (CHAT, WHISPER, NEW_USER and
+   * DISCONNECTION messages, and the JOIN_ROOM and LEAVE_ROOM confirmations).
+   *
+   * @param message The message sent by the server
+   */
+  void onMessage(Message message);
+
+  /**
+   * Called when the server reports an error, or the server could not be reached.
+   *
+   * @param error The description of the error
+   */
+  void onError(String error);
+
+  /**
+   * Called when the list of connected users has been replaced with a snapshot from the server.
+   *
+   * @param users The usernames of all connected users
+   */
+  void onUsersChanged(List<String> users);
+
+  /**
+   * Called when a user joined the chat.
+   *
+   * @param username The username of the user that joined
+   */
+  void onUserJoined(String username);
+
+  /**
+   * Called when a user left the chat.
+   *
+   * @param username The username of the user that left
+   */
+  void onUserLeft(String username);
+
+  /**
+   * Called once the connection to the server has been closed.
+   */
+  void onDisconnected();
+}
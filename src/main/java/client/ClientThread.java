@@ -1,14 +1,28 @@
 package client;
 
-import GUI.ChatGUI;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import utils.AbstractThread;
+import utils.FrameCompressor;
 import utils.Logger;
+import utils.Logger.Level;
+import utils.MalformedMessageException;
 import utils.Message;
 import utils.Message.MessageType;
+import utils.Presence;
+import utils.RollingHistogram;
 import utils.User;
 
 /**
@@ -18,22 +32,82 @@ import utils.User;
  * messages for the server or the list of connected clients. The thread runs until the client
  * disconnects from the server.
  * <p>
+ * Events are reported to a {@link ClientListener}, which keeps this class independent of the user
+ * interface.
+ * <p>
+ * The presence messages of the server also tell the client the id of every user. The server
+ * refers to senders and receivers by these ids, which are replaced by the usernames before the
+ * messages reach the listener, and the client refers to itself and the receivers of its whispers
+ * by id as well.
+ * <p>
+ * The server sends every chat message of the client back to it, stamped with the time the server
+ * received it (see {@link Message#getTimestamp()}). The client remembers when it sent each of its
+ * chat messages, and records the round trip to the server and back when the message returns, in a
+ * histogram of the last {@code chat.client.rttWindowSeconds} seconds (see
+ * {@link #getRoundTrips()}).
+ * <p>
+ * The server gives the client a resume token when it registers. If the connection is lost, the
+ * client connects again and resumes its session with the token and the number of frames it
+ * received over the lost connection, so the server only sends it the messages it missed and the
+ * other users never see it leave. The attempts are spread out by an exponential backoff with full
+ * jitter (a random delay between 0 and {@code chat.client.reconnectMillis} doubled on every
+ * attempt, up to {@code chat.client.reconnectMaxMillis}), so that the clients of a restarted
+ * server do not all reconnect at once. If the session can no longer be resumed, the client
+ * registers again with the same username, and gives up after
+ * {@code chat.client.reconnectAttempts} attempts.
+ * <p>
  * This class is a subclass of the {@link utils.AbstractThread} class.
  */
 public class ClientThread extends AbstractThread {
 
-  private List<String> connectedUsers = new ArrayList<>();
+  /* The window of the round trip histogram, and the number of sent chat messages remembered */
+  private static final int RTT_WINDOW_SECONDS =
+      Math.max(1, Integer.getInteger("chat.client.rttWindowSeconds", 60));
+  private static final int MAX_PENDING_CHATS = 1024;
+  /* The backoff between the attempts to reconnect, and the number of attempts */
+  private static final long RECONNECT_MILLIS =
+      Math.max(1, Long.getLong("chat.client.reconnectMillis", 500));
+  private static final long RECONNECT_MAX_MILLIS =
+      Math.max(RECONNECT_MILLIS, Long.getLong("chat.client.reconnectMaxMillis", 15_000));
+  private static final int RECONNECT_ATTEMPTS =
+      Math.max(0, Integer.getInteger("chat.client.reconnectAttempts", 8));
+
+  /* Receives the messages and events of this client */
+  private final ClientListener listener;
+  /* The usernames of the connected users, which are looked up on every presence delta */
+  private final Set<String> connectedUsers = ConcurrentHashMap.newKeySet();
+  /* The presence version of the list of connected users, -1 until the first snapshot arrives */
+  private long presenceVersion = -1;
+  /* Indicates that a new snapshot was requested after a missed presence delta */
+  private volatile boolean resyncRequested = false;
+  /* The usernames of the users by their ids, and the other way around */
+  private final Map<Integer, String> usernames = new ConcurrentHashMap<>();
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  /* The chat messages sent by this client that have not come back yet, oldest first */
+  private final ArrayDeque<PendingChat> pendingChats = new ArrayDeque<>();
+  /* The round trips of the chat messages of this client, over a rolling window */
+  private final RollingHistogram roundTrips =
+      new RollingHistogram(RTT_WINDOW_SECONDS, TimeUnit.SECONDS, 6);
+  /* The token that resumes the session of this client, or null if the server did not send one */
+  private volatile String resumeToken;
+  /* The number of frames read before the current connection was made (run thread only) */
+  private long framesBefore = 0;
+  /* Indicates that the client is leaving, so a lost connection is not reconnected */
+  private volatile boolean closing = false;
 
   /**
-   * Constructor the takes the server's hostname and port as arguments.
+   * Constructor the takes the server's hostname and port, and the listener of the client as
+   * arguments.
    *
    * @param hostname The hostname of the server to connect to
    * @param port     The port that the server is running on
+   * @param listener Receives the messages and events of this client
    * @throws IOException If an I/O error occurs while writing stream header.
    * @see AbstractThread#AbstractThread(String, int)
    */
-  public ClientThread(String hostname, int port) throws IOException {
+  public ClientThread(String hostname, int port, ClientListener listener) throws IOException {
     super(hostname, port);
+    this.listener = listener;
   }
 
   /**
@@ -47,77 +121,389 @@ public class ClientThread extends AbstractThread {
    * @return True if registered to the server, otherwise false.
    */
   public boolean register(String username) {
-    sendMessage(new Message(MessageType.CONNECTION, "", "", username));
     try {
-      Message serverResponse = getMessage();
+      Message serverResponse = handshake(MessageType.CONNECTION, "", username);
       if (!serverResponse.getType().equals(MessageType.CONNECTION)) {
-        ChatGUI.showErrorMessage(serverResponse.getBody());
+        listener.onError(serverResponse.getBody());
         return false;
       }
 
       setUser(new User(username, clientSocket.getInetAddress()));
+      setConnected(true);
       return true;
     } catch (IOException e) {
-      ChatGUI.showErrorMessage("Failed to reach server");
-    } catch (ClassNotFoundException e) {
-      throw new RuntimeException(e);
+      listener.onError("Failed to reach server");
     }
     return false;
   }
 
+  /**
+   * Sends the first message over a new connection and waits for the response of the server.
+   * Compression is enabled if the server accepted it in its response.
+   *
+   * @param type   The type of the message, either CONNECTION or RESUME
+   * @param sender The sender of the message
+   * @param body   The body of the message
+   * @return The response of the server
+   * @throws IOException If the server could not be reached
+   */
+  private Message handshake(MessageType type, String sender, String body) throws IOException {
+    /* Ask for compression, a server that does not support it ignores the receiver */
+    String compression = "";
+    if (FrameCompressor.ENABLED) {
+      compression = FrameCompressor.NAME;
+      acceptCompression();
+    }
+    sendMessage(new Message(type, sender, compression, body));
+    Message serverResponse = getMessage();
+    if (serverResponse.getType() == type && FrameCompressor.ENABLED
+        && FrameCompressor.NAME.equals(serverResponse.getSender())) {
+      enableCompression();
+    }
+    return serverResponse;
+  }
+
+  /**
+   * Connects to the server again after the connection was lost, waiting a random delay with an
+   * exponential backoff before every attempt. Each attempt resumes the session of the client, or
+   * registers it again if the session can no longer be resumed.
+   *
+   * @return True if the client is connected again, otherwise false.
+   */
+  private boolean reconnect() {
+    InetAddress address = clientSocket.getInetAddress();
+    int port = clientSocket.getPort();
+    long received = getFramesRead() - framesBefore;
+    for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !closing; attempt++) {
+      long backoff = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_MILLIS << Math.min(attempt, 20));
+      long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+      Logger.log(Level.WARN, "RECONNECT", "Connection lost, attempt %d of %d in %d ms",
+          attempt + 1, RECONNECT_ATTEMPTS, delay);
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+
+      try {
+        replaceSocket(new Socket(address, port));
+        framesBefore = getFramesRead();
+        if (resume(received)) {
+          return true;
+        }
+        /* The session ended, or the old connection is still being closed (then this fails too) */
+        replaceSocket(new Socket(address, port));
+        framesBefore = getFramesRead();
+        if (registerAgain()) {
+          return true;
+        }
+      } catch (IOException e) {
+        Logger.log(Level.WARN, "RECONNECT", "Failed to reach server: %s", e.getMessage());
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Resumes the session of the client over a new connection. The server answers with the messages
+   * the client missed, after the frames it received, and then the current users.
+   *
+   * @param received The number of frames received over the lost connection
+   * @return True if the session was resumed
+   * @throws IOException If the server could not be reached
+   */
+  private boolean resume(long received) throws IOException {
+    String token = resumeToken;
+    if (token == null) {
+      return false;
+    }
+    String body = token + Message.DELIMITER + received;
+    Message serverResponse = handshake(MessageType.RESUME, user.getUsername(), body);
+    if (serverResponse.getType() != MessageType.RESUME) {
+      Logger.log(Level.INFO, "RECONNECT", "Could not resume the session: %s",
+          serverResponse.getBody());
+      return false;
+    }
+    Logger.log(Level.INFO, "RECONNECT", "Resumed the session");
+    return true;
+  }
+
+  /**
+   * Registers the client again with the same username, after its session ended. The client starts
+   * over in the lobby, and the server sends it a new resume token.
+   *
+   * @return True if the client is registered again
+   * @throws IOException If the server could not be reached
+   */
+  private boolean registerAgain() throws IOException {
+    Message serverResponse = handshake(MessageType.CONNECTION, "", user.getUsername());
+    if (serverResponse.getType() != MessageType.CONNECTION) {
+      Logger.log(Level.WARN, "RECONNECT", "Could not register again: %s",
+          serverResponse.getBody());
+      return false;
+    }
+    resumeToken = null;
+    Logger.log(Level.INFO, "RECONNECT", "The session had ended, registered again");
+    return true;
+  }
+
   /**
    * Handles the listening of new messages sent by the server. The thread runs for as long as the
    * client is connected {@link AbstractThread#isConnected()} to the server.
    */
   @Override
   public void run() {
-    while (clientSocket.isConnected()) {
+    while (isConnected()) {
       try {
         Message message = getMessage();
         if (message != null) {
+          message = resolveIds(message);
           switch (message.getType()) {
             case INVALID_MESSAGE:
             case NONEXISTENT_USER:
-              ChatGUI.showErrorMessage(message.getBody());
+              listener.onError(message.getBody());
               break;
             case INVALID_USERNAME:
               this.disconnect();
-              ChatGUI.showErrorMessage(message.getBody());
+              listener.onError(message.getBody());
               break;
-            case NEW_USER:
             case CHAT:
+              recordRoundTrip(message);
+              listener.onMessage(message);
+              break;
+            case NEW_USER:
             case WHISPER:
             case DISCONNECTION:
-              ChatGUI.updateChat(message);
+            case JOIN_ROOM:
+            case LEAVE_ROOM:
+              listener.onMessage(message);
               break;
             case USERS:
-              String body = message.getBody();
-              connectedUsers = Arrays.asList(body.split(Message.DELIMITER));
-              ChatGUI.updateUsers();
+              applyUsersSnapshot(message.getBody());
+              break;
+            case USER_JOINED:
+            case USER_LEFT:
+              applyPresenceDelta(message);
+              break;
+            case PING:
+              /* The server checks that an idle client is still there */
+              sendMessage(new Message(MessageType.PONG, "", "", ""));
+              break;
+            case RESUME:
+              /* The token that resumes the session if the connection is lost */
+              resumeToken = message.getBody();
               break;
           }
         } else {
-          Logger.toConsole("SERVER", "NULL MESSAGE");
+          Logger.log(Level.WARN, "SERVER", "NULL MESSAGE");
         }
+      } catch (MalformedMessageException e) {
+        Logger.log(Level.WARN, "DATA CORRUPTION", "Failed to decode a message frame: %s",
+            e.getMessage());
       } catch (IOException e) {
+        if (!closing && resumeToken != null && reconnect()) {
+          continue;
+        }
         disconnect();
-      } catch (ClassNotFoundException e) {
-        Logger.toConsole("DATA CORRUPTION", "Failed to deserialize data to a message object");
       }
     }
+    listener.onDisconnected();
+  }
+
+  /**
+   * Replaces the list of connected users with a snapshot sent by the server.
+   *
+   * @param body The body of the USERS message
+   * @see Presence
+   */
+  private void applyUsersSnapshot(String body) {
+    Map<Integer, String> users = Presence.users(body);
+    usernames.clear();
+    ids.clear();
+    for (Map.Entry<Integer, String> user : users.entrySet()) {
+      usernames.put(user.getKey(), user.getValue());
+      ids.put(user.getValue(), user.getKey());
+    }
+    /* A hash set, so the users that left are found without scanning the snapshot for each user */
+    Set<String> snapshot = new HashSet<>(users.values());
+    connectedUsers.retainAll(snapshot);
+    connectedUsers.addAll(snapshot);
+    presenceVersion = Presence.version(body);
+    resyncRequested = false;
+    listener.onUsersChanged(new ArrayList<>(users.values()));
   }
 
   /**
-   * Disconnects the client from the server by closing the socket connection.
+   * Applies a USER_JOINED or USER_LEFT delta to the list of connected users. Deltas that are older
+   * than the current version are ignored. If a delta skips a version, a new snapshot is requested
+   * from the server instead.
+   *
+   * @param message The presence delta
+   * @see Presence
+   */
+  private void applyPresenceDelta(Message message) {
+    String body = message.getBody();
+    long version = Presence.version(body);
+    if (presenceVersion < 0 || version <= presenceVersion) {
+      return;
+    }
+
+    if (version != presenceVersion + 1) {
+      requestSnapshot();
+      return;
+    }
+
+    presenceVersion = version;
+    String username = Presence.username(body);
+    int id = Presence.id(body);
+    if (message.getType() == MessageType.USER_JOINED) {
+      if (id != Message.NO_ID) {
+        usernames.put(id, username);
+        ids.put(username, id);
+      }
+      if (connectedUsers.add(username)) {
+        listener.onUserJoined(username);
+      }
+    } else {
+      if (id != Message.NO_ID && usernames.remove(id, username)) {
+        ids.remove(username, id);
+      }
+      if (connectedUsers.remove(username)) {
+        listener.onUserLeft(username);
+      }
+    }
+  }
+
+  /**
+   * Asks the server for a new snapshot of the connected users, unless one was already requested.
+   */
+  private void requestSnapshot() {
+    if (!resyncRequested) {
+      resyncRequested = true;
+      sendMessage(new Message(MessageType.USERS, user.getUsername(), "", ""));
+    }
+  }
+
+  /**
+   * Replaces the user ids of a message sent by the server with the usernames. An unknown id means
+   * that the list of connected users is out of date, so a new snapshot is requested.
+   *
+   * @param message The message sent by the server
+   * @return The message with the usernames of its sender and receiver
+   */
+  private Message resolveIds(Message message) {
+    int senderId = message.getSenderId();
+    int receiverId = message.getReceiverId();
+    if (senderId == Message.NO_ID && receiverId == Message.NO_ID) {
+      return message;
+    }
+    String sender = senderId == Message.NO_ID ? message.getSender() : usernameOf(senderId);
+    String receiver = receiverId == Message.NO_ID ? message.getReceiver() : usernameOf(receiverId);
+    return new Message(message.getType(), sender, receiver, message.getBody(), senderId,
+        receiverId, message.getSequence(), message.getTimestamp());
+  }
+
+  /**
+   * @return The username of the user with the given id, or a placeholder if the id is unknown
+   */
+  private String usernameOf(int id) {
+    String username = usernames.get(id);
+    if (username == null) {
+      requestSnapshot();
+      return "?" + id;
+    }
+    return username;
+  }
+
+  /**
+   * Sends a message to the server. Chat messages and whispers refer to the client and to the
+   * receiver of a whisper by id, if the id is known.
+   *
+   * @param message The message to send
+   */
+  @Override
+  public void sendMessage(Message message) {
+    MessageType type = message.getType();
+    if (type == MessageType.CHAT) {
+      synchronized (pendingChats) {
+        if (pendingChats.size() == MAX_PENDING_CHATS) {
+          pendingChats.poll();
+        }
+        pendingChats.add(new PendingChat(message.getReceiver(), message.getBody(),
+            System.nanoTime()));
+      }
+    }
+    if (type == MessageType.CHAT || type == MessageType.WHISPER) {
+      int receiverId = type == MessageType.WHISPER ? idOf(message.getReceiver()) : Message.NO_ID;
+      message = message.withIds(idOf(message.getSender()), receiverId);
+    }
+    super.sendMessage(message);
+  }
+
+  /**
+   * Records the round trip of a chat message sent by this client. The messages sent before it that
+   * never came back (e.g. because the client was not a member of the room) are forgotten.
+   *
+   * @param message A chat message received from the server
+   */
+  private void recordRoundTrip(Message message) {
+    if (user == null || !user.getUsername().equals(message.getSender())) {
+      return;
+    }
+
+    long now = System.nanoTime();
+    synchronized (pendingChats) {
+      /* The server keeps the order of a client's messages, so the match is usually the first */
+      Iterator<PendingChat> pending = pendingChats.iterator();
+      int skipped = 0;
+      while (pending.hasNext()) {
+        PendingChat chat = pending.next();
+        if (Objects.equals(chat.room, message.getReceiver())
+            && Objects.equals(chat.body, message.getBody())) {
+          for (int i = 0; i <= skipped; i++) {
+            pendingChats.poll();
+          }
+          roundTrips.record(now - chat.sentNanos);
+          return;
+        }
+        skipped++;
+      }
+    }
+  }
+
+  /**
+   * @return The round trips of the chat messages sent by this client, from sending a message to
+   * receiving it back from the server, over the last {@code chat.client.rttWindowSeconds} seconds
+   */
+  public RollingHistogram getRoundTrips() {
+    return roundTrips;
+  }
+
+  /**
+   * @return The id of the user with the given username, or {@link Message#NO_ID} if it is unknown
+   */
+  private int idOf(String username) {
+    Integer id = username == null ? null : ids.get(username);
+    return id == null ? Message.NO_ID : id;
+  }
+
+  /**
+   * Disconnects the client from the server by closing the socket connection. The server is told
+   * that the client is leaving first, so that it ends the session instead of keeping it.
    *
    * @see AbstractThread#disconnect()
    */
   @Override
   public void disconnect() {
+    closing = true;
+    if (isConnected() && user != null) {
+      sendMessage(new Message(MessageType.DISCONNECTION, user.getUsername(), "", ""));
+    }
     try {
       super.disconnect();
     } catch (IOException ignored) {
-      Logger.toConsole("SOCKET",
+      Logger.log(Level.WARN, "SOCKET",
           "Attempt to close socket failed. It may have already been closed");
     }
   }
@@ -125,9 +511,25 @@ public class ClientThread extends AbstractThread {
   /**
    * Getter method that returns the list of connected clients.
    *
-   * @return The list of connected clients.
+   * @return A copy of the list of connected clients, in no particular order.
    */
   public List<String> getConnectedUsers() {
-    return connectedUsers;
+    return new ArrayList<>(connectedUsers);
+  }
+
+  /**
+   * A chat message sent by this client, and when it was sent.
+   */
+  private static final class PendingChat {
+
+    private final String room;
+    private final String body;
+    private final long sentNanos;
+
+    private PendingChat(String room, String body, long sentNanos) {
+      this.room = room;
+      this.body = body;
+      this.sentNanos = sentNanos;
+    }
   }
-}
\ No newline at end of file
+}
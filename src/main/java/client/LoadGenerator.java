@@ -0,0 +1,293 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import utils.LatencyHistogram;
+import utils.Logger;
+import utils.Logger.Level;
+import utils.Message;
+import utils.Message.MessageType;
+
+/**
+ * A headless client that load tests a running server.
+ * <p>
+ * The generator opens a number of connections, registers each of them as a simulated user
+ * (load-0, load-1, ...) and sends CHAT and WHISPER messages from randomly chosen users at the
+ * configured rates. Every message carries the time it was sent, so each receiving connection can
+ * record the latency from sending to receiving it. While running, the delivered messages per second
+ * are printed every second. At the end, the throughput and the p50, p99 and p99.9 latencies are
+ * reported.
+ * <p>
+ * The users can be spread over a number of rooms (#load-0, #load-1, ...), the i-th registered user
+ * joins room i % ROOMS and sends its CHAT messages there. With a single room, all users stay in the
+ * lobby.
+ * <p>
+ * Since every CHAT message is delivered to every member of its room, and a WHISPER message to its
+ * receiver and back to its sender, the generator expects the room size of every CHAT message plus
+ * WHISPERS * 2 deliveries.
+ *
+ * @author Group4
+ */
+public class LoadGenerator {
+
+  /* Marks the messages sent by the generator, the send time in nanoseconds follows it */
+  private static final String BODY_PREFIX = "load ";
+  /* How long the generator waits for messages that are still in flight at the end of a run */
+  private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+  /* How long the generator waits for the users to join their rooms */
+  private static final long JOIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private final String hostname;
+  private final int port;
+  private final int users;
+  private final double chatRate;
+  private final double whisperRate;
+  private final int seconds;
+  private final int rooms;
+
+  private final List<ClientThread> clients = new ArrayList<>();
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder disconnections = new LongAdder();
+  private final LongAdder joinedRooms = new LongAdder();
+  /* The room of each registered user, and the number of registered users in each room */
+  private final List<String> clientRooms = new ArrayList<>();
+  private final int[] roomSizes;
+  private long expectedChats = 0;
+  private long sentChats = 0;
+  private long sentWhispers = 0;
+
+  /**
+   * Constructor
+   *
+   * @param hostname    The hostname of the server to connect to
+   * @param port        The port that the server is running on
+   * @param users       The number of simulated users (connections)
+   * @param chatRate    The number of CHAT messages sent per second, by all users together
+   * @param whisperRate The number of WHISPER messages sent per second, by all users together
+   * @param seconds     How long messages are sent for
+   * @param rooms       The number of rooms the users are spread over (1 keeps them in the lobby)
+   */
+  public LoadGenerator(String hostname, int port, int users, double chatRate, double whisperRate,
+      int seconds, int rooms) {
+    this.hostname = hostname;
+    this.port = port;
+    this.users = users;
+    this.chatRate = chatRate;
+    this.whisperRate = users > 1 ? whisperRate : 0;
+    this.seconds = seconds;
+    this.rooms = Math.max(1, rooms);
+    this.roomSizes = new int[this.rooms];
+  }
+
+  /**
+   * Connects the simulated users, sends messages for the configured duration and prints a report.
+   */
+  public void run() {
+    connect();
+    if (clients.isEmpty()) {
+      Logger.log(Level.ERROR, "LOAD TEST", "No user could be registered");
+      return;
+    }
+    Logger.log(Level.INFO, "LOAD TEST", "%d users registered", clients.size());
+    awaitRooms();
+
+    long start = System.nanoTime();
+    drive(start);
+    long elapsed = System.nanoTime() - start;
+
+    /* Give the messages that are still in flight a chance to arrive */
+    LockSupport.parkNanos(DRAIN_NANOS);
+    long lostConnections = disconnections.sum();
+    for (ClientThread client : clients) {
+      client.disconnect();
+    }
+    report(elapsed, lostConnections);
+  }
+
+  /**
+   * Opens a connection for each simulated user and registers it with the server. Users that fail
+   * to connect or register are counted as errors.
+   */
+  private void connect() {
+    for (int i = 0; i < users; i++) {
+      try {
+        ClientThread client = new ClientThread(hostname, port, new LoadListener());
+        if (client.register("load-" + i)) {
+          Thread listener = new Thread(client, "load-" + i);
+          listener.setDaemon(true);
+          listener.start();
+          clients.add(client);
+          joinRoom(client, (clients.size() - 1) % rooms);
+        } else {
+          client.disconnect();
+        }
+      } catch (IOException e) {
+        errors.increment();
+      }
+    }
+  }
+
+  /**
+   * Makes a registered user join its room, unless all users stay in the lobby.
+   *
+   * @param client The registered user
+   * @param room   The number of the user's room
+   */
+  private void joinRoom(ClientThread client, int room) {
+    roomSizes[room]++;
+    if (rooms == 1) {
+      clientRooms.add(Message.LOBBY);
+      return;
+    }
+    String name = "#load-" + room;
+    clientRooms.add(name);
+    client.sendMessage(new Message(MessageType.JOIN_ROOM, client.user.getUsername(), "", name));
+  }
+
+  /**
+   * Waits until every registered user has joined its room, so that no CHAT message reaches a room
+   * before all its members.
+   */
+  private void awaitRooms() {
+    if (rooms == 1) {
+      return;
+    }
+    long deadline = System.nanoTime() + JOIN_TIMEOUT_NANOS;
+    while (joinedRooms.sum() < clients.size() && System.nanoTime() < deadline) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    Logger.log(Level.INFO, "LOAD TEST", "%d users joined %d rooms", joinedRooms.sum(), rooms);
+  }
+
+  /**
+   * Sends messages from randomly chosen users at the configured rates until the run is over.
+   *
+   * @param start The time the run started at, in nanoseconds
+   */
+  private void drive(long start) {
+    long end = start + TimeUnit.SECONDS.toNanos(seconds);
+    long chatInterval = chatRate > 0 ? (long) (1_000_000_000 / chatRate) : Long.MAX_VALUE;
+    long whisperInterval = whisperRate > 0 ? (long) (1_000_000_000 / whisperRate) : Long.MAX_VALUE;
+    long nextChat = chatRate > 0 ? start : Long.MAX_VALUE;
+    long nextWhisper = whisperRate > 0 ? start : Long.MAX_VALUE;
+    long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+    long lastDelivered = 0;
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long now;
+    while ((now = System.nanoTime()) < end) {
+      if (now >= nextChat) {
+        int from = random.nextInt(clients.size());
+        ClientThread sender = clients.get(from);
+        sender.sendMessage(new Message(MessageType.CHAT, sender.user.getUsername(),
+            clientRooms.get(from), BODY_PREFIX + System.nanoTime()));
+        sentChats++;
+        expectedChats += roomSizes[from % rooms];
+        nextChat += chatInterval;
+      }
+
+      if (now >= nextWhisper) {
+        int from = random.nextInt(clients.size());
+        int to = (from + 1 + random.nextInt(clients.size() - 1)) % clients.size();
+        ClientThread sender = clients.get(from);
+        sender.sendMessage(new Message(MessageType.WHISPER, sender.user.getUsername(),
+            clients.get(to).user.getUsername(), BODY_PREFIX + System.nanoTime()));
+        sentWhispers++;
+        nextWhisper += whisperInterval;
+      }
+
+      if (now >= nextReport) {
+        long total = delivered.sum();
+        Logger.log(Level.INFO, "LOAD TEST", "%d s: %d msgs/s delivered, p99 %.1f us",
+            TimeUnit.NANOSECONDS.toSeconds(now - start), total - lastDelivered,
+            latencies.getPercentile(99) / 1_000.0);
+        lastDelivered = total;
+        nextReport += TimeUnit.SECONDS.toNanos(1);
+      }
+
+      long wait = Math.min(Math.min(nextChat, nextWhisper), Math.min(nextReport, end)) - now;
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+    }
+  }
+
+  /**
+   * Prints the throughput and latency percentiles of the run.
+   *
+   * @param elapsed         How long messages were sent for, in nanoseconds
+   * @param lostConnections The number of connections closed by the server during the run
+   */
+  private void report(long elapsed, long lostConnections) {
+    double elapsedSeconds = elapsed / 1_000_000_000.0;
+    long expected = expectedChats + sentWhispers * 2;
+
+    System.out.printf("users:          %d%n", clients.size());
+    System.out.printf("rooms:          %d%n", rooms);
+    System.out.printf("duration:       %.1f s%n", elapsedSeconds);
+    System.out.printf("sent:           %d chat, %d whisper (%.0f msgs/s)%n", sentChats,
+        sentWhispers, (sentChats + sentWhispers) / elapsedSeconds);
+    System.out.printf("delivered:      %d of %d expected (%.0f msgs/s)%n", delivered.sum(),
+        expected, delivered.sum() / elapsedSeconds);
+    System.out.printf("latency p50:    %.1f us%n", latencies.getPercentile(50) / 1_000.0);
+    System.out.printf("latency p99:    %.1f us%n", latencies.getPercentile(99) / 1_000.0);
+    System.out.printf("latency p99.9:  %.1f us%n", latencies.getPercentile(99.9) / 1_000.0);
+    System.out.printf("errors:         %d%n", errors.sum());
+    System.out.printf("disconnections: %d%n", lostConnections);
+  }
+
+  /**
+   * Records the latency of every load test message a simulated user receives.
+   */
+  private class LoadListener implements ClientListener {
+
+    @Override
+    public void onMessage(Message message) {
+      long now = System.nanoTime();
+      MessageType type = message.getType();
+      if (type == MessageType.JOIN_ROOM) {
+        joinedRooms.increment();
+        return;
+      }
+      String body = message.getBody();
+      if ((type == MessageType.CHAT || type == MessageType.WHISPER) && body != null
+          && body.startsWith(BODY_PREFIX)) {
+        try {
+          latencies.record(now - Long.parseLong(body.substring(BODY_PREFIX.length())));
+          delivered.increment();
+        } catch (NumberFormatException ignored) {
+        }
+      }
+    }
+
+    @Override
+    public void onError(String error) {
+      errors.increment();
+      Logger.log(Level.WARN, "LOAD TEST", error);
+    }
+
+    @Override
+    public void onUsersChanged(List<String> users) {
+    }
+
+    @Override
+    public void onUserJoined(String username) {
+    }
+
+    @Override
+    public void onUserLeft(String username) {
+    }
+
+    @Override
+    public void onDisconnected() {
+      disconnections.increment();
+    }
+  }
+}
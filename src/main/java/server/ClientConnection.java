@@ -0,0 +1,114 @@
+package server;
+
+import java.net.InetAddress;
+import java.util.List;
+import utils.Frame;
+import utils.Message;
+import utils.User;
+
+/**
+ * Represents a client connection handled by the server, independent of the engine (blocking
+ * threads or non-blocking event loops) that performs the I/O for it.
+ * <p>
+ * The {@link Server} only talks to clients through this interface, which allows both engines to
+ * share the same registration, routing and broadcast logic.
+ *
+ * @author Group4
+ */
+interface ClientConnection {
+
+  /**
+   * @return The user object of the client, or null if the client has not registered yet
+   */
+  User getUser();
+
+  /**
+   * Sets the user object containing the connected client's information.
+   *
+   * @param user The user object to set
+   */
+  void setUser(User user);
+
+  /**
+   * @return True if the client is registered and its connection is still alive, otherwise false
+   */
+  boolean isConnected();
+
+  /**
+   * Setter method to set the 'isConnected' flag.
+   *
+   * @param connected The boolean flag to set the 'isConnected' flag to.
+   */
+  void setConnected(boolean connected);
+
+  /**
+   * Sends a message to the client.
+   *
+   * @param message The message to send
+   */
+  void sendMessage(Message message);
+
+  /**
+   * Sends a frame that has already been encoded, which allows a broadcast to encode its message
+   * once for all recipients.
+   *
+   * @param frame The encoded frame to send
+   */
+  void sendFrame(Frame frame);
+
+  /**
+   * @return True if the client negotiated compression, so its large frames are compressed
+   * @see utils.FrameCompressor
+   */
+  boolean isCompressionEnabled();
+
+  /**
+   * Closes the client's connection and removes the client from the connected clients.
+   */
+  void disconnect();
+
+  /**
+   * Closes the connection of a client that is no longer reachable, in the same way as a failed
+   * connection: the client's session is kept for the client to resume, or the client is removed
+   * and the other clients are notified. This method can be called from any thread.
+   */
+  void connectionLost();
+
+  /**
+   * Takes the frames that may not have reached the client: the last frames written to the socket
+   * and the frames still waiting to be written, so that they can be sent again when the client
+   * resumes its session.
+   *
+   * @param frames The list the frames are added to, oldest first
+   * @return The number of frames that were written to the socket before the first frame that is
+   * taken, counting every wrapped frame
+   * @see DetachedSession
+   */
+  long takeUnconfirmedFrames(List<Frame> frames);
+
+  /**
+   * @return The {@link System#nanoTime()} at which the last message was received from the client,
+   * or the connection was accepted
+   */
+  long getLastActivityNanos();
+
+  /**
+   * @return The number of bytes received from the client
+   */
+  long getBytesRead();
+
+  /**
+   * @return The number of bytes written to the client
+   */
+  long getBytesWritten();
+
+  /**
+   * @return The IP address of the client
+   */
+  InetAddress getInetAddress();
+
+  /**
+   * @return The remote port of the client's connection
+   */
+  int getPort();
+}
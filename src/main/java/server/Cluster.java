@@ -0,0 +1,588 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import utils.Frame;
+import utils.Logger;
+import utils.Logger.Level;
+import utils.Message;
+import utils.Message.MessageType;
+import utils.MessageCodec;
+
+/**
+ * Links several server processes (nodes) into one chat.
+ * <p>
+ * Every node listens for the links of its peers on its cluster port and opens a {@link PeerLink}
+ * to every configured peer, reconnecting whenever a link is lost. After saying hello, a node sends
+ * its peer the users connected to it and the rooms they are in, and then keeps the peer up to
+ * date. This is how every node knows which users are connected to the cluster, and on which node.
+ * <p>
+ * USERNAMES: Every username is owned by one node, chosen by the hash of the username over the
+ * sorted list of nodes. Before a client is registered, its node reserves the username with the
+ * owner, so a username can only be in use once in the whole cluster. Registrations of usernames
+ * owned by an unreachable node are rejected until the node is back.
+ * <p>
+ * ROUTING: A chat message is delivered to the local members of its room and forwarded once to
+ * every peer with members in the room, which then delivers it to its own members. A whisper is
+ * forwarded to the node of its receiver only. Messages sent by the users of one node reach the
+ * other nodes in the order they were sent.
+ * <p>
+ * CONTROL MESSAGES: The nodes exchange the usual message types for presence (USERS, USER_JOINED,
+ * USER_LEFT), room interest (JOIN_ROOM, LEAVE_ROOM) and forwarded messages (CHAT, WHISPER,
+ * NONEXISTENT_USER), plus CLUSTER messages for reservations, with the {@link Operation} in the
+ * sender field and the username in the body.
+ *
+ * @author Group4
+ */
+final class Cluster implements RoomRegistry.Listener {
+
+  /**
+   * An enumeration of the operations of CLUSTER messages.
+   */
+  enum Operation {
+    /* Asks the owner of a username to reserve it for the sending node */
+    RESERVE,
+    /* The owner reserved the username for the node that asked for it */
+    RESERVED,
+    /* The owner could not reserve the username, since it is already in use */
+    REJECTED,
+    /* Gives up a reservation, after the user disconnected */
+    RELEASE
+  }
+
+  /* How long the connector waits between attempts to reconnect to its peers */
+  private static final long RECONNECT_MILLIS = 1_000;
+
+  private final String self;
+  private final int port;
+  /* All the nodes of the cluster (including this one), sorted */
+  private final List<String> nodes;
+  private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+  /* The users connected to other nodes, and the node each one is connected to */
+  private final ConcurrentHashMap<String, String> remoteUsers = new ConcurrentHashMap<>();
+  /* The usernames owned by this node that are in use, and the node that uses each one */
+  private final ConcurrentHashMap<String, String> reservations = new ConcurrentHashMap<>();
+  /* The reservations this node is waiting for, by username */
+  private final ConcurrentHashMap<String, CompletableFuture<String>> pending =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Another node of the cluster.
+   */
+  private static final class Peer {
+
+    final String node;
+    final String host;
+    final int port;
+    /* The link this node sends over, and the link the peer sends over */
+    volatile PeerLink outgoing;
+    volatile PeerLink incoming;
+    /* The rooms the peer has members in (the lobby is not included) */
+    final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    Peer(String node) {
+      this.node = node;
+      int separator = node.lastIndexOf(':');
+      this.host = node.substring(0, separator);
+      this.port = Integer.parseInt(node.substring(separator + 1));
+    }
+  }
+
+  /**
+   * Constructor
+   *
+   * @param self  The name of this node, as host:port of its cluster port
+   * @param port  The port this node accepts the links of its peers on
+   * @param peers The names of the other nodes, as host:port of their cluster ports
+   */
+  Cluster(String self, int port, List<String> peers) {
+    this.self = self;
+    this.port = port;
+    List<String> all = new ArrayList<>();
+    all.add(self);
+    for (String peer : peers) {
+      if (!peer.equals(self) && !this.peers.containsKey(peer)) {
+        this.peers.put(peer, new Peer(peer));
+        all.add(peer);
+      }
+    }
+    all.sort(null);
+    this.nodes = all;
+  }
+
+  /**
+   * Creates the cluster configured in the {@link ServerConfig}.
+   *
+   * @return The cluster, or null if the server does not run in a cluster
+   */
+  static Cluster fromConfig() {
+    if (ServerConfig.CLUSTER_PORT <= 0) {
+      return null;
+    }
+
+    List<String> peers = new ArrayList<>();
+    for (String peer : ServerConfig.CLUSTER_PEERS.split(",")) {
+      if (!peer.isBlank()) {
+        peers.add(peer.trim());
+      }
+    }
+    try {
+      return new Cluster(ServerConfig.CLUSTER_NODE, ServerConfig.CLUSTER_PORT, peers);
+    } catch (RuntimeException e) {
+      Logger.log(Level.ERROR, "SERVER ERROR", "Invalid cluster peers '%s', expected host:port",
+          ServerConfig.CLUSTER_PEERS);
+      return null;
+    }
+  }
+
+  /**
+   * Starts accepting the links of the peers and connecting to them.
+   *
+   * @throws IOException If the cluster port could not be opened
+   */
+  void start() throws IOException {
+    ServerSocket serverSocket = new ServerSocket(port);
+    Thread acceptor = new Thread(() -> acceptLinks(serverSocket), "cluster-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    Thread connector = new Thread(this::connectPeers, "cluster-connector");
+    connector.setDaemon(true);
+    connector.start();
+    Logger.log(Level.INFO, "CLUSTER", "Node %s started, peers: %s", self, peers.keySet());
+  }
+
+  /**
+   * Accepts the links of the peers. An accepted link is only used once the peer said hello.
+   */
+  private void acceptLinks(ServerSocket serverSocket) {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        new PeerLink(this, socket, null).start();
+      } catch (IOException e) {
+        Logger.log(Level.WARN, "CLUSTER", "Couldn't accept a cluster link: %s", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Connects to every peer without a link, for as long as the server runs.
+   */
+  private void connectPeers() {
+    while (true) {
+      for (Peer peer : peers.values()) {
+        if (peer.outgoing == null) {
+          connect(peer);
+        }
+      }
+      try {
+        Thread.sleep(RECONNECT_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Opens a link to a peer, says hello and sends the peer the state of this node. The link is
+   * published before the state is sent, so every change made after the state was read reaches the
+   * peer after the state.
+   */
+  private void connect(Peer peer) {
+    PeerLink link;
+    try {
+      Socket socket = new Socket();
+      socket.connect(new InetSocketAddress(peer.host, peer.port), (int) RECONNECT_MILLIS);
+      socket.setTcpNoDelay(true);
+      link = new PeerLink(this, socket, peer.node);
+    } catch (IOException e) {
+      return;
+    }
+
+    link.start();
+    link.sendMessage(new Message(MessageType.CONNECTION, "", "", self));
+    peer.outgoing = link;
+    Server.sendLocalUsers(link);
+    for (String room : Server.getRooms().names()) {
+      link.sendMessage(new Message(MessageType.JOIN_ROOM, "", "", room));
+    }
+    Logger.log(Level.INFO, "CLUSTER", "Connected to node %s", peer.node);
+  }
+
+  /**
+   * Handles a message received over a link.
+   *
+   * @param link    The link the message was received on
+   * @param message The message
+   */
+  void onMessage(PeerLink link, Message message) {
+    if (link.getNode() == null) {
+      onHello(link, message);
+      return;
+    }
+
+    Peer peer = peers.get(link.getNode());
+    if (peer == null || peer.incoming != link) {
+      return;
+    }
+    String body = message.getBody();
+    switch (message.getType()) {
+      case USERS:
+        syncUsers(peer, body.isEmpty() ? List.of() : Arrays.asList(body.split(Message.DELIMITER)));
+        break;
+      case USER_JOINED:
+        userJoined(peer, body);
+        break;
+      case USER_LEFT:
+        userLeft(peer, body);
+        break;
+      case JOIN_ROOM:
+        peer.rooms.add(body);
+        break;
+      case LEAVE_ROOM:
+        peer.rooms.remove(body);
+        break;
+      case CHAT:
+        deliverChat(peer, message);
+        break;
+      case WHISPER:
+        deliverWhisper(peer, message);
+        break;
+      case NONEXISTENT_USER:
+        Server.deliverToLocalUser(message);
+        break;
+      case CLUSTER:
+        onOperation(peer, Operation.valueOf(message.getSender()), body);
+        break;
+      default:
+        Logger.log(Level.WARN, "CLUSTER", "Node %s sent an unexpected %s message", peer.node,
+            message.getType());
+    }
+  }
+
+  /**
+   * Handles the first message of an accepted link, which names the peer that opened it.
+   */
+  private void onHello(PeerLink link, Message message) {
+    Peer peer = message.getType() == MessageType.CONNECTION ? peers.get(message.getBody()) : null;
+    if (peer == null) {
+      Logger.log(Level.WARN, "CLUSTER", "Rejected a link from unknown node '%s'",
+          message.getBody());
+      link.close();
+      return;
+    }
+
+    link.setNode(peer.node);
+    PeerLink previous = peer.incoming;
+    peer.incoming = link;
+    if (previous != null) {
+      /* The peer reconnected before the old link was found to be closed */
+      previous.close();
+    }
+    Logger.log(Level.INFO, "CLUSTER", "Node %s joined the cluster", peer.node);
+  }
+
+  /**
+   * Handles a closed link. If it was the link of a peer, the peer is treated as down until it
+   * reconnects: its users leave and its reservations are released.
+   *
+   * @param link The closed link
+   */
+  void linkClosed(PeerLink link) {
+    Peer peer = link.getNode() == null ? null : peers.get(link.getNode());
+    if (peer == null) {
+      return;
+    }
+
+    if (peer.outgoing == link) {
+      peer.outgoing = null;
+    }
+    if (peer.incoming == link) {
+      peer.incoming = null;
+      peer.rooms.clear();
+      syncUsers(peer, List.of());
+      Logger.log(Level.WARN, "CLUSTER", "Node %s left the cluster", peer.node);
+    }
+  }
+
+  /**
+   * Replaces the users known to be connected to a peer.
+   */
+  private void syncUsers(Peer peer, List<String> usernames) {
+    Set<String> current = new HashSet<>(usernames);
+    for (Map.Entry<String, String> user : remoteUsers.entrySet()) {
+      if (user.getValue().equals(peer.node) && !current.contains(user.getKey())) {
+        userLeft(peer, user.getKey());
+      }
+    }
+    reservations.entrySet().removeIf(
+        reservation -> reservation.getValue().equals(peer.node)
+            && !current.contains(reservation.getKey()));
+
+    for (String username : usernames) {
+      if (isOwner(username)) {
+        String holder = reservations.putIfAbsent(username, peer.node);
+        if (holder != null && !holder.equals(peer.node)) {
+          Logger.log(Level.WARN, "CLUSTER", "Username '%s' is in use on nodes %s and %s",
+              username, holder, peer.node);
+        }
+      }
+      userJoined(peer, username);
+    }
+  }
+
+  private void userJoined(Peer peer, String username) {
+    if (remoteUsers.putIfAbsent(username, peer.node) == null) {
+      Server.remoteUserJoined(username);
+    }
+  }
+
+  private void userLeft(Peer peer, String username) {
+    if (remoteUsers.remove(username, peer.node)) {
+      Server.remoteUserLeft(username);
+    }
+  }
+
+  /**
+   * Delivers a chat message forwarded by a peer to the local members of its room. If there are
+   * none, the peer is told to stop forwarding the room's messages. Both happen while holding the
+   * room's lock, so the answer can't overtake the announcement of a room created right after.
+   */
+  private void deliverChat(Peer peer, Message message) {
+    String room = Server.roomOf(message);
+    ReentrantLock lock = Server.getRooms().lockFor(room);
+    lock.lock();
+    try {
+      if (!Server.deliverRoomMessage(room, message) && peer.outgoing != null) {
+        peer.outgoing.sendMessage(new Message(MessageType.LEAVE_ROOM, "", "", room));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Delivers a whisper forwarded by a peer to its local receiver, or tells the sender that the
+   * receiver is no longer connected.
+   */
+  private void deliverWhisper(Peer peer, Message message) {
+    if (!Server.deliverToLocalUser(message) && peer.outgoing != null) {
+      String error = "Cannot whisper to a non-existent user";
+      peer.outgoing.sendMessage(
+          new Message(MessageType.NONEXISTENT_USER, "", message.getSender(), error));
+    }
+  }
+
+  /**
+   * Handles a reservation request or answer.
+   */
+  private void onOperation(Peer peer, Operation operation, String username) {
+    switch (operation) {
+      case RESERVE:
+        boolean reserved = isOwner(username)
+            && reservations.putIfAbsent(username, peer.node) == null;
+        send(peer, operation(reserved ? Operation.RESERVED : Operation.REJECTED, username));
+        break;
+      case RESERVED:
+      case REJECTED:
+        CompletableFuture<String> reservation = pending.remove(username);
+        if (reservation != null) {
+          reservation.complete(
+              operation == Operation.RESERVED ? null : "Username is already taken");
+        } else if (operation == Operation.RESERVED) {
+          /* The reservation timed out before the answer arrived */
+          send(peer, operation(Operation.RELEASE, username));
+        }
+        break;
+      case RELEASE:
+        reservations.remove(username, peer.node);
+        break;
+    }
+  }
+
+  /**
+   * Reserves a username for a client of this node with the node that owns it.
+   *
+   * @param username The (validated) username
+   * @return A future that completes with the reason the username can't be used, or null if it was
+   * reserved. It never completes exceptionally.
+   */
+  CompletableFuture<String> reserve(String username) {
+    String owner = owner(username);
+    if (owner.equals(self)) {
+      String holder = reservations.putIfAbsent(username, self);
+      return CompletableFuture.completedFuture(holder == null ? null : "Username is already taken");
+    }
+
+    Peer peer = peers.get(owner);
+    if (peer.outgoing == null || peer.incoming == null) {
+      return CompletableFuture.completedFuture("Username can't be reserved, try again later");
+    }
+    CompletableFuture<String> reservation = new CompletableFuture<>();
+    if (pending.putIfAbsent(username, reservation) != null) {
+      return CompletableFuture.completedFuture("Username is already taken");
+    }
+    send(peer, operation(Operation.RESERVE, username));
+    return reservation.completeOnTimeout("Username can't be reserved, try again later",
+        ServerConfig.CLUSTER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete(
+        (error, ignored) -> pending.remove(username, reservation));
+  }
+
+  /**
+   * Releases the reservation of a username that is no longer used by a client of this node.
+   *
+   * @param username The username
+   */
+  void release(String username) {
+    String owner = owner(username);
+    if (owner.equals(self)) {
+      reservations.remove(username, self);
+    } else {
+      send(peers.get(owner), operation(Operation.RELEASE, username));
+    }
+  }
+
+  /**
+   * Tells the peers that a user connected to this node. Must be called while holding the presence
+   * lock, so the peers see the users join and leave in the same order as this node.
+   *
+   * @param username The user that joined
+   */
+  void localUserJoined(String username) {
+    broadcast(new Message(MessageType.USER_JOINED, "", "", username));
+  }
+
+  /**
+   * Tells the peers that a user disconnected from this node and releases its username. Must be
+   * called while holding the presence lock.
+   *
+   * @param username The user that left
+   */
+  void localUserLeft(String username) {
+    broadcast(new Message(MessageType.USER_LEFT, "", "", username));
+    release(username);
+  }
+
+  /**
+   * Forwards a chat message to every peer with members in its room. Must be called while holding
+   * the room's lock, so the peers receive the room's messages in the order of this node.
+   *
+   * @param room  The room of the message
+   * @param frame The encoded message
+   */
+  void forwardChat(String room, Frame frame) {
+    boolean lobby = RoomRegistry.LOBBY.equals(room);
+    for (Peer peer : peers.values()) {
+      PeerLink link = peer.outgoing;
+      if (link != null && (lobby || peer.rooms.contains(room))) {
+        link.sendFrame(frame);
+      }
+    }
+  }
+
+  /**
+   * Forwards a whisper to the node its receiver is connected to.
+   *
+   * @param message The whisper
+   * @return False if the receiver is not connected to another node
+   */
+  boolean forwardWhisper(Message message) {
+    String node = remoteUsers.get(message.getReceiver());
+    Peer peer = node == null ? null : peers.get(node);
+    if (peer == null || peer.outgoing == null) {
+      return false;
+    }
+    peer.outgoing.sendMessage(message);
+    return true;
+  }
+
+  /**
+   * @param username A username
+   * @return True if the user is connected to another node
+   */
+  boolean hasRemoteUser(String username) {
+    return remoteUsers.containsKey(username);
+  }
+
+  /**
+   * @return The users connected to other nodes
+   */
+  Set<String> getRemoteUsernames() {
+    return remoteUsers.keySet();
+  }
+
+  /**
+   * @return The number of peers that are linked in both directions
+   */
+  int getConnectedPeers() {
+    int connected = 0;
+    for (Peer peer : peers.values()) {
+      if (peer.outgoing != null && peer.incoming != null) {
+        connected++;
+      }
+    }
+    return connected;
+  }
+
+  @Override
+  public void roomCreated(String room) {
+    broadcast(new Message(MessageType.JOIN_ROOM, "", "", room));
+  }
+
+  @Override
+  public void roomRemoved(String room) {
+    broadcast(new Message(MessageType.LEAVE_ROOM, "", "", room));
+  }
+
+  private void broadcast(Message message) {
+    Frame frame;
+    try {
+      frame = Frame.encode(message, MessageCodec.DEFAULT);
+    } catch (IOException e) {
+      Logger.log(Level.ERROR, "SERVER ERROR", "Failed to encode cluster message: %s",
+          e.getMessage());
+      return;
+    }
+    for (Peer peer : peers.values()) {
+      PeerLink link = peer.outgoing;
+      if (link != null) {
+        link.sendFrame(frame);
+      }
+    }
+  }
+
+  private void send(Peer peer, Message message) {
+    PeerLink link = peer.outgoing;
+    if (link != null) {
+      link.sendMessage(message);
+    }
+  }
+
+  private static Message operation(Operation operation, String username) {
+    return new Message(MessageType.CLUSTER, operation.name(), "", username);
+  }
+
+  private boolean isOwner(String username) {
+    return owner(username).equals(self);
+  }
+
+  /**
+   * @return The node that owns a username
+   */
+  private String owner(String username) {
+    return nodes.get(Math.floorMod(username.hashCode(), nodes.size()));
+  }
+}
@@ -0,0 +1,259 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import utils.Frame;
+import utils.Logger;
+import utils.Logger.Level;
+import utils.Message;
+import utils.MessageCodec;
+import utils.User;
+
+/**
+ * The session of a client whose connection was lost, kept for a grace window so that the client
+ * can resume it.
+ * <p>
+ * The session takes the place of the lost connection: it keeps the username, the id and the room
+ * memberships of the client, so the other clients are not told that it left. Every frame sent to
+ * the session is kept, together with the frames that were last written to the lost connection or
+ * still waiting in its outbound queue. When the client resumes the session with a new connection,
+ * the frames it did not receive are sent to the new connection in their original order, and any
+ * frame that is still sent to the session is passed on to it. If the grace window ends first, or
+ * more frames arrive than are kept, the session ends as if the client had disconnected.
+ *
+ * @author Group4
+ * @see SessionRegistry
+ */
+final class DetachedSession implements ClientConnection {
+
+  private final SessionRegistry registry;
+  private final InetAddress address;
+  private final int port;
+  /* The number of frames that are kept, beyond which the session ends */
+  private final int capacity;
+  private final long detachedNanos = System.nanoTime();
+  private volatile User user;
+  /* The frames written to the lost connection last, or never written, oldest first (guarded by
+  this) */
+  private List<Frame> unconfirmed = Collections.emptyList();
+  /* The number of frames written to the lost connection before the first unconfirmed frame
+  (guarded by this) */
+  private long confirmed = 0;
+  /* The frames sent to the session since the connection was lost (guarded by this) */
+  private final List<Frame> missed = new ArrayList<>();
+  /* The connection that resumed the session, which later frames are passed on to (guarded by
+  this) */
+  private ClientConnection resumedBy;
+  /* Indicates that the session was either resumed or ended, whichever happened first */
+  private final AtomicBoolean settled = new AtomicBoolean(false);
+  private volatile boolean connected = true;
+  private boolean overflowed = false;
+
+  /**
+   * Constructor
+   *
+   * @param registry The registry that ends the session
+   * @param lost     The connection that was lost
+   * @param capacity The number of frames that are kept
+   */
+  DetachedSession(SessionRegistry registry, ClientConnection lost, int capacity) {
+    this.registry = registry;
+    this.user = lost.getUser();
+    this.address = lost.getInetAddress();
+    this.port = lost.getPort();
+    this.capacity = capacity;
+  }
+
+  /**
+   * Takes the frames that may not have reached the client from the lost connection.
+   *
+   * @param lost The connection that was lost
+   * @see ClientConnection#takeUnconfirmedFrames(List)
+   */
+  synchronized void takeUnconfirmed(ClientConnection lost) {
+    List<Frame> frames = new ArrayList<>();
+    this.confirmed = lost.takeUnconfirmedFrames(frames);
+    this.unconfirmed = frames;
+  }
+
+  /**
+   * Marks the session as resumed or ended. Only the first call succeeds, so a session that is
+   * resumed never ends, and the other way around.
+   *
+   * @return True if the session was not settled yet
+   */
+  boolean settle() {
+    return settled.compareAndSet(false, true);
+  }
+
+  /**
+   * Hands the session over to the connection that resumed it. The connection is sent the response
+   * to its request first, then the frames it did not receive: the frames written to the lost
+   * connection after the ones the client received, and the frames sent to the session since.
+   * Frames sent to the session afterwards are passed on to the connection.
+   * <p>
+   * The client counts the frames it received, since most frames carry no stamp that would tell
+   * which one it received last. The presence updates are not sent again; the caller sends a
+   * snapshot of the users instead. If the frames after the ones the client received are no longer
+   * kept, it can't be told which frames it missed, so the session is not handed over.
+   *
+   * @param client   The new connection of the client
+   * @param response The response to the client's request to resume the session
+   * @param received The number of frames the client received over the lost connection
+   * @return The number of frames that were sent again, or -1 if the frames after the ones the
+   * client received are no longer kept
+   */
+  synchronized int resume(ClientConnection client, Message response, long received) {
+    /* Skip the frames the client received, a wrapped frame is only skipped as a whole */
+    long skip = received - confirmed;
+    int start = 0;
+    while (skip > 0 && start < unconfirmed.size()) {
+      skip -= unconfirmed.get(start++).count();
+    }
+    if (skip != 0) {
+      return -1;
+    }
+
+    List<Frame> replay = new ArrayList<>();
+    for (Frame frame : unconfirmed.subList(start, unconfirmed.size())) {
+      if (!isPresence(frame)) {
+        replay.add(frame);
+      }
+    }
+    for (Frame frame : missed) {
+      if (!isPresence(frame)) {
+        replay.add(frame);
+      }
+    }
+    unconfirmed = Collections.emptyList();
+    missed.clear();
+    resumedBy = client;
+    client.sendMessage(response);
+    for (Frame frame : replay) {
+      client.sendFrame(frame);
+    }
+    return replay.size();
+  }
+
+  /**
+   * @param frame A frame kept for the client
+   * @return True if the frame is an update of the users, which a snapshot replaces
+   */
+  private static boolean isPresence(Frame frame) {
+    switch (frame.getType()) {
+      case USERS:
+      case USER_JOINED:
+      case USER_LEFT:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  @Override
+  public User getUser() {
+    return user;
+  }
+
+  @Override
+  public void setUser(User user) {
+    this.user = user;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return connected;
+  }
+
+  @Override
+  public void setConnected(boolean connected) {
+    this.connected = connected;
+  }
+
+  @Override
+  public void sendMessage(Message message) {
+    try {
+      sendFrame(Frame.encode(message, MessageCodec.DEFAULT));
+    } catch (IOException e) {
+      Logger.log(Level.ERROR, "SERVER ERROR", "Failed to encode message: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Keeps a frame for the client, or passes it on to the connection that resumed the session. A
+   * session that has to keep more frames than it can ends, since the client could no longer be
+   * sent everything it missed.
+   *
+   * @param frame The encoded frame to send
+   */
+  @Override
+  public synchronized void sendFrame(Frame frame) {
+    if (resumedBy != null) {
+      resumedBy.sendFrame(frame);
+    } else if (missed.size() < capacity) {
+      missed.add(frame);
+    } else if (!overflowed) {
+      overflowed = true;
+      /* The session is ended by the registry's thread, since this may hold a room's lock */
+      registry.endSoon(this);
+    }
+  }
+
+  @Override
+  public boolean isCompressionEnabled() {
+    return false;
+  }
+
+  /**
+   * Ends the session, as if the client had disconnected.
+   */
+  @Override
+  public void disconnect() {
+    registry.endSoon(this);
+  }
+
+  /**
+   * Ends the session, as if the client had disconnected.
+   */
+  @Override
+  public void connectionLost() {
+    registry.endSoon(this);
+  }
+
+  /**
+   * @return The frames of the session are only sent once it is resumed, so there are none
+   */
+  @Override
+  public long takeUnconfirmedFrames(List<Frame> frames) {
+    return 0;
+  }
+
+  @Override
+  public long getLastActivityNanos() {
+    return detachedNanos;
+  }
+
+  @Override
+  public long getBytesRead() {
+    return 0;
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return 0;
+  }
+
+  @Override
+  public InetAddress getInetAddress() {
+    return address;
+  }
+
+  @Override
+  public int getPort() {
+    return port;
+  }
+}
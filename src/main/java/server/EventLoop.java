@@ -0,0 +1,138 @@
+package server;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import utils.Logger;
+import utils.Logger.Level;
+
+/**
+ * A single threaded event loop that multiplexes many non-blocking client channels over one
+ * {@link Selector}.
+ * <p>
+ * All reads, writes and interest changes of a channel happen on the thread of the event loop that
+ * owns it. Other threads hand work to the event loop through {@link #execute(Runnable)}, which
+ * queues the task and wakes the selector up.
+ *
+ * @author Group4
+ */
+final class EventLoop implements Runnable {
+
+  private final Selector selector;
+  private final Thread thread;
+  /* Tasks submitted by other threads, which are run by the event loop before selecting again */
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Constructor
+   *
+   * @param name The name of the event loop's thread
+   * @throws IOException If the selector could not be opened
+   */
+  EventLoop(String name) throws IOException {
+    this.selector = Selector.open();
+    this.thread = new Thread(this, name);
+  }
+
+  /**
+   * Starts the event loop's thread.
+   */
+  void start() {
+    thread.start();
+  }
+
+  /**
+   * @return True if the calling thread is the event loop's thread, otherwise false
+   */
+  boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Queues a task to be run on the event loop's thread.
+   *
+   * @param task The task to run
+   */
+  void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Hands a newly accepted client channel over to the event loop.
+   *
+   * @param channel The accepted client channel
+   */
+  void register(SocketChannel channel) {
+    execute(() -> {
+      try {
+        channel.configureBlocking(false);
+        /* Batches are small writes, which must not wait for the client's delayed ACK */
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        NioConnection connection = new NioConnection(this, channel);
+        connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+      } catch (IOException e) {
+        Logger.log(Level.WARN, "CONNECTION ERROR", "Couldn't register client channel");
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+        }
+      }
+    });
+  }
+
+  /**
+   * Selects ready channels and dispatches their read and write events until the server stops.
+   */
+  @Override
+  public void run() {
+    while (selector.isOpen()) {
+      try {
+        selector.select();
+        runTasks();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+
+          NioConnection connection = (NioConnection) key.attachment();
+          try {
+            if (key.isValid() && key.isReadable()) {
+              connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.onWritable();
+            }
+          } catch (RuntimeException e) {
+            /* A failure of one connection must not stop the loop of all the others */
+            Logger.log(Level.ERROR, "SERVER ERROR", "Event loop failed to handle %s:%d: %s",
+                connection.getInetAddress(), connection.getPort(), e);
+            connection.connectionLost();
+          }
+        }
+      } catch (IOException e) {
+        Logger.log(Level.ERROR, "SERVER ERROR", "Event loop failed to select: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Runs all the tasks that were submitted by other threads.
+   */
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        Logger.log(Level.ERROR, "SERVER ERROR", "Event loop task failed: " + e);
+      }
+    }
+  }
+}
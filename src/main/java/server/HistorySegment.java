@@ -0,0 +1,308 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import utils.BinaryMessageCodec;
+import utils.Message;
+import utils.MessageFrames;
+
+/**
+ * A single append-only file of the chat history.
+ * <p>
+ * RECORD FORMAT =>
+ * <p>
+ * LENGTH: 4 bytes, the length of the payload
+ * <p>
+ * SEQUENCE: 8 bytes, the sequence number of the message
+ * <p>
+ * TIME: 8 bytes, the time the message was stored at (milliseconds since the epoch)
+ * <p>
+ * PAYLOAD: the message, encoded with the {@link BinaryMessageCodec}
+ * <p>
+ * Every {@link #INDEX_INTERVAL} records, the sequence number and position of a record are added to
+ * a sparse index, so a read can start close to the record it is looking for instead of at the
+ * start of the file. The index is kept in memory and rebuilt when an existing segment is opened.
+ * Segments are named after the sequence number of their first record.
+ *
+ * @author Group4
+ */
+final class HistorySegment {
+
+  static final int RECORD_HEADER_LENGTH = 20;
+  /* The number of records between two entries of the sparse index */
+  private static final int INDEX_INTERVAL = 64;
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final String SUFFIX = ".log";
+  private static final BinaryMessageCodec codec = new BinaryMessageCodec();
+
+  private final Path path;
+  private final FileChannel channel;
+  private final long createdAt;
+  /* The number of bytes and the last sequence number written (only updated by the writer) */
+  private volatile long size = 0;
+  private volatile long lastSequence;
+  private volatile long lastModified;
+  /* The sparse index, the arrays are replaced when they grow (only updated by the writer) */
+  private volatile long[] indexSequences = new long[16];
+  private volatile long[] indexPositions = new long[16];
+  private volatile int indexCount = 0;
+  private int recordsSinceIndex = INDEX_INTERVAL;
+
+  private HistorySegment(Path path, long baseSequence, FileChannel channel, long createdAt) {
+    this.path = path;
+    this.channel = channel;
+    this.createdAt = createdAt;
+    this.lastSequence = baseSequence - 1;
+    this.lastModified = createdAt;
+  }
+
+  /**
+   * Creates a new, empty segment.
+   *
+   * @param directory    The directory of the history
+   * @param baseSequence The sequence number of the first record of the segment
+   * @return The new segment
+   * @throws IOException If the file could not be created
+   */
+  static HistorySegment create(Path directory, long baseSequence) throws IOException {
+    Path path = directory.resolve(String.format("%020d%s", baseSequence, SUFFIX));
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    return new HistorySegment(path, baseSequence, channel, System.currentTimeMillis());
+  }
+
+  /**
+   * Opens an existing segment and rebuilds its index. A partially written record at the end of the
+   * file (e.g. after a crash) is cut off.
+   *
+   * @param path The file of the segment
+   * @return The segment
+   * @throws IOException If the file could not be read
+   */
+  static HistorySegment open(Path path) throws IOException {
+    String name = path.getFileName().toString();
+    long baseSequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    HistorySegment segment = new HistorySegment(path, baseSequence, channel,
+        Files.getLastModifiedTime(path).toMillis());
+    segment.recover();
+    return segment;
+  }
+
+  /**
+   * @param path A file in the directory of the history
+   * @return True if the file is a history segment
+   */
+  static boolean isSegment(Path path) {
+    return path.getFileName().toString().endsWith(SUFFIX);
+  }
+
+  /**
+   * Scans the records of the file to rebuild the index, and cuts off a trailing partial record.
+   */
+  private void recover() throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    long position = 0;
+    long end = channel.size();
+    while (position + RECORD_HEADER_LENGTH <= end) {
+      buffer.clear().limit(RECORD_HEADER_LENGTH);
+      readFully(buffer, position);
+      int length = buffer.getInt(0);
+      long sequence = buffer.getLong(4);
+      if (length < 0 || length > MessageFrames.MAX_PAYLOAD_LENGTH
+          || position + RECORD_HEADER_LENGTH + length > end) {
+        break;
+      }
+      index(sequence, position);
+      lastSequence = sequence;
+      position += RECORD_HEADER_LENGTH + length;
+    }
+
+    if (position < end) {
+      channel.truncate(position);
+    }
+    size = position;
+  }
+
+  /**
+   * Adds a record that is about to be written to the sparse index, if it is due for an entry.
+   *
+   * @param sequence The sequence number of the record
+   * @param position The position of the record in the file
+   */
+  void index(long sequence, long position) {
+    if (++recordsSinceIndex < INDEX_INTERVAL) {
+      return;
+    }
+    recordsSinceIndex = 0;
+
+    long[] sequences = indexSequences;
+    long[] positions = indexPositions;
+    if (indexCount == sequences.length) {
+      long[] largerSequences = new long[sequences.length * 2];
+      long[] largerPositions = new long[positions.length * 2];
+      System.arraycopy(sequences, 0, largerSequences, 0, indexCount);
+      System.arraycopy(positions, 0, largerPositions, 0, indexCount);
+      sequences = largerSequences;
+      positions = largerPositions;
+    }
+    sequences[indexCount] = sequence;
+    positions[indexCount] = position;
+    indexSequences = sequences;
+    indexPositions = positions;
+    indexCount++;
+  }
+
+  /**
+   * Appends a buffer of complete records to the end of the file.
+   *
+   * @param records      The records to append
+   * @param lastSequence The sequence number of the last record in the buffer
+   * @throws IOException If the records could not be written
+   */
+  void append(ByteBuffer records, long lastSequence) throws IOException {
+    long position = size;
+    while (records.hasRemaining()) {
+      position += channel.write(records, position);
+    }
+    this.lastModified = System.currentTimeMillis();
+    this.lastSequence = lastSequence;
+    this.size = position;
+  }
+
+  /**
+   * Reads the stored messages with a sequence number of at least {@code fromSequence}, in order.
+   *
+   * @param fromSequence The sequence number of the first message to read
+   * @param max          The maximum number of messages to read
+   * @param messages     The list the messages are added to
+   * @throws IOException If the file could not be read
+   */
+  void read(long fromSequence, int max, List<Message> messages) throws IOException {
+    long end = size;
+    long position = floorPosition(fromSequence);
+    ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    buffer.limit(0);
+
+    int added = 0;
+    while (added < max && position < end) {
+      if (buffer.remaining() < RECORD_HEADER_LENGTH) {
+        buffer = fill(buffer, position, RECORD_HEADER_LENGTH, end);
+      }
+      int length = buffer.getInt(buffer.position());
+      long sequence = buffer.getLong(buffer.position() + 4);
+      if (buffer.remaining() < RECORD_HEADER_LENGTH + length) {
+        buffer = fill(buffer, position, RECORD_HEADER_LENGTH + length, end);
+      }
+
+      if (sequence >= fromSequence) {
+        int start = buffer.position() + RECORD_HEADER_LENGTH;
+        int limit = buffer.limit();
+        buffer.limit(start + length).position(start);
+        messages.add(codec.decode(buffer));
+        buffer.limit(limit).position(start - RECORD_HEADER_LENGTH);
+        added++;
+      }
+      buffer.position(buffer.position() + RECORD_HEADER_LENGTH + length);
+      position += RECORD_HEADER_LENGTH + length;
+    }
+  }
+
+  /**
+   * Looks up the position of the last indexed record at or before a sequence number.
+   */
+  private long floorPosition(long sequence) {
+    int count = indexCount;
+    long[] sequences = indexSequences;
+    long[] positions = indexPositions;
+    int low = 0;
+    int high = count - 1;
+    long position = 0;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (sequences[middle] <= sequence) {
+        position = positions[middle];
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return position;
+  }
+
+  /**
+   * Refills the read buffer from a file position, so that at least {@code required} bytes are
+   * available.
+   */
+  private ByteBuffer fill(ByteBuffer buffer, long position, int required, long end)
+      throws IOException {
+    if (buffer.capacity() < required) {
+      buffer = ByteBuffer.allocate(required);
+    }
+    buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+    if (buffer.limit() < required) {
+      throw new IOException("Truncated history record in " + path);
+    }
+    readFully(buffer, position);
+    buffer.flip();
+    return buffer;
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of history segment " + path);
+      }
+    }
+  }
+
+  /**
+   * @return The sequence number of the last record written, or one less than the base sequence
+   * number if the segment is empty
+   */
+  long getLastSequence() {
+    return lastSequence;
+  }
+
+  /**
+   * @return The number of bytes written to the segment
+   */
+  long size() {
+    return size;
+  }
+
+  /**
+   * @return The time the segment was created at (milliseconds since the epoch)
+   */
+  long getCreatedAt() {
+    return createdAt;
+  }
+
+  /**
+   * @return The time the last record was written at (milliseconds since the epoch)
+   */
+  long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * Closes the segment's file.
+   */
+  void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Closes and deletes the segment's file.
+   */
+  void delete() throws IOException {
+    channel.close();
+    Files.deleteIfExists(path);
+  }
+}
@@ -0,0 +1,396 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import utils.BinaryMessageCodec;
+import utils.Logger;
+import utils.Logger.Level;
+import utils.Message;
+import utils.MessageCodec;
+
+/**
+ * A persistent, append-only history of chat messages, stored in a directory of
+ * {@link HistorySegment} files.
+ * <p>
+ * Appending a message only assigns it the next sequence number and adds it to a bounded queue, so
+ * the broadcast that stores it never waits for the disk. A background writer encodes the queued
+ * messages and appends them to the newest segment in batches. A new segment is started once the
+ * newest one reaches the configured size or age, and the oldest segments are deleted once the
+ * history exceeds the configured total size or age. If the queue is full, the message is not
+ * stored and counted as dropped. Reads run on a reader thread of their own, since they may wait for
+ * the writer and the disk.
+ * <p>
+ * Sequence numbers start at 1 and continue where the history left off after a restart.
+ *
+ * @author Group4
+ */
+final class HistoryStore {
+
+  /* The longest time a read waits for the writer to store the messages appended before it */
+  private static final long COMMIT_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int MAX_BATCH_SIZE = 256;
+  /* How long closing the history waits for the writer to store the queued messages */
+  private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+  /* Queued after the last message when the history is closed, to stop the writer */
+  private static final Entry CLOSE = new Entry(0, null);
+  private static final BinaryMessageCodec codec = new BinaryMessageCodec();
+
+  private final Path directory;
+  private final long segmentBytes;
+  private final long segmentMillis;
+  private final long retainBytes;
+  private final long retainMillis;
+  /* The segments from oldest to newest, the newest one is written to */
+  private final CopyOnWriteArrayList<HistorySegment> segments = new CopyOnWriteArrayList<>();
+  private final BlockingQueue<Entry> pending;
+  /* The sequence number of the last appended message */
+  private final AtomicLong lastAppended;
+  /* Makes assigning a sequence number and queueing the message a single step */
+  private final ReentrantLock appendLock = new ReentrantLock();
+  private final LongAdder dropped = new LongAdder();
+  /* Indicates that no more messages are stored (guarded by the append lock) */
+  private boolean closed = false;
+  private final Thread writer;
+  /* Reads the history for the callers, one read at a time */
+  private final ExecutorService reader = Executors.newSingleThreadExecutor(task -> {
+    Thread thread = new Thread(task, "history-reader");
+    thread.setDaemon(true);
+    return thread;
+  });
+  /* Signals readers waiting for the writer to store appended messages */
+  private final ReentrantLock commitLock = new ReentrantLock();
+  private final Condition committed = commitLock.newCondition();
+  /* The encoded records of the batch being written (writer only) */
+  private ByteBuffer records = ByteBuffer.allocate(64 * 1024);
+
+  /**
+   * A message waiting to be written.
+   */
+  private static final class Entry {
+
+    final long sequence;
+    final long time;
+    final Message message;
+
+    Entry(long sequence, Message message) {
+      this.sequence = sequence;
+      this.time = System.currentTimeMillis();
+      this.message = message;
+    }
+  }
+
+  /**
+   * Opens (or creates) the history in a directory and starts its writer.
+   *
+   * @param directory     The directory of the segment files
+   * @param segmentBytes  The size at which a new segment is started
+   * @param segmentMillis The age at which a new segment is started
+   * @param retainBytes   The total size of the segments that are kept
+   * @param retainMillis  How long a segment is kept after its last message was written
+   * @param queueCapacity The number of messages that can wait for the writer
+   * @throws IOException If the directory or its segments could not be opened
+   */
+  HistoryStore(Path directory, long segmentBytes, long segmentMillis, long retainBytes,
+      long retainMillis, int queueCapacity) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.segmentMillis = segmentMillis;
+    this.retainBytes = retainBytes;
+    this.retainMillis = retainMillis;
+    this.pending = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+
+    Files.createDirectories(directory);
+    List<Path> files;
+    try (Stream<Path> listing = Files.list(directory)) {
+      files = listing.filter(HistorySegment::isSegment).sorted(Comparator.naturalOrder())
+          .collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      segments.add(HistorySegment.open(file));
+    }
+
+    long last = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).getLastSequence();
+    if (segments.isEmpty()) {
+      segments.add(HistorySegment.create(directory, last + 1));
+    }
+    this.lastAppended = new AtomicLong(last);
+
+    this.writer = new Thread(this::writeEntries, "history-writer");
+    writer.setDaemon(true);
+    writer.start();
+    /* Store the queued messages and close the segments when the server shuts down */
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close, "history-close"));
+  }
+
+  /**
+   * Opens the history configured in the {@link ServerConfig}.
+   *
+   * @return The history, or null if the history is disabled or could not be opened
+   */
+  static HistoryStore fromConfig() {
+    if (ServerConfig.HISTORY_DIR.isEmpty()) {
+      return null;
+    }
+
+    try {
+      return new HistoryStore(Paths.get(ServerConfig.HISTORY_DIR),
+          ServerConfig.HISTORY_SEGMENT_BYTES,
+          TimeUnit.MINUTES.toMillis(ServerConfig.HISTORY_SEGMENT_MINUTES),
+          ServerConfig.HISTORY_RETAIN_BYTES,
+          TimeUnit.HOURS.toMillis(ServerConfig.HISTORY_RETAIN_HOURS),
+          ServerConfig.HISTORY_QUEUE_CAPACITY);
+    } catch (IOException | RuntimeException e) {
+      Logger.log(Level.ERROR, "SERVER ERROR", "Failed to open the chat history: %s",
+          e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Adds a message to the history without waiting for the disk. Callers that need the sequence
+   * numbers to follow the order of delivery must append while holding the lock that orders the
+   * delivery.
+   *
+   * @param message The message to store
+   * @return The sequence number of the message, or -1 if the writer could not keep up and the
+   * message was dropped, or the history is closed
+   */
+  long append(Message message) {
+    appendLock.lock();
+    try {
+      if (closed) {
+        return -1;
+      }
+      long sequence = lastAppended.get() + 1;
+      if (!pending.offer(new Entry(sequence, message))) {
+        dropped.increment();
+        return -1;
+      }
+      lastAppended.set(sequence);
+      return sequence;
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * Reads the most recent messages up to a sequence number on the history's reader thread, so the
+   * caller neither waits for the writer nor for the disk. Messages that were appended, but are not
+   * stored yet, are waited for (for a short time).
+   *
+   * @param count The maximum number of messages to read
+   * @param last  The sequence number of the last message to read
+   * @return The messages, from oldest to newest, once they are read
+   */
+  CompletableFuture<List<Message>> readLast(int count, long last) {
+    return CompletableFuture.supplyAsync(() -> read(Math.max(0, last - count), last), reader);
+  }
+
+  /**
+   * Reads the messages between two sequence numbers.
+   *
+   * @param after The sequence number of the last message that should not be read
+   * @param last  The sequence number of the last message to read
+   * @return The messages, from oldest to newest
+   */
+  private List<Message> read(long after, long last) {
+    awaitCommitted(last);
+
+    int max = (int) (last - after);
+    List<Message> messages = new ArrayList<>();
+    for (HistorySegment segment : segments) {
+      if (messages.size() >= max) {
+        break;
+      }
+      if (segment.getLastSequence() > after) {
+        try {
+          segment.read(after + 1, max - messages.size(), messages);
+        } catch (IOException e) {
+          /* The segment may have been deleted by the retention while it was read */
+          Logger.log(Level.WARN, "HISTORY", "Failed to read the chat history: %s",
+              e.getMessage());
+        }
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * @return The sequence number of the last appended message
+   */
+  long getLastSequence() {
+    return lastAppended.get();
+  }
+
+  /**
+   * @return The number of messages that were not stored because the writer could not keep up
+   */
+  long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /**
+   * Stores the messages that are still queued, stops the writer and closes the segments. Messages
+   * appended afterwards are not stored.
+   */
+  void close() {
+    appendLock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    } finally {
+      appendLock.unlock();
+    }
+
+    try {
+      pending.put(CLOSE);
+      writer.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    reader.shutdownNow();
+    for (HistorySegment segment : segments) {
+      try {
+        segment.close();
+      } catch (IOException e) {
+        Logger.log(Level.WARN, "HISTORY", "Failed to close a history segment: %s",
+            e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Waits until the writer has stored every message up to a sequence number, or the timeout
+   * expires.
+   */
+  private void awaitCommitted(long sequence) {
+    long remaining = COMMIT_TIMEOUT_NANOS;
+    commitLock.lock();
+    try {
+      while (newest().getLastSequence() < sequence && remaining > 0) {
+        remaining = committed.awaitNanos(remaining);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      commitLock.unlock();
+    }
+  }
+
+  private HistorySegment newest() {
+    return segments.get(segments.size() - 1);
+  }
+
+  /**
+   * Writes the queued messages in batches, until the history is closed.
+   */
+  private void writeEntries() {
+    List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    boolean closing = false;
+    while (!closing) {
+      try {
+        batch.add(pending.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      pending.drainTo(batch, MAX_BATCH_SIZE - 1);
+      /* Nothing is queued after the close marker, so it ends the batch */
+      if (batch.get(batch.size() - 1) == CLOSE) {
+        batch.remove(batch.size() - 1);
+        closing = true;
+      }
+
+      try {
+        if (!batch.isEmpty()) {
+          write(batch);
+        }
+      } catch (IOException e) {
+        dropped.add(batch.size());
+        Logger.log(Level.ERROR, "SERVER ERROR", "Failed to write the chat history: %s",
+            e.getMessage());
+      }
+      batch.clear();
+
+      commitLock.lock();
+      try {
+        committed.signalAll();
+      } finally {
+        commitLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Encodes a batch of messages into records and appends them to the newest segment, starting a
+   * new segment first if the newest one is full or too old.
+   */
+  private void write(List<Entry> batch) throws IOException {
+    HistorySegment segment = newest();
+    long now = System.currentTimeMillis();
+    if (segment.size() > 0
+        && (segment.size() >= segmentBytes || now - segment.getCreatedAt() >= segmentMillis)) {
+      segment = HistorySegment.create(directory, batch.get(0).sequence);
+      segments.add(segment);
+      applyRetention(now);
+    }
+
+    records.clear();
+    long position = segment.size();
+    for (Entry entry : batch) {
+      int start = records.position();
+      records = MessageCodec.ensureRemaining(records, HistorySegment.RECORD_HEADER_LENGTH);
+      records.position(start + HistorySegment.RECORD_HEADER_LENGTH);
+      records = codec.encode(entry.message, records);
+      int length = records.position() - start - HistorySegment.RECORD_HEADER_LENGTH;
+      records.putInt(start, length);
+      records.putLong(start + 4, entry.sequence);
+      records.putLong(start + 12, entry.time);
+
+      segment.index(entry.sequence, position + start);
+    }
+    records.flip();
+    segment.append(records, batch.get(batch.size() - 1).sequence);
+  }
+
+  /**
+   * Deletes the oldest segments while the history is larger or older than allowed. The newest
+   * segment is always kept.
+   */
+  private void applyRetention(long now) throws IOException {
+    long total = 0;
+    for (HistorySegment segment : segments) {
+      total += segment.size();
+    }
+
+    while (segments.size() > 1) {
+      HistorySegment oldest = segments.get(0);
+      if (total <= retainBytes && now - oldest.getLastModified() <= retainMillis) {
+        break;
+      }
+      segments.remove(0);
+      total -= oldest.size();
+      oldest.delete();
+    }
+  }
+}
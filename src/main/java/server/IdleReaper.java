@@ -0,0 +1,206 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import utils.Logger;
+import utils.Logger.Level;
+import utils.Message;
+import utils.Message.MessageType;
+
+/**
+ * Finds the connections that have gone quiet, pings them, and disconnects the ones that do not
+ * answer, so that half-open connections stop being broadcast targets.
+ * <p>
+ * The connections are kept in a hashed timing wheel: a ring of {@link #WHEEL_SIZE} buckets, one
+ * per tick of {@code chat.idle.tickMillis}, which a single thread advances by one bucket every
+ * tick. Every registered connection has exactly one timeout in the wheel, in the bucket of the
+ * tick its idle period would end at (timeouts further away than one turn of the wheel wait for
+ * the remaining turns in their bucket). Receiving a message only updates the connection's
+ * activity time, the timeout is not moved until its bucket expires, when it is put back into the
+ * bucket of the new deadline. So a message costs a single write, a connection costs one timeout
+ * object, and a tick only looks at the timeouts that are due.
+ * <p>
+ * A connection without activity for {@code chat.idle.timeoutMillis} is sent a
+ * {@link MessageType#PING}, which clients answer with a {@link MessageType#PONG}. A connection
+ * that is still silent {@code chat.idle.pongMillis} later is disconnected. The timeout of a
+ * connection that was closed is dropped when its bucket expires.
+ *
+ * @author Group4
+ */
+final class IdleReaper {
+
+  /* The number of buckets of the wheel, a power of two */
+  static final int WHEEL_SIZE = 512;
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+  /* The number of pings sent and connections reaped, across all connections */
+  private static final LongAdder pings = new LongAdder();
+  private static final LongAdder reaped = new LongAdder();
+
+  private final long tickNanos;
+  /* The silence after which a connection is pinged, and the time it has to answer */
+  private final long idleNanos;
+  private final long pongNanos;
+  /* The timeouts of each tick, added by any thread and expired by the wheel's thread */
+  private final List<ConcurrentLinkedQueue<Timeout>> wheel = new ArrayList<>(WHEEL_SIZE);
+  /* The time of tick 0 */
+  private final long startNanos = System.nanoTime();
+  /* The last tick whose bucket has been expired (only written by the wheel's thread) */
+  private volatile long tick = 0;
+
+  /**
+   * Constructor
+   *
+   * @param tickMillis The length of a tick of the wheel, which is the precision of the timeouts
+   * @param idleMillis The silence after which a connection is pinged
+   * @param pongMillis The time a pinged connection has to answer before it is disconnected
+   */
+  IdleReaper(long tickMillis, long idleMillis, long pongMillis) {
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    this.pongNanos = TimeUnit.MILLISECONDS.toNanos(pongMillis);
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      wheel.add(new ConcurrentLinkedQueue<>());
+    }
+  }
+
+  /**
+   * @return The reaper configured by the {@code chat.idle.*} properties and started, or null if
+   * idle connections are not reaped
+   * @see ServerConfig
+   */
+  static IdleReaper fromConfig() {
+    if (ServerConfig.IDLE_TIMEOUT_MILLIS <= 0) {
+      return null;
+    }
+    IdleReaper reaper = new IdleReaper(ServerConfig.IDLE_TICK_MILLIS,
+        ServerConfig.IDLE_TIMEOUT_MILLIS, ServerConfig.IDLE_PONG_MILLIS);
+    Thread thread = new Thread(reaper::run, "idle-reaper");
+    thread.setDaemon(true);
+    thread.start();
+    return reaper;
+  }
+
+  /**
+   * Starts watching a registered connection. This method can be called from any thread.
+   *
+   * @param client The connection
+   */
+  void watch(ClientConnection client) {
+    schedule(new Timeout(client), client.getLastActivityNanos() + idleNanos);
+  }
+
+  /**
+   * Adds a timeout to the bucket of the tick its deadline falls into. A deadline that is already
+   * due goes into the next bucket.
+   */
+  private void schedule(Timeout timeout, long deadlineNanos) {
+    long deadlineTick = Math.max(tick + 1,
+        (deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+    timeout.deadlineTick = deadlineTick;
+    wheel.get((int) (deadlineTick & WHEEL_MASK)).offer(timeout);
+  }
+
+  /**
+   * Advances the wheel by one bucket every tick, until the server stops.
+   */
+  private void run() {
+    List<Timeout> due = new ArrayList<>();
+    while (true) {
+      long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          return;
+        }
+        continue;
+      }
+
+      long current = tick + 1;
+      ConcurrentLinkedQueue<Timeout> bucket = wheel.get((int) (current & WHEEL_MASK));
+      Timeout timeout;
+      while ((timeout = bucket.poll()) != null) {
+        due.add(timeout);
+      }
+      tick = current;
+      long now = System.nanoTime();
+      for (Timeout expired : due) {
+        if (expired.deadlineTick > current) {
+          /* Due in a later turn of the wheel */
+          bucket.offer(expired);
+        } else {
+          expire(expired, now);
+        }
+      }
+      due.clear();
+    }
+  }
+
+  /**
+   * Handles a timeout that is due: the connection is either active again, due to be pinged, or
+   * due to be disconnected.
+   */
+  private void expire(Timeout timeout, long now) {
+    ClientConnection client = timeout.client;
+    if (!client.isConnected()) {
+      return;
+    }
+
+    long lastActivity = client.getLastActivityNanos();
+    if (timeout.pinged && lastActivity - timeout.pingNanos >= 0) {
+      /* The client answered the ping, or sent something else */
+      timeout.pinged = false;
+    }
+    if (now - lastActivity < idleNanos) {
+      schedule(timeout, lastActivity + idleNanos);
+    } else if (!timeout.pinged) {
+      timeout.pinged = true;
+      timeout.pingNanos = now;
+      pings.increment();
+      client.sendMessage(new Message(MessageType.PING, "", "", ""));
+      schedule(timeout, now + pongNanos);
+    } else {
+      reaped.increment();
+      String username = client.getUser() == null ? "unregistered" : client.getUser().getUsername();
+      Logger.log(Level.WARN, "IDLE CLIENT", "Disconnecting '%s': no answer to a ping within %d ms",
+          username, TimeUnit.NANOSECONDS.toMillis(pongNanos));
+      client.connectionLost();
+    }
+  }
+
+  /**
+   * @return The number of pings sent to idle connections
+   */
+  static long pings() {
+    return pings.sum();
+  }
+
+  /**
+   * @return The number of idle connections that were disconnected
+   */
+  static long reaped() {
+    return reaped.sum();
+  }
+
+  /**
+   * The timeout of a single connection.
+   */
+  private static final class Timeout {
+
+    private final ClientConnection client;
+    /* The tick at which the timeout expires */
+    private volatile long deadlineTick;
+    /* Indicates that the connection was pinged and has not been active since, and when it was
+    pinged (wheel thread only) */
+    private boolean pinged = false;
+    private long pingNanos;
+
+    private Timeout(ClientConnection client) {
+      this.client = client;
+    }
+  }
+}
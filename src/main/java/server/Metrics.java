@@ -0,0 +1,160 @@
+package server;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import utils.LatencyHistogram;
+import utils.Logger;
+import utils.Message.MessageType;
+
+/**
+ * Counters and latency histograms of the server's hot paths.
+ * <p>
+ * Every counter is a {@link LongAdder} and every histogram a lock-free {@link LatencyHistogram}, so
+ * recording never blocks, even when many connections record at the same time. The bytes sent and
+ * received are counted by the connections themselves and only summed up when a snapshot is taken.
+ * Snapshots are published by the {@link StatsReporter}.
+ *
+ * @author Group4
+ */
+final class Metrics {
+
+  /* The messages received from clients and the frames written to clients, per message type */
+  private static final LongAdder[] received = newCounters(MessageType.values().length);
+  private static final LongAdder[] sent = newCounters(MessageType.values().length);
+  /* The bytes of connections that have been closed, which are no longer counted by a connection */
+  private static final LongAdder closedBytesRead = new LongAdder();
+  private static final LongAdder closedBytesWritten = new LongAdder();
+
+  /* The time it takes to encode a broadcast and queue it for every recipient */
+  static final LatencyHistogram BROADCAST = new LatencyHistogram();
+  /* The time it takes to encode a room message and queue it for every member of the room */
+  static final LatencyHistogram ROOM = new LatencyHistogram();
+  /* The time it takes to route a whisper to its receiver */
+  static final LatencyHistogram WHISPER = new LatencyHistogram();
+  /* The time it takes to register a client, including the presence updates */
+  static final LatencyHistogram REGISTRATION = new LatencyHistogram();
+
+  private static final long startTime = System.nanoTime();
+
+  private Metrics() {
+  }
+
+  private static LongAdder[] newCounters(int count) {
+    LongAdder[] counters = new LongAdder[count];
+    for (int i = 0; i < count; i++) {
+      counters[i] = new LongAdder();
+    }
+    return counters;
+  }
+
+  /**
+   * Counts a message received from a client.
+   *
+   * @param type The type of the message
+   */
+  static void messageReceived(MessageType type) {
+    received[type.ordinal()].increment();
+  }
+
+  /**
+   * Counts a frame written to a client.
+   *
+   * @param type The type of the message in the frame
+   */
+  static void messageSent(MessageType type) {
+    sent[type.ordinal()].increment();
+  }
+
+  /**
+   * Keeps the bytes sent and received by a connection that is being closed in the totals.
+   *
+   * @param connection The closed connection
+   */
+  static void connectionClosed(ClientConnection connection) {
+    closedBytesRead.add(connection.getBytesRead());
+    closedBytesWritten.add(connection.getBytesWritten());
+  }
+
+  /**
+   * Creates a plain text snapshot of all the metrics, with one {@code name value} pair per line.
+   *
+   * @param connections The currently connected clients
+   * @return The snapshot
+   */
+  static String snapshot(Collection<ClientConnection> connections) {
+    StringBuilder snapshot = new StringBuilder(4096);
+    line(snapshot, "uptime_seconds",
+        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime));
+    line(snapshot, "connections", connections.size());
+    line(snapshot, "rooms", Server.getRooms().count());
+
+    for (MessageType type : MessageType.values()) {
+      line(snapshot, "messages_received{type=\"" + type + "\"}", received[type.ordinal()].sum());
+    }
+    for (MessageType type : MessageType.values()) {
+      line(snapshot, "messages_sent{type=\"" + type + "\"}", sent[type.ordinal()].sum());
+    }
+    for (OutboundQueue.Outcome outcome : OutboundQueue.Outcome.values()) {
+      line(snapshot, "outbound_frames{outcome=\"" + outcome + "\"}", OutboundQueue.count(outcome));
+    }
+    line(snapshot, "slow_clients_downgraded", OutboundQueue.downgrades());
+    line(snapshot, "idle_pings_sent", IdleReaper.pings());
+    line(snapshot, "idle_clients_reaped", IdleReaper.reaped());
+    line(snapshot, "sessions_detached", SessionRegistry.detachments());
+    line(snapshot, "sessions_resumed", SessionRegistry.resumes());
+    line(snapshot, "sessions_expired", SessionRegistry.expiries());
+    for (OutboundQueue.EvictionReason reason : OutboundQueue.EvictionReason.values()) {
+      line(snapshot, "slow_clients_evicted{reason=\"" + reason + "\"}",
+          OutboundQueue.evictions(reason));
+    }
+
+    histogram(snapshot, "broadcast", BROADCAST);
+    histogram(snapshot, "room", ROOM);
+    histogram(snapshot, "whisper", WHISPER);
+    histogram(snapshot, "registration", REGISTRATION);
+
+    long bytesRead = closedBytesRead.sum();
+    long bytesWritten = closedBytesWritten.sum();
+    StringBuilder perConnection = new StringBuilder();
+    for (ClientConnection connection : connections) {
+      String username = connection.getUser() == null ? "" : connection.getUser().getUsername();
+      long read = connection.getBytesRead();
+      long written = connection.getBytesWritten();
+      bytesRead += read;
+      bytesWritten += written;
+      line(perConnection, "connection_bytes_read{user=\"" + username + "\"}", read);
+      line(perConnection, "connection_bytes_written{user=\"" + username + "\"}", written);
+    }
+    line(snapshot, "log_messages_dropped", Logger.getDroppedCount());
+    Cluster cluster = Server.getCluster();
+    if (cluster != null) {
+      line(snapshot, "cluster_peers_connected", cluster.getConnectedPeers());
+      line(snapshot, "cluster_remote_users", cluster.getRemoteUsernames().size());
+    }
+    HistoryStore history = Server.getHistory();
+    if (history != null) {
+      line(snapshot, "history_last_sequence", history.getLastSequence());
+      line(snapshot, "history_messages_dropped", history.getDroppedCount());
+    }
+    line(snapshot, "bytes_read", bytesRead);
+    line(snapshot, "bytes_written", bytesWritten);
+    return snapshot.append(perConnection).toString();
+  }
+
+  /**
+   * Adds the count and the p50, p99 and p99.9 latencies (in microseconds) of a histogram.
+   */
+  private static void histogram(StringBuilder snapshot, String operation,
+      LatencyHistogram histogram) {
+    String name = "latency_us{op=\"" + operation + "\",quantile=\"";
+    line(snapshot, "latency_count{op=\"" + operation + "\"}", histogram.getCount());
+    line(snapshot, name + "0.5\"}", histogram.getPercentile(50) / 1_000.0);
+    line(snapshot, name + "0.99\"}", histogram.getPercentile(99) / 1_000.0);
+    line(snapshot, name + "0.999\"}", histogram.getPercentile(99.9) / 1_000.0);
+  }
+
+  private static void line(StringBuilder snapshot, String name, Object value) {
+    snapshot.append(name).append(' ').append(value).append('\n');
+  }
+}
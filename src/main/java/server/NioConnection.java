@@ -0,0 +1,483 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import utils.Frame;
+import utils.FrameCompressor;
+import utils.Logger;
+import utils.Logger.Level;
+import utils.MalformedMessageException;
+import utils.Message;
+import utils.Message.MessageType;
+import utils.MessageCodec;
+import utils.MessageFrames;
+import utils.User;
+
+/**
+ * Represents a client connection handled by the non-blocking engine.
+ * <p>
+ * Incoming bytes are accumulated in a read buffer until a complete frame has arrived, at which point
+ * the frame is decoded and handled exactly like {@link ServerThread} handles it. Outgoing frames are
+ * added to a bounded {@link OutboundQueue} and written by the owning {@link EventLoop} whenever the
+ * channel is writable, so sending a message never blocks the calling thread.
+ *
+ * @author Group4
+ */
+final class NioConnection implements ClientConnection {
+
+  /* The initial size of the read buffer, which grows when a larger frame arrives */
+  private static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
+
+  private final EventLoop eventLoop;
+  private final SocketChannel channel;
+  private SelectionKey key;
+  private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+  /* Frames waiting to be written to the channel */
+  private final OutboundQueue outbound = new OutboundQueue();
+  /* The frames last handed to the channel, or null if sessions can't be resumed */
+  private final RecentFrames recent = RecentFrames.fromConfig();
+  /* The batch of frames currently being written with a gathering write (event loop only) */
+  private final ByteBuffer[] writeBatch = new ByteBuffer[ServerConfig.BATCH_MAX_FRAMES];
+  /* The index of the first unfinished buffer and the number of buffers in the write batch */
+  private int batchStart = 0;
+  private int batchEnd = 0;
+  /* Indicates that a flush has been queued on the event loop or is waiting for OP_WRITE */
+  private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  /* Indicates that the loss of the connection has been handled */
+  private final AtomicBoolean lost = new AtomicBoolean(false);
+  /* Close the channel once all pending frames have been written (rejected registrations) */
+  private volatile boolean closeWhenFlushed = false;
+  /* Indicates that the username is being reserved with the cluster (event loop only) */
+  private boolean reserving = false;
+  /* Compresses and decompresses the frames, or null if the client did not ask for compression */
+  private volatile FrameCompressor compressor;
+  private volatile User user;
+  /* Indicates the status of a registered connection */
+  private volatile boolean isConnected = false;
+  /* The time the last bytes were read from the channel (only updated by the event loop) */
+  private volatile long lastActivityNanos = System.nanoTime();
+  /* The number of bytes read from and written to the channel (only updated by the event loop) */
+  private volatile long bytesRead = 0;
+  private volatile long bytesWritten = 0;
+
+  /**
+   * Constructor
+   *
+   * @param eventLoop The event loop that owns the channel
+   * @param channel   The client's (non-blocking) channel
+   */
+  NioConnection(EventLoop eventLoop, SocketChannel channel) {
+    this.eventLoop = eventLoop;
+    this.channel = channel;
+  }
+
+  /**
+   * @param key The key the channel was registered with
+   */
+  void setKey(SelectionKey key) {
+    this.key = key;
+  }
+
+  /**
+   * Reads the available bytes from the channel and handles every complete frame received.
+   */
+  void onReadable() {
+    try {
+      int read = channel.read(readBuffer);
+      if (read < 0) {
+        connectionLost();
+        return;
+      }
+      bytesRead += read;
+      lastActivityNanos = System.nanoTime();
+
+      readBuffer.flip();
+      int required = 0;
+      while (readBuffer.remaining() >= MessageFrames.HEADER_LENGTH) {
+        int header = readBuffer.getInt(readBuffer.position());
+        int length = MessageFrames.payloadLength(header);
+        MessageFrames.checkPayloadLength(length);
+        if (readBuffer.remaining() < MessageFrames.HEADER_LENGTH + length) {
+          required = MessageFrames.HEADER_LENGTH + length;
+          break;
+        }
+
+        /* Limit the buffer to the payload while it is decoded */
+        int start = readBuffer.position() + MessageFrames.HEADER_LENGTH;
+        int limit = readBuffer.limit();
+        readBuffer.limit(start + length).position(start);
+        onFrame(header, readBuffer);
+        readBuffer.limit(limit).position(start + length);
+        if (closed.get()) {
+          return;
+        }
+      }
+      readBuffer.compact();
+
+      /* Grow the read buffer if the next frame does not fit into it */
+      if (required > readBuffer.capacity()) {
+        ByteBuffer larger = ByteBuffer.allocate(required);
+        readBuffer.flip();
+        larger.put(readBuffer);
+        readBuffer = larger;
+      }
+    } catch (IOException e) {
+      connectionLost();
+    }
+  }
+
+  /**
+   * Continues writing the pending frames once the channel becomes writable again.
+   */
+  void onWritable() {
+    flush();
+  }
+
+  /**
+   * Decodes and handles a single frame. The first message of a connection is the registration
+   * request, every message after that is handled by {@link Server#handleMessage}.
+   */
+  private void onFrame(int header, ByteBuffer payload) {
+    try {
+      if (MessageFrames.isCompressed(header)) {
+        if (compressor == null) {
+          throw new MalformedMessageException("Received a compressed frame without negotiating it");
+        }
+        payload = compressor.inflate(payload);
+      }
+      Message message = MessageCodec.DEFAULT.decode(payload);
+      if (message == null) {
+        String username = user == null ? "unregistered" : user.getUsername();
+        throw new NullPointerException(
+            String.format("User '%s' sent null as an object", username));
+      }
+      Metrics.messageReceived(message.getType());
+
+      if (user == null && reserving) {
+        Logger.log(Level.WARN, "CLIENT ERROR", "Message sent before the registration completed");
+      } else if (user == null) {
+        if (FrameCompressor.ENABLED && FrameCompressor.NAME.equals(message.getReceiver())) {
+          compressor = new FrameCompressor();
+        }
+        if (message.getType() == MessageType.RESUME) {
+          completeRegistration(message.getSender(), Server.resumeClient(this, message));
+        } else {
+          validateUsername(message.getBody());
+        }
+      } else {
+        Server.handleMessage(this, message);
+      }
+    } catch (NullPointerException | IllegalStateException e) {
+      Logger.log(Level.WARN, "CLIENT ERROR", e.getMessage());
+    } catch (MalformedMessageException e) {
+      Logger.log(Level.WARN, "DATA CORRUPTION", "Failed to decode a message frame: %s",
+          e.getMessage());
+    }
+  }
+
+  /**
+   * Registers the client if the username is valid, otherwise notifies the client of the
+   * validation error and closes the connection. In a cluster, the event loop does not wait while
+   * the username is reserved, the registration is completed on the event loop once it is.
+   *
+   * @param username The username provided by the client
+   */
+  private void validateUsername(String username) {
+    String errorMessage = Server.checkUsername(username);
+    if (errorMessage != null) {
+      completeRegistration(username, errorMessage);
+      return;
+    }
+
+    CompletableFuture<String> reservation = Server.reserveUsername(username);
+    if (reservation.isDone()) {
+      completeRegistration(username, reservation.join());
+    } else {
+      reserving = true;
+      reservation.thenAccept(error -> eventLoop.execute(() -> {
+        reserving = false;
+        if (closed.get()) {
+          if (error == null) {
+            Server.releaseUsername(username);
+          }
+        } else {
+          completeRegistration(username, error);
+        }
+      }));
+    }
+  }
+
+  /**
+   * Registers the client, or notifies the client of the validation error and closes the
+   * connection. A client whose session was resumed is already registered.
+   *
+   * @param username     The username provided by the client
+   * @param errorMessage The reason the username is invalid, or null if it is valid
+   */
+  private void completeRegistration(String username, String errorMessage) {
+    if (errorMessage == null && user == null) {
+      errorMessage = Server.registerClient(this, username);
+    }
+    if (errorMessage != null) {
+      closeWhenFlushed = true;
+      sendMessage(new Message(MessageType.INVALID_USERNAME, "", "", errorMessage));
+    }
+  }
+
+  /**
+   * Queues a message to be written by the event loop. This method can be called from any thread.
+   *
+   * @param message The message to send
+   */
+  @Override
+  public void sendMessage(Message message) {
+    if (closed.get()) {
+      return;
+    }
+
+    try {
+      sendFrame(Frame.encode(message, MessageCodec.DEFAULT));
+    } catch (IOException e) {
+      Logger.log(Level.ERROR, "SERVER ERROR", "Failed to encode message: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Queues an encoded frame to be written by the event loop. This method can be called from any
+   * thread.
+   *
+   * @param frame The encoded frame to send
+   */
+  @Override
+  public void sendFrame(Frame frame) {
+    if (closed.get()) {
+      return;
+    }
+
+    if (!outbound.offer(frame)) {
+      String username = user == null ? "unregistered" : user.getUsername();
+      Logger.log(Level.WARN, "SLOW CLIENT", "Evicting '%s': %s", username,
+          outbound.getEvictionReason());
+      /* Resuming the session would only queue the same backlog again */
+      connectionLost(false);
+      return;
+    }
+
+    if (flushScheduled.compareAndSet(false, true)) {
+      if (eventLoop.inEventLoop()) {
+        flush();
+      } else {
+        eventLoop.execute(this::flush);
+      }
+    }
+  }
+
+  /**
+   * Writes as many pending frames as the channel accepts. Queued frames are gathered into batches
+   * of up to {@link ServerConfig#BATCH_MAX_FRAMES} buffers, each written with a single gathering
+   * write. If the socket's send buffer fills up, the event loop is asked to call
+   * {@link #onWritable()} once it drains. Must only be called on the event loop's thread.
+   */
+  private void flush() {
+    if (closed.get() || !key.isValid()) {
+      return;
+    }
+
+    try {
+      do {
+        while (batchStart < batchEnd || fillWriteBatch()) {
+          bytesWritten += channel.write(writeBatch, batchStart, batchEnd - batchStart);
+          while (batchStart < batchEnd && !writeBatch[batchStart].hasRemaining()) {
+            writeBatch[batchStart++] = null;
+          }
+          if (batchStart < batchEnd) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+          }
+        }
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        flushScheduled.set(false);
+        /* Frames queued after the last peek, but before the flag was cleared, are written now */
+      } while (!outbound.isEmpty() && flushScheduled.compareAndSet(false, true));
+
+      if (outbound.takeRestored() && isConnected()) {
+        /* The presence updates dropped while the client was downgraded are replaced */
+        Server.sendUsersSnapshot(this);
+      }
+      if (closeWhenFlushed) {
+        connectionLost();
+      }
+    } catch (IOException e) {
+      /* The client may have said goodbye before closing, so its last frames are read first */
+      eventLoop.execute(this::readBeforeLost);
+    }
+  }
+
+  /**
+   * Handles the frames the client sent before a write to it failed, then handles the lost
+   * connection. A client that sent a DISCONNECTION message and closed its socket while frames were
+   * still on their way to it ends its session, instead of leaving it to be resumed.
+   */
+  private void readBeforeLost() {
+    if (!closed.get() && key.isValid()) {
+      onReadable();
+    }
+    connectionLost();
+  }
+
+  /**
+   * Moves queued frames into the (empty) write batch.
+   *
+   * @return True if at least one frame was added to the batch, otherwise false
+   */
+  private boolean fillWriteBatch() {
+    batchStart = 0;
+    batchEnd = 0;
+    Frame frame;
+    FrameCompressor current = compressor;
+    while (batchEnd < writeBatch.length && (frame = outbound.poll()) != null) {
+      Metrics.messageSent(frame.getType());
+      if (recent != null) {
+        recent.add(frame);
+      }
+      if (current != null) {
+        frame = current.compress(frame);
+      }
+      writeBatch[batchEnd++] = frame.asByteBuffer();
+    }
+    return batchEnd > 0;
+  }
+
+  /**
+   * Handles a connection that was closed by the client or failed. The session of a registered
+   * client is kept for the client to resume, or the client is removed and the remaining clients
+   * are notified. This method can be called from any thread.
+   */
+  @Override
+  public void connectionLost() {
+    connectionLost(true);
+  }
+
+  /**
+   * Handles a connection that was closed by the client, failed or was closed by the server. The
+   * channel is only closed on the event loop's thread, since cancelling its key while the loop
+   * writes to it would fail the write.
+   *
+   * @param resumable Whether the client's session can be resumed
+   */
+  private void connectionLost(boolean resumable) {
+    if (!eventLoop.inEventLoop()) {
+      if (!closed.get() && !lost.get()) {
+        eventLoop.execute(() -> connectionLost(resumable));
+      }
+      return;
+    }
+    if (closed.get() || !lost.compareAndSet(false, true)) {
+      return;
+    }
+
+    boolean registered = isConnected();
+    InetAddress address = getInetAddress();
+    int port = getPort();
+    boolean detached = registered && resumable && Server.detachClient(this);
+    disconnect();
+    if (registered && !detached) {
+      Server.notifyDisconnection(user.getUsername());
+    } else if (!registered) {
+      Logger.log(Level.INFO, "DISCONNECTION", "Socket -> %s:%d disconnected", address, port);
+    }
+  }
+
+  @Override
+  public long takeUnconfirmedFrames(List<Frame> frames) {
+    long written = recent == null ? 0 : recent.takeAll(frames);
+    Frame frame;
+    while ((frame = outbound.poll()) != null) {
+      frames.add(frame);
+    }
+    return written;
+  }
+
+  /**
+   * Closes the client's channel and removes the client from the connected clients.
+   */
+  @Override
+  public void disconnect() {
+    this.isConnected = false;
+    if (closed.compareAndSet(false, true)) {
+      outbound.close();
+      outbound.clear();
+      try {
+        if (key != null) {
+          key.cancel();
+        }
+        channel.close();
+      } catch (IOException e) {
+        String username = user == null ? "unregistered" : user.getUsername();
+        Logger.log(Level.ERROR, "SERVER ERROR", "Closing socket of user: '" + username + "'");
+      }
+    }
+
+    if (user != null) {
+      Server.removeClient(user.getUsername(), this);
+    }
+  }
+
+  @Override
+  public User getUser() {
+    return user;
+  }
+
+  @Override
+  public void setUser(User user) {
+    this.user = user;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return isConnected;
+  }
+
+  @Override
+  public void setConnected(boolean connected) {
+    this.isConnected = connected;
+  }
+
+  @Override
+  public boolean isCompressionEnabled() {
+    return compressor != null;
+  }
+
+  @Override
+  public long getLastActivityNanos() {
+    return lastActivityNanos;
+  }
+
+  @Override
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  @Override
+  public InetAddress getInetAddress() {
+    return channel.socket().getInetAddress();
+  }
+
+  @Override
+  public int getPort() {
+    return channel.socket().getPort();
+  }
+}
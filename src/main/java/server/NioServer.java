@@ -0,0 +1,71 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import utils.Logger;
+import utils.Logger.Level;
+
+/**
+ * Non-blocking server engine built on a {@link ServerSocketChannel} and a fixed set of
+ * {@link EventLoop}s.
+ * <p>
+ * An acceptor thread accepts new client channels and hands them to the event loops in a
+ * round-robin fashion. Each event loop then performs all the reads and writes of its channels, so
+ * the number of threads stays constant no matter how many clients are connected.
+ *
+ * @author Group4
+ */
+final class NioServer {
+
+  private final ServerSocketChannel serverChannel;
+  private final EventLoop[] eventLoops;
+  /* The index of the event loop that will receive the next accepted channel */
+  private int nextEventLoop = 0;
+
+  /**
+   * Constructor
+   *
+   * @param port    The port number that the server will run on.
+   * @param threads The number of event loops (threads) used to handle client channels
+   * @throws IOException If an I/O error occurs when opening the server channel or selectors.
+   */
+  NioServer(int port, int threads) throws IOException {
+    this.serverChannel = ServerSocketChannel.open();
+    this.serverChannel.bind(new InetSocketAddress(port));
+
+    this.eventLoops = new EventLoop[Math.max(1, threads)];
+    for (int i = 0; i < eventLoops.length; i++) {
+      eventLoops[i] = new EventLoop("nio-event-loop-" + i);
+    }
+  }
+
+  /**
+   * Starts the event loops and the acceptor thread.
+   */
+  void start() {
+    for (EventLoop eventLoop : eventLoops) {
+      eventLoop.start();
+    }
+    new Thread(this::acceptConnections, "nio-acceptor").start();
+  }
+
+  /**
+   * Accepts new client channels and registers them with the next event loop.
+   */
+  private void acceptConnections() {
+    while (serverChannel.isOpen()) {
+      try {
+        SocketChannel channel = serverChannel.accept();
+        Logger.log(Level.INFO, "CONNECTION", "New socket connection -> %s",
+            channel.getRemoteAddress());
+
+        eventLoops[nextEventLoop].register(channel);
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+      } catch (IOException e) {
+        Logger.log(Level.WARN, "CONNECTION ERROR", "Couldn't accept client socket connection");
+      }
+    }
+  }
+}
@@ -0,0 +1,458 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import utils.Frame;
+import utils.Message.MessageType;
+
+/**
+ * A bounded queue of frames waiting to be written to a single client.
+ * <p>
+ * Senders only ever enqueue frames, the actual socket writes are done by the client's own writer.
+ * This means a client that stops reading can only fill up its own queue, it can never stall a
+ * broadcast or the registration of other clients. What happens once the queue is full is decided by
+ * the {@link OverflowPolicy}, and every outcome is counted.
+ * <p>
+ * The queue also tracks the backlog of its client: the queued frames and bytes, and how long the
+ * writer has not taken anything from a non-empty queue. A client whose backlog passes the
+ * {@link SlowConsumerLimits} is first downgraded: the presence updates already queued for it are
+ * dropped, as are the ones offered until it is restored, so only the chat messages and whispers
+ * are kept. Once the backlog is drained, the client is
+ * restored (and should be sent a fresh user list). A client whose backlog keeps growing, or that
+ * stays stalled for too long, is evicted.
+ *
+ * @author Group4
+ */
+final class OutboundQueue {
+
+  /**
+   * An enumeration of the ways a frame offered to a full queue can be handled.
+   */
+  enum OverflowPolicy {
+    /* Discard the oldest queued frame to make space for the new one */
+    DROP_OLDEST,
+    /* Discard the new frame */
+    DROP_NEWEST,
+    /* Disconnect the client */
+    DISCONNECT
+  }
+
+  /**
+   * An enumeration of the outcomes of offering a frame to a queue.
+   */
+  enum Outcome {
+    ENQUEUED,
+    DROPPED_OLDEST,
+    DROPPED_NEWEST,
+    /* Presence update dropped, since the client is downgraded */
+    DROPPED_DOWNGRADED,
+    DISCONNECTED
+  }
+
+  /**
+   * An enumeration of the reasons a slow client is evicted.
+   */
+  enum EvictionReason {
+    /* The queue was full and the overflow policy is to disconnect */
+    QUEUE_FULL,
+    /* Too many bytes were waiting to be written */
+    BACKLOG,
+    /* The writer did not take anything from the queue for too long */
+    STALLED
+  }
+
+  /**
+   * The backlog at which a slow client is downgraded and evicted. A limit of 0 or less is never
+   * reached.
+   */
+  static final class SlowConsumerLimits {
+
+    /* Never downgrade or evict (the overflow policy still applies) */
+    static final SlowConsumerLimits NONE = new SlowConsumerLimits(0, 0, 0, 0, 0);
+
+    final long downgradeBytes;
+    final int downgradeFrames;
+    final long downgradeNanos;
+    final long evictBytes;
+    final long evictNanos;
+
+    /**
+     * Constructor
+     *
+     * @param downgradeBytes  The queued bytes at which the client is downgraded
+     * @param downgradeFrames The queued frames at which the client is downgraded
+     * @param downgradeMillis The stall at which the client is downgraded
+     * @param evictBytes      The queued bytes at which the client is evicted
+     * @param evictMillis     The stall at which the client is evicted
+     */
+    SlowConsumerLimits(long downgradeBytes, int downgradeFrames, long downgradeMillis,
+        long evictBytes, long evictMillis) {
+      this.downgradeBytes = limit(downgradeBytes);
+      this.downgradeFrames = downgradeFrames <= 0 ? Integer.MAX_VALUE : downgradeFrames;
+      this.downgradeNanos = limit(TimeUnit.MILLISECONDS.toNanos(downgradeMillis));
+      this.evictBytes = limit(evictBytes);
+      this.evictNanos = limit(TimeUnit.MILLISECONDS.toNanos(evictMillis));
+    }
+
+    /**
+     * @return The limits configured in the {@link ServerConfig}
+     */
+    static SlowConsumerLimits fromConfig() {
+      return new SlowConsumerLimits(ServerConfig.SLOW_DOWNGRADE_BYTES,
+          ServerConfig.SLOW_DOWNGRADE_FRAMES, ServerConfig.SLOW_DOWNGRADE_MILLIS,
+          ServerConfig.SLOW_EVICT_BYTES, ServerConfig.SLOW_EVICT_MILLIS);
+    }
+
+    private static long limit(long value) {
+      return value <= 0 ? Long.MAX_VALUE : value;
+    }
+  }
+
+  /* The number of times each outcome occurred, across all queues */
+  private static final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+  /* The number of clients evicted for each reason, across all queues */
+  private static final LongAdder[] evictions = new LongAdder[EvictionReason.values().length];
+  /* The number of times a client was downgraded, across all queues */
+  private static final LongAdder downgrades = new LongAdder();
+
+  static {
+    for (int i = 0; i < outcomes.length; i++) {
+      outcomes[i] = new LongAdder();
+    }
+    for (int i = 0; i < evictions.length; i++) {
+      evictions[i] = new LongAdder();
+    }
+  }
+
+  private final ArrayDeque<Frame> frames;
+  private final int capacity;
+  private final OverflowPolicy policy;
+  private final SlowConsumerLimits limits;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private boolean closed = false;
+
+  /* The total length of the queued frames */
+  private long queuedBytes = 0;
+  /* When the writer last made progress on a non-empty queue, or 0 if the clock is not started */
+  private long progressNanos = 0;
+  /* Whether presence updates are dropped, until the backlog is drained */
+  private boolean downgraded = false;
+  /* Whether the backlog was drained since the client was last downgraded */
+  private boolean restored = false;
+  /* Why the client must be disconnected, or null */
+  private String evictionReason;
+
+  /**
+   * Constructor that uses the configured capacity, overflow policy and slow consumer limits.
+   *
+   * @see ServerConfig
+   */
+  OutboundQueue() {
+    this(ServerConfig.OUTBOUND_CAPACITY, ServerConfig.OUTBOUND_POLICY,
+        SlowConsumerLimits.fromConfig());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param capacity The maximum number of queued frames
+   * @param policy   What happens to a frame offered to a full queue
+   * @param limits   The backlog at which the client is downgraded and evicted
+   */
+  OutboundQueue(int capacity, OverflowPolicy policy, SlowConsumerLimits limits) {
+    this.capacity = Math.max(1, capacity);
+    this.policy = policy;
+    this.limits = limits;
+    this.frames = new ArrayDeque<>(Math.min(this.capacity, 64));
+  }
+
+  /**
+   * Adds a frame to the queue without ever blocking.
+   *
+   * @param frame The frame to queue
+   * @return False if the client must be disconnected (see {@link #getEvictionReason()}),
+   * otherwise true
+   */
+  boolean offer(Frame frame) {
+    Outcome outcome;
+    lock.lock();
+    try {
+      if (closed) {
+        return true;
+      }
+
+      /* The clock only runs while frames are waiting, so an idle client never reads it */
+      long stalledNanos = 0;
+      if (!frames.isEmpty()) {
+        long now = System.nanoTime();
+        if (progressNanos == 0) {
+          progressNanos = now;
+        }
+        stalledNanos = now - progressNanos;
+      }
+
+      if (queuedBytes + frame.length() > limits.evictBytes) {
+        outcome = evict(EvictionReason.BACKLOG, String.format(
+            "%d bytes in %d frames were not sent", queuedBytes, frames.size()));
+      } else if (stalledNanos > limits.evictNanos) {
+        outcome = evict(EvictionReason.STALLED, String.format("nothing was sent for %d ms",
+            TimeUnit.NANOSECONDS.toMillis(stalledNanos)));
+      } else {
+        if (!downgraded && (queuedBytes >= limits.downgradeBytes
+            || frames.size() >= limits.downgradeFrames || stalledNanos >= limits.downgradeNanos)) {
+          downgraded = true;
+          downgrades.increment();
+          purgePresence();
+        }
+
+        if (downgraded && isPresence(frame.getType())) {
+          outcome = Outcome.DROPPED_DOWNGRADED;
+        } else if (frames.size() < capacity) {
+          add(frame);
+          outcome = Outcome.ENQUEUED;
+        } else if (policy == OverflowPolicy.DROP_OLDEST) {
+          queuedBytes -= frames.pollFirst().length();
+          add(frame);
+          outcome = Outcome.DROPPED_OLDEST;
+        } else if (policy == OverflowPolicy.DROP_NEWEST) {
+          outcome = Outcome.DROPPED_NEWEST;
+        } else {
+          outcome = evict(EvictionReason.QUEUE_FULL,
+              String.format("the queue of %d frames is full", capacity));
+        }
+      }
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+
+    outcomes[outcome.ordinal()].increment();
+    return outcome != Outcome.DISCONNECTED;
+  }
+
+  /**
+   * Waits for at least one frame to become available and moves up to {@code maxFrames} frames into
+   * the batch. If fewer frames are queued, the writer lingers for up to {@code lingerNanos} for
+   * more frames to arrive, trading a bounded amount of latency for fewer writes.
+   *
+   * @param batch       The list to add the frames to
+   * @param maxFrames   The maximum number of frames to add
+   * @param lingerNanos The longest time to wait for a batch to fill up
+   * @return False once the queue has been closed and drained, otherwise true
+   * @throws InterruptedException If the writer was interrupted while waiting
+   */
+  boolean takeBatch(List<Frame> batch, int maxFrames, long lingerNanos)
+      throws InterruptedException {
+    lock.lock();
+    try {
+      while (frames.isEmpty() && !closed) {
+        notEmpty.await();
+      }
+      if (frames.isEmpty()) {
+        return false;
+      }
+
+      long remaining = lingerNanos;
+      while (remaining > 0 && frames.size() < maxFrames && !closed) {
+        remaining = notEmpty.awaitNanos(remaining);
+      }
+
+      while (batch.size() < maxFrames && !frames.isEmpty()) {
+        Frame frame = frames.pollFirst();
+        queuedBytes -= frame.length();
+        batch.add(frame);
+      }
+      progressed();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the next frame without waiting.
+   *
+   * @return The next frame, or null if the queue is empty
+   */
+  Frame poll() {
+    lock.lock();
+    try {
+      Frame frame = frames.pollFirst();
+      if (frame != null) {
+        queuedBytes -= frame.length();
+        progressed();
+      }
+      return frame;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return True if no frames are waiting in the queue
+   */
+  boolean isEmpty() {
+    lock.lock();
+    try {
+      return frames.isEmpty();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Closes the queue. Frames offered afterwards are ignored, while the frames that are already
+   * queued can still be taken by the writer.
+   */
+  void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Discards all the queued frames.
+   */
+  void clear() {
+    lock.lock();
+    try {
+      frames.clear();
+      queuedBytes = 0;
+      progressNanos = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Checks, and resets, whether the backlog of a downgraded client was drained. The writer should
+   * then send the client a fresh user list, since its presence updates were dropped.
+   *
+   * @return True if the client was restored since the last call
+   */
+  boolean takeRestored() {
+    lock.lock();
+    try {
+      boolean wasRestored = restored;
+      restored = false;
+      return wasRestored;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return Why the client must be disconnected, or null if it must not
+   */
+  String getEvictionReason() {
+    lock.lock();
+    try {
+      return evictionReason;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds a frame to the end of the queue. The caller must hold the lock.
+   */
+  private void add(Frame frame) {
+    frames.addLast(frame);
+    queuedBytes += frame.length();
+  }
+
+  /**
+   * Drops the presence updates that are already queued for a client that was just downgraded. The
+   * caller must hold the lock.
+   */
+  private void purgePresence() {
+    Iterator<Frame> queued = frames.iterator();
+    while (queued.hasNext()) {
+      Frame frame = queued.next();
+      if (isPresence(frame.getType())) {
+        queued.remove();
+        queuedBytes -= frame.length();
+        outcomes[Outcome.DROPPED_DOWNGRADED.ordinal()].increment();
+      }
+    }
+  }
+
+  /**
+   * Records that the writer took frames from the queue: the stall clock restarts, and a downgraded
+   * client whose backlog is drained is restored. The caller must hold the lock.
+   */
+  private void progressed() {
+    if (frames.isEmpty()) {
+      progressNanos = 0;
+      if (downgraded) {
+        downgraded = false;
+        restored = true;
+      }
+    } else {
+      progressNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Records why the client must be disconnected. The caller must hold the lock.
+   *
+   * @return The outcome of the offer
+   */
+  private Outcome evict(EvictionReason reason, String description) {
+    if (evictionReason == null) {
+      evictionReason = description;
+      evictions[reason.ordinal()].increment();
+    }
+    return Outcome.DISCONNECTED;
+  }
+
+  /**
+   * @param type The type of a queued message
+   * @return True if messages of the type are dropped for a downgraded client
+   */
+  private static boolean isPresence(MessageType type) {
+    switch (type) {
+      case USERS:
+      case USER_JOINED:
+      case USER_LEFT:
+      case NEW_USER:
+      case DISCONNECTION:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @param outcome The outcome to look up
+   * @return The number of times the outcome occurred, across all queues
+   */
+  static long count(Outcome outcome) {
+    return outcomes[outcome.ordinal()].sum();
+  }
+
+  /**
+   * @param reason The reason to look up
+   * @return The number of clients evicted for the reason, across all queues
+   */
+  static long evictions(EvictionReason reason) {
+    return evictions[reason.ordinal()].sum();
+  }
+
+  /**
+   * @return The number of times a client was downgraded, across all queues
+   */
+  static long downgrades() {
+    return downgrades.sum();
+  }
+}
@@ -0,0 +1,162 @@
+package server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import utils.AbstractThread;
+import utils.Frame;
+import utils.Logger;
+import utils.Logger.Level;
+import utils.MalformedMessageException;
+import utils.Message;
+import utils.MessageCodec;
+
+/**
+ * A TCP connection between two nodes of a {@link Cluster}.
+ * <p>
+ * Every node opens one link to each of its peers and only sends over that link, so a link carries
+ * the messages of one node to another. The sending node queues the frames in a bounded
+ * {@link OutboundQueue}, and a writer thread writes them in batches of up to
+ * {@link ServerConfig#BATCH_MAX_FRAMES} frames with one write and one flush. The writer lingers
+ * for a short time to let a batch fill up. The receiving node reads the frames and hands them to
+ * its cluster.
+ * <p>
+ * A link that cannot keep up (its queue is full) is closed. The receiving node then treats the
+ * sending node as down, until the sending node reconnects and sends its state again.
+ *
+ * @author Group4
+ */
+final class PeerLink extends AbstractThread {
+
+  private final Cluster cluster;
+  private final OutboundQueue outbound = new OutboundQueue(ServerConfig.CLUSTER_QUEUE_CAPACITY,
+      OutboundQueue.OverflowPolicy.DISCONNECT, OutboundQueue.SlowConsumerLimits.NONE);
+  /* The node at the other end of the link, known once it said hello (for accepted links) */
+  private volatile String node;
+
+  /**
+   * Constructor
+   *
+   * @param cluster The cluster the link belongs to
+   * @param socket  The connected socket
+   * @param node    The node at the other end of the link, or null for an accepted link
+   * @throws IOException If the streams of the socket could not be created
+   */
+  PeerLink(Cluster cluster, Socket socket, String node) throws IOException {
+    super(socket);
+    this.cluster = cluster;
+    this.node = node;
+    setConnected(true);
+  }
+
+  /**
+   * Starts the reader and the writer of the link.
+   */
+  void start() {
+    Thread reader = new Thread(this, "cluster-reader");
+    reader.setDaemon(true);
+    reader.start();
+    Thread writer = new Thread(this::writeOutbound, "cluster-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Reads the messages of the other node until the link is closed. A message that can't be
+   * handled closes the link as well.
+   */
+  @Override
+  public void run() {
+    while (isConnected()) {
+      try {
+        cluster.onMessage(this, getMessage());
+      } catch (MalformedMessageException e) {
+        Logger.log(Level.WARN, "DATA CORRUPTION", "Failed to decode a cluster frame: %s",
+            e.getMessage());
+      } catch (IOException e) {
+        close();
+      } catch (RuntimeException e) {
+        /* The state of the other node is no longer known, so it is treated as down until it
+        reconnects and sends its state again */
+        Logger.log(Level.ERROR, "SERVER ERROR",
+            "Failed to handle a message from node %s, closing the link: %s", node, e);
+        close();
+      }
+    }
+    cluster.linkClosed(this);
+  }
+
+  /**
+   * Queues a message for the other node. User ids only mean something to this node, so the
+   * message is sent with names.
+   *
+   * @param message The message to send
+   */
+  @Override
+  public void sendMessage(Message message) {
+    try {
+      sendFrame(Frame.encode(message.withoutIds(), MessageCodec.DEFAULT));
+    } catch (IOException e) {
+      Logger.log(Level.ERROR, "SERVER ERROR", "Failed to encode cluster message: %s",
+          e.getMessage());
+    }
+  }
+
+  /**
+   * Queues an encoded frame for the other node. This never blocks; if the queue is full, the link
+   * is closed.
+   *
+   * @param frame The encoded frame to send
+   */
+  @Override
+  public void sendFrame(Frame frame) {
+    if (!outbound.offer(frame)) {
+      Logger.log(Level.WARN, "CLUSTER", "Link to node %s can't keep up, closing it", node);
+      close();
+    }
+  }
+
+  /**
+   * Writes the queued frames in batches until the link is closed or a write fails.
+   */
+  private void writeOutbound() {
+    List<Frame> batch = new ArrayList<>(ServerConfig.BATCH_MAX_FRAMES);
+    long lingerNanos = TimeUnit.MICROSECONDS.toNanos(ServerConfig.CLUSTER_LINGER_MICROS);
+    try {
+      while (outbound.takeBatch(batch, ServerConfig.BATCH_MAX_FRAMES, lingerNanos)) {
+        writeFrames(batch);
+        batch.clear();
+      }
+    } catch (IOException | InterruptedException e) {
+      close();
+    }
+  }
+
+  /**
+   * Closes the link. The reader then reports the closed link to the cluster.
+   */
+  void close() {
+    outbound.close();
+    outbound.clear();
+    try {
+      super.disconnect();
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * @return The node at the other end of the link, or null if it did not say hello yet
+   */
+  String getNode() {
+    return node;
+  }
+
+  /**
+   * @param node The node at the other end of the link
+   */
+  void setNode(String node) {
+    this.node = node;
+  }
+}
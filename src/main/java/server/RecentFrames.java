@@ -0,0 +1,88 @@
+package server;
+
+import java.util.List;
+import utils.Frame;
+
+/**
+ * The frames most recently written to a client, kept in a ring of a fixed size.
+ * <p>
+ * A frame that was written to a socket may still never reach the client, if the connection fails
+ * before the bytes are delivered. The ring keeps the last frames written to a client and counts all
+ * the frames written, so that when the client resumes its session and tells how many frames it
+ * received, the frames after those can be sent again (see {@link DetachedSession}). The writer of
+ * the connection adds to the ring, while the thread that handles the lost connection takes its
+ * frames, so the methods are synchronized; a writer only takes the (uncontended) lock once per
+ * batch.
+ *
+ * @author Group4
+ */
+final class RecentFrames {
+
+  private final Frame[] frames;
+  /* The index the next frame is written to, and the number of frames in the ring */
+  private int next = 0;
+  private int size = 0;
+  /* The number of frames added since the connection was accepted, counting every wrapped frame */
+  private long added = 0;
+
+  /**
+   * Constructor
+   *
+   * @param capacity The number of frames that are kept
+   */
+  RecentFrames(int capacity) {
+    this.frames = new Frame[capacity];
+  }
+
+  /**
+   * @return A ring of the configured size, or null if sessions can't be resumed
+   * @see ServerConfig#SESSION_RECENT_FRAMES
+   */
+  static RecentFrames fromConfig() {
+    return ServerConfig.SESSION_GRACE_MILLIS > 0
+        ? new RecentFrames(ServerConfig.SESSION_RECENT_FRAMES) : null;
+  }
+
+  /**
+   * Adds a frame that is about to be written, replacing the oldest frame if the ring is full.
+   *
+   * @param frame The frame, uncompressed
+   */
+  synchronized void add(Frame frame) {
+    added += frame.count();
+    frames[next] = frame;
+    next = (next + 1) % frames.length;
+    size = Math.min(size + 1, frames.length);
+  }
+
+  /**
+   * Adds a batch of frames that is about to be written.
+   *
+   * @param batch The frames, oldest first and uncompressed
+   */
+  synchronized void addAll(List<Frame> batch) {
+    for (Frame frame : batch) {
+      add(frame);
+    }
+  }
+
+  /**
+   * Removes all the frames from the ring.
+   *
+   * @param taken The list the frames are added to, oldest first
+   * @return The number of frames that were added before the oldest frame that is taken, counting
+   * every wrapped frame
+   */
+  synchronized long takeAll(List<Frame> taken) {
+    long before = added;
+    int start = (next - size + frames.length) % frames.length;
+    for (int i = 0; i < size; i++) {
+      int index = (start + i) % frames.length;
+      taken.add(frames[index]);
+      before -= frames[index].count();
+      frames[index] = null;
+    }
+    size = 0;
+    return before;
+  }
+}
@@ -0,0 +1,346 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import utils.Frame;
+import utils.Message;
+
+/**
+ * The chat rooms of the server and their members.
+ * <p>
+ * Every room keeps its own concurrent set of members, so a message sent to a room is only queued
+ * for the clients in that room. The rooms are spread over a fixed number of lock stripes by the
+ * hash of their name. Joining, leaving and delivering to a room holds the lock of its stripe, so
+ * the members of a room receive its messages in the same order, while busy rooms on other stripes
+ * are not held up. A room is created when its first member joins and removed when its last member
+ * leaves, except for the {@link #LOBBY}, which always exists.
+ * <p>
+ * A client that disconnects is removed from its rooms without waiting for their locks, since the
+ * disconnection may happen while a delivery to another room holds its lock (e.g. when the
+ * client's outbound queue overflows). Members that are no longer connected are also skipped and
+ * removed by the next delivery to their room.
+ *
+ * @author Group4
+ */
+final class RoomRegistry {
+
+  /* The room every client joins when it registers */
+  static final String LOBBY = Message.LOBBY;
+  /* The prefix of every room name */
+  static final String PREFIX = "#";
+  static final int MAX_NAME_LENGTH = 32;
+
+  private final ReentrantLock[] locks;
+  /* The rooms of each stripe (only changed while holding the lock of the stripe) */
+  private final List<Map<String, Room>> rooms;
+  /* The names of the rooms each user is a member of */
+  private final ConcurrentHashMap<String, Set<String>> memberships = new ConcurrentHashMap<>();
+  /* Notified when a room is created or removed, or null */
+  private volatile Listener listener;
+
+  /**
+   * Receives the creation and removal of rooms (other than the lobby). The methods are called
+   * while holding the lock of the room's stripe, so they must not block.
+   */
+  interface Listener {
+
+    void roomCreated(String room);
+
+    void roomRemoved(String room);
+  }
+
+  /**
+   * A room and its members.
+   */
+  private static final class Room {
+
+    final String name;
+    /* The connections of the members, keyed by username */
+    final ConcurrentHashMap<String, ClientConnection> members = new ConcurrentHashMap<>();
+
+    Room(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * Constructor
+   *
+   * @param stripes The number of lock stripes, rounded up to a power of two
+   */
+  RoomRegistry(int stripes) {
+    int count = 1;
+    while (count < stripes) {
+      count <<= 1;
+    }
+    this.locks = new ReentrantLock[count];
+    this.rooms = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      locks[i] = new ReentrantLock();
+      rooms.add(new ConcurrentHashMap<>());
+    }
+    rooms.get(stripe(LOBBY)).put(LOBBY, new Room(LOBBY));
+  }
+
+  /**
+   * Validates the name of a room.
+   *
+   * @param name The name to validate
+   * @return The reason the name is invalid, or null if the name is valid
+   */
+  static String checkName(String name) {
+    if (name == null || !name.startsWith(PREFIX)) {
+      return "Room names must start with '" + PREFIX + "'";
+    } else if (name.length() < 2 || name.length() > MAX_NAME_LENGTH) {
+      return "Room names must be between 2 and " + MAX_NAME_LENGTH + " characters";
+    } else if (!name.substring(PREFIX.length()).matches("[a-z0-9_-]+")) {
+      return "Room names can only contain lowercase characters, digits, hyphens, underscores";
+    }
+    return null;
+  }
+
+  /**
+   * Returns the lock of the stripe a room belongs to. Holding it keeps the members of the room from
+   * changing and orders the messages delivered to it.
+   *
+   * @param room The name of the room
+   * @return The lock of the room's stripe
+   */
+  ReentrantLock lockFor(String room) {
+    return locks[stripe(room)];
+  }
+
+  /**
+   * Adds a client to a room, creating the room if it does not exist yet.
+   *
+   * @param room     The name of the room
+   * @param username The username of the client
+   * @param client   The connection of the client
+   * @return True if the client joined, false if it already was a member
+   */
+  boolean join(String room, String username, ClientConnection client) {
+    ReentrantLock lock = lockFor(room);
+    lock.lock();
+    try {
+      Map<String, Room> stripe = rooms.get(stripe(room));
+      Room target = stripe.get(room);
+      boolean created = target == null;
+      if (created) {
+        target = new Room(room);
+        stripe.put(room, target);
+      }
+      if (target.members.putIfAbsent(username, client) != null) {
+        return false;
+      }
+      memberships.computeIfAbsent(username, name -> ConcurrentHashMap.newKeySet()).add(room);
+      Listener current = listener;
+      if (created && current != null) {
+        current.roomCreated(room);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes a client from a room. The room is removed once it is empty, unless it is the lobby.
+   *
+   * @param room     The name of the room
+   * @param username The username of the client
+   * @param client   The connection of the client, so that a newer connection with the same
+   *                 username is not removed
+   * @return True if the client left, false if it was not a member
+   */
+  boolean leave(String room, String username, ClientConnection client) {
+    ReentrantLock lock = lockFor(room);
+    lock.lock();
+    try {
+      Map<String, Room> stripe = rooms.get(stripe(room));
+      Room target = stripe.get(room);
+      if (target == null || !target.members.remove(username, client)) {
+        return false;
+      }
+      removeIfEmpty(stripe, target);
+      Set<String> joined = memberships.get(username);
+      if (joined != null) {
+        joined.remove(room);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes a client from every room it is a member of, when it disconnects. This never waits for
+   * the lock of a room, rooms that are left empty are removed if their lock is free, otherwise by
+   * the next delivery to them.
+   *
+   * @param username The username of the client
+   * @param client   The connection of the client
+   */
+  void leaveAll(String username, ClientConnection client) {
+    Set<String> joined = memberships.remove(username);
+    if (joined == null) {
+      return;
+    }
+    for (String room : joined) {
+      Map<String, Room> stripe = rooms.get(stripe(room));
+      Room target = stripe.get(room);
+      if (target == null || !target.members.remove(username, client)) {
+        continue;
+      }
+      ReentrantLock lock = lockFor(room);
+      if (target.members.isEmpty() && lock.tryLock()) {
+        try {
+          removeIfEmpty(stripe, target);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Puts a new connection of a client in the place of its old one, in every room the client is a
+   * member of, e.g. when the client resumes its session. Like {@link #leaveAll}, this never waits
+   * for the lock of a room.
+   *
+   * @param username    The username of the client
+   * @param current     The connection to replace
+   * @param replacement The connection that takes its place
+   */
+  void replace(String username, ClientConnection current, ClientConnection replacement) {
+    Set<String> joined = memberships.get(username);
+    if (joined == null) {
+      return;
+    }
+    for (String room : joined) {
+      Room target = rooms.get(stripe(room)).get(room);
+      if (target != null) {
+        target.members.replace(username, current, replacement);
+      }
+    }
+  }
+
+  /**
+   * Checks if a client is a member of a room.
+   *
+   * @param room     The name of the room
+   * @param username The username of the client
+   * @return True if the client is a member of the room
+   */
+  boolean isMember(String room, String username) {
+    Set<String> joined = memberships.get(username);
+    return joined != null && joined.contains(room);
+  }
+
+  /**
+   * Queues a frame for every member of a room. This holds the lock of the room's stripe, so every
+   * member receives the room's messages in the same order.
+   *
+   * @param room  The name of the room
+   * @param frame The encoded message
+   * @return The number of members the frame was queued for, or -1 if the room does not exist
+   */
+  int deliver(String room, Frame frame) {
+    ReentrantLock lock = lockFor(room);
+    lock.lock();
+    try {
+      Room target = rooms.get(stripe(room)).get(room);
+      if (target == null) {
+        return -1;
+      }
+      int delivered = 0;
+      for (Map.Entry<String, ClientConnection> member : target.members.entrySet()) {
+        ClientConnection client = member.getValue();
+        if (client.isConnected()) {
+          client.sendFrame(frame);
+          delivered++;
+        } else {
+          target.members.remove(member.getKey(), client);
+        }
+      }
+      removeIfEmpty(rooms.get(stripe(room)), target);
+      return delivered;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param room The name of the room
+   * @return The number of members of the room, or 0 if the room does not exist
+   */
+  int size(String room) {
+    ReentrantLock lock = lockFor(room);
+    lock.lock();
+    try {
+      Room target = rooms.get(stripe(room)).get(room);
+      return target == null ? 0 : target.members.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param listener Notified when a room is created or removed
+   */
+  void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * @return The names of the rooms, except the lobby
+   */
+  List<String> names() {
+    List<String> names = new ArrayList<>();
+    for (Map<String, Room> stripe : rooms) {
+      names.addAll(stripe.keySet());
+    }
+    names.remove(LOBBY);
+    return names;
+  }
+
+  /**
+   * @return The number of rooms, including the lobby
+   */
+  int count() {
+    int count = 0;
+    for (int i = 0; i < locks.length; i++) {
+      locks[i].lock();
+      try {
+        count += rooms.get(i).size();
+      } finally {
+        locks[i].unlock();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Removes a room that has no members left, unless it is the lobby. The caller must hold the lock
+   * of the room's stripe.
+   */
+  private void removeIfEmpty(Map<String, Room> stripe, Room room) {
+    if (room.members.isEmpty() && !LOBBY.equals(room.name) && stripe.remove(room.name, room)) {
+      Listener current = listener;
+      if (current != null) {
+        current.roomRemoved(room.name);
+      }
+    }
+  }
+
+  /**
+   * Spreads the hash of a room name over the stripes.
+   */
+  private int stripe(String room) {
+    int hash = room.hashCode();
+    return (hash ^ (hash >>> 16)) & (locks.length - 1);
+  }
+}
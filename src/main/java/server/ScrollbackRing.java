@@ -0,0 +1,181 @@
+package server;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import utils.Frame;
+import utils.Message.MessageType;
+
+/**
+ * A fixed-size, off-heap ring of the most recent chat frames, exactly as they are sent to clients.
+ * <p>
+ * Frames are copied back to back into a direct buffer, so the ring holds no message objects and
+ * creates no garbage. The bytes are addressed by a logical offset that only ever grows (the
+ * physical position is the offset modulo the capacity), and the end offset of every frame is
+ * recorded in a second ring. Once the buffer is full, new frames overwrite the oldest ones.
+ * <p>
+ * Reading never blocks the writer. A reader copies the bytes of the frames it wants and then
+ * checks, like a sequence lock, whether the writer has reserved any of those bytes for a new frame
+ * in the meantime. Only if the copied bytes may have been overwritten does the reader try again.
+ * Writers reserve the bytes of a frame before they overwrite them, so a successful check means the
+ * copy is consistent.
+ *
+ * @author Group4
+ */
+final class ScrollbackRing {
+
+  /* The number of times a reader retries a copy that was overwritten, before giving up */
+  private static final int MAX_READ_ATTEMPTS = 8;
+
+  private final ByteBuffer ring;
+  private final int capacity;
+  /* The end offsets of the most recent frames, frame n is kept at index n % maxFrames */
+  private final AtomicLongArray frameEnds;
+  private final int maxFrames;
+  /* Serializes the writers */
+  private final ReentrantLock writeLock = new ReentrantLock();
+
+  /* The number of frames and bytes that are completely written */
+  private volatile long publishedFrames = 0;
+  private volatile long publishedBytes = 0;
+  /* The number of frames and bytes including the frame that is being written */
+  private volatile long reservedFrames = 0;
+  private volatile long reservedBytes = 0;
+
+  /**
+   * A consistent copy of the most recent frames.
+   */
+  static final class Snapshot {
+
+    /* The copied frames, back to back, as a single frame that can be queued for a client */
+    final Frame frames;
+    /* The number of frames that were copied */
+    final int count;
+
+    private Snapshot(Frame frames, int count) {
+      this.frames = frames;
+      this.count = count;
+    }
+  }
+
+  /**
+   * Constructor
+   *
+   * @param capacity  The number of bytes of the ring
+   * @param maxFrames The maximum number of frames kept in the ring
+   */
+  ScrollbackRing(int capacity, int maxFrames) {
+    this.capacity = capacity;
+    this.ring = ByteBuffer.allocateDirect(capacity);
+    this.maxFrames = Math.max(2, maxFrames);
+    this.frameEnds = new AtomicLongArray(this.maxFrames);
+  }
+
+  /**
+   * Creates the ring configured in the {@link ServerConfig}.
+   *
+   * @return The ring, or null if it is disabled
+   */
+  static ScrollbackRing fromConfig() {
+    if (ServerConfig.SCROLLBACK_BYTES <= 0) {
+      return null;
+    }
+    return new ScrollbackRing(ServerConfig.SCROLLBACK_BYTES, ServerConfig.SCROLLBACK_FRAMES);
+  }
+
+  /**
+   * Adds a frame to the ring, overwriting the oldest frames if needed. Frames larger than the ring
+   * are not added.
+   *
+   * @param frame The encoded frame
+   */
+  void append(Frame frame) {
+    int length = frame.length();
+    if (length > capacity) {
+      return;
+    }
+
+    writeLock.lock();
+    try {
+      long frameIndex = publishedFrames;
+      long start = publishedBytes;
+      long end = start + length;
+
+      /* Reserve the bytes and the index slot before overwriting them */
+      reservedFrames = frameIndex + 1;
+      reservedBytes = end;
+      VarHandle.fullFence();
+
+      ByteBuffer bytes = frame.asByteBuffer();
+      int position = (int) (start % capacity);
+      int first = Math.min(length, capacity - position);
+      ByteBuffer target = ring.duplicate();
+      target.position(position);
+      bytes.limit(first);
+      target.put(bytes);
+      if (first < length) {
+        bytes.limit(length);
+        target.position(0);
+        target.put(bytes);
+      }
+
+      frameEnds.set((int) (frameIndex % maxFrames), end);
+      publishedBytes = end;
+      publishedFrames = frameIndex + 1;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Copies the most recent frames out of the ring, without blocking the writer.
+   *
+   * @param count The maximum number of frames to copy
+   * @return The copied frames, which may be fewer than requested if the older frames were already
+   * overwritten, or null if the ring is empty or the frames kept being overwritten while they
+   * were copied
+   */
+  Snapshot copyLast(int count) {
+    for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+      long last = publishedFrames;
+      if (last == 0 || count <= 0) {
+        return null;
+      }
+
+      /* The start of a frame is the end of the frame before it, which must still be indexed */
+      long first = Math.max(0, last - Math.min(count, maxFrames - 1));
+      long end = frameEnds.get((int) ((last - 1) % maxFrames));
+      long start = first == 0 ? 0 : frameEnds.get((int) ((first - 1) % maxFrames));
+      long oldestSlotRead = Math.max(0, first - 1);
+      while (end - start > capacity && first < last) {
+        start = frameEnds.get((int) (first % maxFrames));
+        first++;
+      }
+      if (start > end || end - start > capacity) {
+        /* The index slots were overwritten while they were read */
+        continue;
+      }
+
+      byte[] copy = new byte[(int) (end - start)];
+      int position = (int) (start % capacity);
+      int head = Math.min(copy.length, capacity - position);
+      ByteBuffer source = ring.duplicate();
+      source.position(position);
+      source.get(copy, 0, head);
+      if (head < copy.length) {
+        source.position(0);
+        source.get(copy, head, copy.length - head);
+      }
+
+      /* The copy is consistent if none of the bytes or index slots that were read were reserved
+      for a newer frame while reading */
+      VarHandle.acquireFence();
+      if (reservedBytes - capacity <= start && reservedFrames - maxFrames <= oldestSlotRead) {
+        int copied = (int) (last - first);
+        return new Snapshot(Frame.wrap(MessageType.CHAT, copy, copied), copied);
+      }
+    }
+    return null;
+  }
+}
@@ -1,67 +1,193 @@
 package server;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import utils.Frame;
+import utils.FrameCompressor;
 import utils.Logger;
+import utils.Logger.Level;
 import utils.Message;
 import utils.Message.MessageType;
+import utils.MessageCodec;
+import utils.Presence;
+import utils.User;
 
 /**
  * Server class that listens for client socket connections and handles communication between
  * clients.
+ * <p>
+ * The server can run on one of the following engines:
+ * <p>
+ * BLOCKING: Each client connection is handled by its own {@link ServerThread}.
+ * <p>
+ * VIRTUAL: Each client connection is handled by its own {@link ServerThread}, which runs on a
+ * virtual thread (requires JDK 21 or later).
+ * <p>
+ * NIO: All client connections are multiplexed over a fixed number of event loops (one per core)
+ * using non-blocking channels, see {@link NioServer}.
+ * <p>
+ * Several servers can be linked into one chat, see {@link Cluster}. Each of them then also knows
+ * the users connected to the others, and forwards messages to them.
  *
  * @author Group4
  */
 public class Server {
 
+  /**
+   * An enumeration of the engines that can be used to handle client connections.
+   */
+  public enum Engine {
+    /* One blocking platform thread per client connection */
+    BLOCKING,
+    /* One blocking virtual thread per client connection */
+    VIRTUAL,
+    /* Selector based event loops with non-blocking reads and writes */
+    NIO
+  }
+
   /* The minimum length required for a client username */
   static final int REQUIRED_USERNAME_LENGTH = 2;
-  /* Provides communication establishment with clients */
-  private final ServerSocket serverSocket;
+  /* Provides communication establishment with clients (blocking engine only) */
+  private ServerSocket serverSocket;
   /*
   Stores all connected clients and their respective usernames as key-value pairs with the
-  username being the key and the client handler (server thread) as the value.
+  username being the key and the client handler as the value. A username is claimed with
+  putIfAbsent, so two clients can't register the same username, and lookups never lock.
   */
-  private static final ConcurrentHashMap<String, ServerThread> connectedClients =
+  private static final ConcurrentHashMap<String, ClientConnection> connectedClients =
       new ConcurrentHashMap<>();
+  /*
+  The connections of the connected clients, iterated by broadcasts. The array is never modified,
+  every join and leave publishes a new copy, so a broadcast takes no lock.
+  */
+  private static final AtomicReference<ClientConnection[]> members =
+      new AtomicReference<>(new ClientConnection[0]);
+  /*
+  Orders the presence changes: the presence version, the deltas and snapshots sent to the clients,
+  and the joins and leaves announced to the cluster. A lock is used instead of a synchronized
+  block, since it is held while queueing frames, which may disconnect a slow client.
+  */
+  private static final ReentrantLock presenceLock = new ReentrantLock();
+  /* The ids of the online users, which index the connections on the routing hot path */
+  private static final UserDirectory directory = new UserDirectory();
+  /* The chat rooms and their members, chat messages are only delivered within a room */
+  private static final RoomRegistry rooms = new RoomRegistry(ServerConfig.ROOM_STRIPES);
+  /* The sequence number of the last message received from a client of this server */
+  private static final AtomicLong sequence = new AtomicLong();
+  /* Incremented every time a user joins or leaves (guarded by the presence lock) */
+  private static long presenceVersion = 0;
+  /* The other nodes of the cluster this server is part of, or null if it runs on its own */
+  private static Cluster cluster;
+  /* The persistent history of chat messages, or null if it is disabled */
+  private static HistoryStore history;
+  /* Returned instead of a history sequence number if the history is not replayed */
+  private static final long NO_REPLAY = -1;
+  /* The most recent chat frames, kept off-heap for fast replays, or null if it is disabled */
+  private static ScrollbackRing scrollback;
+  /* Pings and disconnects idle clients, or null if it is disabled */
+  private static IdleReaper idleReaper;
+  /* Keeps the sessions of lost connections for their clients to resume, or null if disabled */
+  private static SessionRegistry sessions;
+  /* Runs the handlers (server threads) of accepted client connections */
+  private Executor handlerExecutor;
   /* Indicates whether the server manages to open a socket */
   private final boolean serverStarted;
 
   /**
-   * Constructor
+   * Constructor that starts the server using the blocking engine.
    *
    * @param ip   THe IP Address to bind the server instance to.
    * @param port The port number that the server will run on.
    * @throws IOException - If an I/O error occurs when opening the socket.
    */
   public Server(String ip, int port) throws IOException {
-    this.serverSocket = new ServerSocket(port);
-    this.serverStarted = true;
-    newClientConnectionListener();
+    this(ip, port, Engine.BLOCKING);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param ip     THe IP Address to bind the server instance to.
+   * @param port   The port number that the server will run on.
+   * @param engine The engine used to handle client connections.
+   * @throws IOException - If an I/O error occurs when opening the socket.
+   */
+  public Server(String ip, int port, Engine engine) throws IOException {
+    StatsReporter.start();
+    history = HistoryStore.fromConfig();
+    scrollback = ScrollbackRing.fromConfig();
+    idleReaper = IdleReaper.fromConfig();
+    sessions = SessionRegistry.fromConfig();
+    cluster = Cluster.fromConfig();
+    if (cluster != null) {
+      rooms.setListener(cluster);
+      cluster.start();
+    }
+    if (engine == Engine.NIO) {
+      new NioServer(port, Runtime.getRuntime().availableProcessors()).start();
+      this.serverStarted = true;
+    } else {
+      this.serverSocket = new ServerSocket(port);
+      this.handlerExecutor = engine == Engine.VIRTUAL
+          ? newVirtualThreadExecutor()
+          : handler -> new Thread(handler).start();
+      this.serverStarted = true;
+      newClientConnectionListener();
+    }
 
     String hostname = ip == null ? "localhost" : ip;
-    Logger.toConsole("SERVER", String.format("Server Started on %s:%d", hostname, port));
+    Logger.log(Level.INFO, "SERVER", "Server Started on %s:%d (%s engine)", hostname, port,
+        engine);
+  }
+
+  /**
+   * Creates an executor that starts a new virtual thread for each task. The executor is looked up
+   * reflectively so that the project still compiles and runs on JDKs without virtual threads, in
+   * which case platform threads are used instead.
+   *
+   * @return The executor used to run server threads
+   */
+  private static Executor newVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (Executor) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      Logger.log(Level.WARN, "SERVER",
+          "Virtual threads require JDK 21 or later, falling back to platform threads");
+      return handler -> new Thread(handler).start();
+    }
   }
 
   /**
    * Listens for new client socket connections. When a new client connection is accepted, a new
-   * thread (Server Thread) is created to handle communication between the client and the server.
+   * handler (Server Thread) is created to handle communication between the client and the server,
+   * and run on the engine's executor.
    */
   private void newClientConnectionListener() {
     new Thread(() -> {
       while (serverStarted) {
         try {
           Socket clientSocket = this.serverSocket.accept();
-          String log = String.format("New socket connection -> %s:%d",
+          Logger.log(Level.INFO, "CONNECTION", "New socket connection -> %s:%d",
               clientSocket.getInetAddress(), clientSocket.getPort());
-          Logger.toConsole("CONNECTION", log);
-          new ServerThread(clientSocket).start();
+          handlerExecutor.execute(new ServerThread(clientSocket, handlerExecutor));
         } catch (IOException e) {
-          Logger.toConsole("CONNECTION ERROR",
+          Logger.log(Level.WARN, "CONNECTION ERROR",
               "Couldn't accept client socket connection");
         }
       }
@@ -69,67 +195,804 @@ public class Server {
   }
 
   /**
-   * Sends the list of connected user to all connected clients. The list is joined using the
-   * {@link utils.Message#DELIMITER} (delimiter) .
+   * Sends a snapshot of the connected users and their ids, together with the current presence
+   * version, to a single client. The list is joined using the {@link utils.Message#DELIMITER}
+   * (delimiter).
+   *
+   * @param client The client to send the snapshot to
+   * @see Presence
+   */
+  static void sendUsersSnapshot(ClientConnection client) {
+    presenceLock.lock();
+    try {
+      String body = Presence.snapshot(presenceVersion, directory.entries());
+      client.sendMessage(new Message(MessageType.USERS, "", "", body));
+    } finally {
+      presenceLock.unlock();
+    }
+  }
+
+  /**
+   * Sends a presence delta with the current presence version to all connected clients. This must
+   * be called while holding the presence lock, right after incrementing the version, so that every
+   * client receives the deltas in version order.
+   *
+   * @param type     {@link MessageType#USER_JOINED} or {@link MessageType#USER_LEFT}
+   * @param id       The id of the user that joined or left
+   * @param username The user that joined or left
    */
-  static void broadcastUsersList() {
-    String listAsString = String.join(Message.DELIMITER, getClientUsernames());
-    Server.broadcastMessage(new Message(MessageType.USERS, "", "", listAsString));
+  private static void broadcastPresenceDelta(MessageType type, int id, String username) {
+    broadcastMessage(new Message(type, "", "", Presence.delta(presenceVersion, id, username)));
   }
 
   /**
-   * Sends a message to all connected clients. The server iterates through of connected clients,
-   * checks if each client is still connected to the server and sends the message to them if they're
-   * still connected. This process is synchronized to prevent multiple threads from trying to send
-   * messages at the same time, leading to inconsistent results.
+   * Sends a message to all connected clients. The message is encoded into a frame once, then the
+   * server iterates through the current snapshot of the connected clients, checks if each client is
+   * still connected to the server and queues the frame for them if they're still connected.
+   * Queueing never blocks on a socket, the frames are written by each client's own writer, and no
+   * lock is taken, so broadcasts from different threads may reach the clients in different orders.
+   * Presence deltas, whose order matters, are broadcast while holding the presence lock. Chat
+   * messages are only sent to the members of a room instead, see
+   * {@link #sendRoomMessage(String, Message)}.
    *
    * @param message The message to be broadcast to all connected clients
    */
   static void broadcastMessage(Message message) {
-    synchronized (connectedClients) {
-      for (ServerThread client : connectedClients.values()) {
-        if (client.isConnected()) {
-          client.sendMessage(message);
+    long start = System.nanoTime();
+    Frame frame;
+    try {
+      frame = Frame.encode(message, MessageCodec.DEFAULT);
+    } catch (IOException e) {
+      Logger.log(Level.ERROR, "SERVER ERROR", "Failed to encode broadcast message: %s",
+          e.getMessage());
+      return;
+    }
+
+    for (ClientConnection client : members.get()) {
+      if (client.isConnected()) {
+        client.sendFrame(frame);
+      }
+    }
+    Metrics.BROADCAST.record(System.nanoTime() - start);
+  }
+
+  /**
+   * Sends a chat message to the members of a room. The message is encoded into a frame once and
+   * queued for every member while holding the lock of the room's stripe, so that every member
+   * receives the room's messages in the same order, without holding up the other rooms. Messages
+   * sent to the lobby are also added to the history and the scrollback ring, in the same order.
+   * <p>
+   * The members are sent a frame that refers to the sender by id. The scrollback ring and the
+   * other nodes of the cluster get a second frame with the sender's name, since an id is only
+   * meaningful to the clients that are online when it is sent.
+   *
+   * @param room    The name of the room
+   * @param message The message to send, with the sender's name
+   * @return False if the room does not exist
+   */
+  static boolean sendRoomMessage(String room, Message message) {
+    long start = System.nanoTime();
+    Frame frame;
+    Frame named;
+    try {
+      frame = Frame.encode(withUserIds(message), MessageCodec.DEFAULT);
+      named = Frame.encode(message, MessageCodec.DEFAULT);
+    } catch (IOException e) {
+      Logger.log(Level.ERROR, "SERVER ERROR", "Failed to encode room message: %s",
+          e.getMessage());
+      return false;
+    }
+
+    ReentrantLock lock = rooms.lockFor(room);
+    lock.lock();
+    try {
+      if (!deliverRoomFrame(room, message, frame, named)) {
+        return false;
+      }
+      if (cluster != null) {
+        cluster.forwardChat(room, named);
+      }
+    } finally {
+      lock.unlock();
+    }
+    Metrics.ROOM.record(System.nanoTime() - start);
+    return true;
+  }
+
+  /**
+   * Delivers a chat message forwarded by another node of the cluster to the local members of its
+   * room.
+   *
+   * @param room    The name of the room
+   * @param message The message to deliver
+   * @return False if the room has no local members
+   */
+  static boolean deliverRoomMessage(String room, Message message) {
+    try {
+      return deliverRoomFrame(room, message,
+          Frame.encode(withUserIds(message), MessageCodec.DEFAULT),
+          Frame.encode(message, MessageCodec.DEFAULT));
+    } catch (IOException e) {
+      Logger.log(Level.ERROR, "SERVER ERROR", "Failed to encode room message: %s",
+          e.getMessage());
+      return true;
+    }
+  }
+
+  /**
+   * Queues a chat message for the local members of its room, and adds the lobby's messages to the
+   * history and the scrollback ring (with the sender's name).
+   */
+  private static boolean deliverRoomFrame(String room, Message message, Frame frame,
+      Frame named) {
+    ReentrantLock lock = rooms.lockFor(room);
+    lock.lock();
+    try {
+      if (RoomRegistry.LOBBY.equals(room)) {
+        if (history != null) {
+          history.append(message);
+        }
+        if (scrollback != null) {
+          scrollback.append(named);
         }
       }
+      return rooms.deliver(room, frame) >= 0;
+    } finally {
+      lock.unlock();
     }
   }
 
+  /**
+   * Adds a client to a room. Clients that join the lobby are sent its most recent messages. If the
+   * scrollback ring holds enough of them, they are copied out of it while holding the lock of the
+   * lobby's stripe, so that no message is both replayed and delivered live, or neither. Otherwise
+   * only the sequence number of the last stored message is recorded while holding the lock, and
+   * the messages up to it are read from the history and sent after the lock is released, so the
+   * lobby's deliveries never wait for the disk.
+   *
+   * @param client   The connection of the client
+   * @param username The username of the client
+   * @param room     The (validated) name of the room
+   * @param response The message sent to the client once it joined, or null
+   * @return False if the client already was a member of the room
+   */
+  private static boolean joinRoom(ClientConnection client, String username, String room,
+      Message response) {
+    long replayUpTo = NO_REPLAY;
+    ReentrantLock lock = rooms.lockFor(room);
+    lock.lock();
+    try {
+      if (!rooms.join(room, username, client)) {
+        return false;
+      }
+      if (response != null) {
+        client.sendMessage(response);
+      }
+      if (RoomRegistry.LOBBY.equals(room)) {
+        replayUpTo = replayScrollback(client);
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (replayUpTo != NO_REPLAY) {
+      history.readLast(ServerConfig.HISTORY_REPLAY, replayUpTo).thenAccept(messages -> {
+        for (Message message : messages) {
+          client.sendMessage(message);
+        }
+      });
+    }
+    return true;
+  }
+
+  /**
+   * Returns the room a chat message is sent to.
+   *
+   * @param message The chat message
+   * @return The room in the receiver field of the message, or the lobby if it is empty
+   */
+  static String roomOf(Message message) {
+    String receiver = message.getReceiver();
+    return receiver == null || receiver.isEmpty() ? RoomRegistry.LOBBY : receiver;
+  }
+
+  /**
+   * Returns a copy of a chat or whisper message that refers to its sender and receiver by their
+   * ids, as it is sent to the local clients. Room names and users without an id keep their names.
+   *
+   * @param message The message, with names
+   * @return The message with ids
+   */
+  private static Message withUserIds(Message message) {
+    if (message.getSenderId() != Message.NO_ID) {
+      return message;
+    }
+    int receiverId = message.getType() == MessageType.WHISPER
+        ? directory.idOf(message.getReceiver()) : Message.NO_ID;
+    return message.withIds(directory.idOf(message.getSender()), receiverId);
+  }
+
   /**
    * Sends a message to a specific client (a private message). The provided receiver in the message
-   * object is used to get the thread of the client to send the message to.
+   * object is used to get the thread of the client to send the message to. If the receiver is
+   * connected to another node of the cluster, the message is forwarded to that node.
+   * <p>
+   * No lock is taken: the whisper is queued straight into the receiver's outbound queue, which
+   * keeps the whispers to one receiver in order, so whispers between different users never wait
+   * for each other. The receiver may disconnect at any time, in which case nothing is sent.
    *
    * @param message The message object to send to the client
+   * @return False if the receiver is no longer connected, to this server or another node
+   */
+  static boolean sendWhisperMessage(Message message) {
+    long start = System.nanoTime();
+    boolean delivered = deliverToLocalUser(message)
+        || (cluster != null && cluster.forwardWhisper(message));
+    Metrics.WHISPER.record(System.nanoTime() - start);
+    return delivered;
+  }
+
+  /**
+   * Sends a message to the local client in its receiver field. A receiver id is looked up in the
+   * directory's array, a receiver name (e.g. of a whisper forwarded by another node) by name.
+   *
+   * @param message The message to send
+   * @return False if the receiver is not connected to this server
+   */
+  static boolean deliverToLocalUser(Message message) {
+    int receiverId = message.getReceiverId();
+    ClientConnection receiver = receiverId == Message.NO_ID
+        ? connectedClients.get(message.getReceiver()) : directory.connectionOf(receiverId);
+    if (receiver == null || !receiver.isConnected()) {
+      return false;
+    }
+    receiver.sendMessage(withUserIds(message));
+    return true;
+  }
+
+  /**
+   * Validates a username provided by a client during registration.
+   *
+   * @param username The username to validate
+   * @return The reason the username is invalid, or null if the username is valid
+   */
+  static String checkUsername(String username) {
+    if (username == null) {
+      return "Username can't be null";
+    } else if (username.length() < REQUIRED_USERNAME_LENGTH) {
+      return "Username must be more than 1 character";
+    } else if (!username.matches("[a-z0-9_-]+")) {
+      return "Username can only contain lowercase characters, digits, hyphens, underscores";
+    } else if (isOnline(username)) {
+      return "Username is already taken";
+    }
+    return null;
+  }
+
+  /**
+   * Reserves a (validated) username before the client is registered. In a cluster, the username is
+   * reserved with the node that owns it, so the future may complete later, on another thread.
+   *
+   * @param username The username to reserve
+   * @return A future that completes with the reason the username can't be used, or null if it can
+   * be used. It never completes exceptionally.
+   * @see Cluster#reserve(String)
    */
-  static synchronized void sendWhisperMessage(Message message) {
-    ServerThread receiver = connectedClients.get(message.getReceiver());
-    receiver.sendMessage(message);
+  static CompletableFuture<String> reserveUsername(String username) {
+    if (cluster == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return cluster.reserve(username);
+  }
+
+  /**
+   * Releases a reserved username that was not registered after all (e.g. the client disconnected
+   * while the username was being reserved).
+   *
+   * @param username The reserved username
+   */
+  static void releaseUsername(String username) {
+    if (cluster != null) {
+      cluster.release(username);
+    }
+  }
+
+  /**
+   * Register client to the server. This entails; claiming the username, creating a user instance
+   * to hold certain information about the client, adding the client to the map of connected
+   * clients, sending the client a snapshot of the connected users, notifying other clients of a new
+   * user joining the chat with a presence delta and adding the client to the lobby.
+   * <p>
+   * The username is claimed atomically, so of two clients that passed
+   * {@link #checkUsername(String)} with the same username at the same time, only one is
+   * registered.
+   *
+   * @param client   The connection of the client to register
+   * @param username The (validated) username provided by the client
+   * @return The reason the client was not registered, or null if it was registered
+   */
+  static String registerClient(ClientConnection client, String username) {
+    long start = System.nanoTime();
+    int id = addClient(client, username);
+    if (id == Message.NO_ID) {
+      return "Username is already taken";
+    }
+
+    /* Broadcasts skip the client until it is connected, so none reaches it before its CONNECTION
+    response. Hold the lock so that no presence delta is missing from both its snapshot and the
+    deltas it receives */
+    presenceLock.lock();
+    try {
+      client.setUser(new User(username, client.getInetAddress(), id));
+      String compression = client.isCompressionEnabled() ? FrameCompressor.NAME : "";
+      client.sendMessage(
+          new Message(MessageType.CONNECTION, compression, username, "Connected to server"));
+      if (sessions != null) {
+        client.sendMessage(new Message(MessageType.RESUME, "", username, sessions.open(username)));
+      }
+      client.setConnected(true);
+      if (idleReaper != null) {
+        idleReaper.watch(client);
+      }
+
+      presenceVersion++;
+      sendUsersSnapshot(client);
+      /* The new client ignores the delta, since its snapshot already has the same version */
+      broadcastPresenceDelta(MessageType.USER_JOINED, id, username);
+      if (cluster != null) {
+        cluster.localUserJoined(username);
+      }
+    } finally {
+      presenceLock.unlock();
+    }
+    /* The lobby is joined after releasing the presence lock, since a delivery to a room may
+    disconnect a slow client, which takes the presence lock while holding the room's lock */
+    joinRoom(client, username, RoomRegistry.LOBBY, null);
+
+    // Notify all connected client of a new client connection
+    String messageBody = String.format("'%s' connected", username);
+    broadcastMessage(new Message(MessageType.NEW_USER, "", "", messageBody));
+    Metrics.REGISTRATION.record(System.nanoTime() - start);
+
+    Logger.log(Level.INFO, "REGISTRATION", "%s:%d -> %s", client.getInetAddress(),
+        client.getPort(), messageBody);
+    return null;
+  }
+
+  /**
+   * Resumes the session of a client whose connection was lost, with the client's new connection.
+   * The client presents the token it was given when it registered and the number of frames it
+   * received over the lost connection, and is sent the messages it missed (see
+   * {@link DetachedSession}), followed by a snapshot of the users. The other clients are not
+   * notified, since to them the client never left. If the frames after the ones the client
+   * received are no longer kept, the session ends instead, so that the client can register again.
+   * <p>
+   * A client may notice that its connection failed before the server does. If the token is
+   * valid, but the old connection still looks alive, the old connection is closed, so that the
+   * client finds its session when it tries again.
+   *
+   * @param client  The new connection of the client
+   * @param request The RESUME message sent by the client, with the token and the number of frames
+   *                it received over the lost connection in its body
+   * @return The reason the session was not resumed, or null if it was resumed
+   */
+  static String resumeClient(ClientConnection client, Message request) {
+    if (sessions == null) {
+      return "Sessions can't be resumed";
+    }
+    String username = request.getSender();
+    String[] parts = String.valueOf(request.getBody()).split(Message.DELIMITER, -1);
+    long received;
+    try {
+      received = Long.parseLong(parts[1]);
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      return "Malformed request to resume a session";
+    }
+    String token = parts[0];
+
+    DetachedSession session = sessions.claim(username, token);
+    if (session == null) {
+      ClientConnection current = username == null ? null : connectedClients.get(username);
+      if (current != null && !(current instanceof DetachedSession)
+          && sessions.isToken(username, token)) {
+        current.connectionLost();
+        return "The previous connection is still being closed";
+      }
+      return "The session can no longer be resumed";
+    }
+
+    String compression = client.isCompressionEnabled() ? FrameCompressor.NAME : "";
+    int replayed = session.resume(client,
+        new Message(MessageType.RESUME, compression, username, token), received);
+    if (replayed < 0) {
+      /* The client registers again instead, so its username is released right away */
+      sessions.reject(session);
+      return "The messages missed by the session are no longer kept";
+    }
+    sessions.resumed();
+    client.setUser(session.getUser());
+    client.setConnected(true);
+    /* The presence updates were not sent again, so the client is sent the current users instead.
+    This must not be called while holding the lock of the session */
+    sendUsersSnapshot(client);
+    /* Take the session's place, the frames that are still sent to the session are passed on */
+    connectedClients.replace(username, session, client);
+    directory.add(username, client);
+    replaceMember(session, client);
+    rooms.replace(username, session, client);
+    if (idleReaper != null) {
+      idleReaper.watch(client);
+    }
+    Logger.log(Level.INFO, "SESSION", "%s:%d -> '%s' resumed its session (%d frames sent again)",
+        client.getInetAddress(), client.getPort(), username, replayed);
+    return null;
+  }
+
+  /**
+   * Sends the most recent chat messages to a client that just joined the lobby, if the scrollback
+   * ring holds enough of them. The frames are copied straight out of the ring. This must be called
+   * while holding the lock of the lobby's stripe, so that no chat message is both replayed and
+   * delivered live, or neither.
+   *
+   * @param client The client to send the messages to
+   * @return The sequence number of the last message stored in the history, which the messages
+   * have to be read from instead, or {@link #NO_REPLAY} if there is nothing to read
+   */
+  private static long replayScrollback(ClientConnection client) {
+    int count = ServerConfig.HISTORY_REPLAY;
+    if (count == 0) {
+      return NO_REPLAY;
+    }
+
+    ScrollbackRing.Snapshot snapshot = scrollback == null ? null : scrollback.copyLast(count);
+    if (snapshot != null && (snapshot.count == count || history == null)) {
+      client.sendFrame(snapshot.frames);
+    } else if (history != null) {
+      return history.getLastSequence();
+    }
+    return NO_REPLAY;
+  }
+
+  /**
+   * Handles a message sent by a registered client. The message is first stamped with the next
+   * sequence number of the server and the time it was received, and the chat and whisper messages
+   * sent on behalf of the client carry that stamp, so that the client can trace its messages.
+   *
+   * @param client  The connection of the client that sent the message
+   * @param message The message sent by the client
+   * @throws IllegalStateException If the client sent a message with an invalid message type
+   */
+  static void handleMessage(ClientConnection client, Message message) {
+    message = stamp(message);
+    String username = client.getUser().getUsername();
+    int id = client.getUser().getId();
+    switch (message.getType()) {
+      case CHAT:
+        /* Send the client's message to the members of the room */
+        if (message.getBody().length() != 0 && isSentBy(message, username, id)) {
+          String room = roomOf(message);
+          Message chat = new Message(MessageType.CHAT, username, message.getReceiver(),
+              message.getBody(), Message.NO_ID, Message.NO_ID, message.getSequence(),
+              message.getTimestamp());
+          if (!rooms.isMember(room, username) || !sendRoomMessage(room, chat)) {
+            String error = "You are not a member of " + room;
+            client.sendMessage(new Message(MessageType.INVALID_MESSAGE, "", "", error));
+          }
+        }
+        break;
+      case JOIN_ROOM: {
+        String room = message.getBody();
+        String error = RoomRegistry.checkName(room);
+        if (error == null) {
+          Message joined = new Message(MessageType.JOIN_ROOM, "", username, room);
+          if (!joinRoom(client, username, room, joined)) {
+            error = "You are already a member of " + room;
+          }
+        }
+        if (error != null) {
+          client.sendMessage(new Message(MessageType.INVALID_MESSAGE, "", "", error));
+        }
+        break;
+      }
+      case LEAVE_ROOM: {
+        String room = message.getBody();
+        if (room != null && rooms.leave(room, username, client)) {
+          client.sendMessage(new Message(MessageType.LEAVE_ROOM, "", username, room));
+        } else {
+          String error = "You are not a member of " + room;
+          client.sendMessage(new Message(MessageType.INVALID_MESSAGE, "", "", error));
+        }
+        break;
+      }
+      case WHISPER: {
+        /* Send a private message to the provided client, given by id or by name */
+        int receiverId = message.getReceiverId();
+        String receiver = receiverId == Message.NO_ID
+            ? message.getReceiver() : directory.nameOf(receiverId);
+        if (receiverId == Message.NO_ID && receiver == null) {
+          String error = "No username was provided";
+          client.sendMessage(new Message(MessageType.INVALID_MESSAGE, "", "", error));
+        } else if (receiver == null || !isOnline(receiver)) {
+          String error = "Cannot whisper to a non-existent user";
+          client.sendMessage(new Message(MessageType.NONEXISTENT_USER, "", "", error));
+        } else if (receiver.equals(username)) {
+          String error = "You cannot whisper to yourself";
+          client.sendMessage(new Message(MessageType.INVALID_MESSAGE, "", "", error));
+        } else if (isSentBy(message, username, id)) {
+          if (receiverId == Message.NO_ID) {
+            receiverId = directory.idOf(receiver);
+          }
+          Message whisper = new Message(MessageType.WHISPER, username, receiver,
+              message.getBody(), id, receiverId, message.getSequence(), message.getTimestamp());
+          if (sendWhisperMessage(whisper)) {
+            client.sendMessage(whisper); //Send the message back to the sender
+          } else {
+            /* The receiver disconnected after it was looked up */
+            String error = "Cannot whisper to a non-existent user";
+            client.sendMessage(new Message(MessageType.NONEXISTENT_USER, "", "", error));
+          }
+        }
+        break;
+      }
+      case DISCONNECTION:
+        /* The client is leaving, so its session ends right away */
+        client.disconnect();
+        notifyDisconnection(username);
+        break;
+      case USERS:
+        /* The client missed a presence delta and requested a new snapshot */
+        sendUsersSnapshot(client);
+        break;
+      case PING:
+        client.sendMessage(new Message(MessageType.PONG, "", "", ""));
+        break;
+      case PONG:
+        /* Receiving it was enough to show that the client is still there */
+        break;
+      default:
+        throw new IllegalStateException(
+            "User " + username + " sent an invalid message " + "type: " + message.getType());
+    }
+  }
+
+  /**
+   * @param message A message received from a client
+   * @return The message stamped with the next sequence number and the current time, in
+   * nanoseconds since the epoch
+   */
+  private static Message stamp(Message message) {
+    Instant now = Instant.now();
+    return message.withStamp(sequence.incrementAndGet(),
+        now.getEpochSecond() * 1_000_000_000L + now.getNano());
+  }
+
+  /**
+   * Checks that a client refers to itself as the sender of a message, by id or by name.
+   *
+   * @param message  The message sent by the client
+   * @param username The username of the client
+   * @param id       The id of the client
+   * @return True if the sender of the message is the client
+   */
+  private static boolean isSentBy(Message message, String username, int id) {
+    return message.getSenderId() == Message.NO_ID
+        ? username.equals(message.getSender()) : message.getSenderId() == id;
+  }
+
+  /**
+   * Notifies the remaining clients that a registered client has disconnected and sends them a
+   * presence delta removing the client from their list of connected users. The id of the user is
+   * freed, unless the username is online again.
+   *
+   * @param username The username of the client that disconnected
+   */
+  static void notifyDisconnection(String username) {
+    String message = username + " has disconnected";
+    broadcastMessage(new Message(MessageType.DISCONNECTION, "", "", message));
+
+    /* update client user list */
+    presenceLock.lock();
+    try {
+      presenceVersion++;
+      int id = isOnline(username) ? directory.idOf(username) : directory.remove(username);
+      broadcastPresenceDelta(MessageType.USER_LEFT, id, username);
+    } finally {
+      presenceLock.unlock();
+    }
+    Logger.log(Level.INFO, "DISCONNECTION", "%s has disconnected", username);
+  }
+
+  /**
+   * Notifies the local clients that a user connected to another node of the cluster, in the same
+   * way as a local registration.
+   *
+   * @param username The user that joined
+   */
+  static void remoteUserJoined(String username) {
+    presenceLock.lock();
+    try {
+      int id = directory.add(username, null);
+      presenceVersion++;
+      broadcastPresenceDelta(MessageType.USER_JOINED, id, username);
+    } finally {
+      presenceLock.unlock();
+    }
+    broadcastMessage(new Message(MessageType.NEW_USER, "", "", "'" + username + "' connected"));
+  }
+
+  /**
+   * Notifies the local clients that a user disconnected from another node of the cluster (or the
+   * node itself went down).
+   *
+   * @param username The user that left
+   */
+  static void remoteUserLeft(String username) {
+    notifyDisconnection(username);
+  }
+
+  /**
+   * Sends the usernames of the local clients to another node of the cluster. The presence lock is
+   * held, so the list can't overtake or fall behind the joins and leaves announced to the node.
+   *
+   * @param link The link to the node
+   */
+  static void sendLocalUsers(PeerLink link) {
+    presenceLock.lock();
+    try {
+      String body = String.join(Message.DELIMITER, connectedClients.keySet());
+      link.sendMessage(new Message(MessageType.USERS, "", "", body));
+    } finally {
+      presenceLock.unlock();
+    }
   }
 
 
   /**
    * Add the new client handler to the list of connected clients and their username to the list of
-   * client usernames
+   * client usernames, unless the username is already taken. Only non-blocking operations are used.
    *
    * @param client   The thread that handles the connected client.
    * @param username The username that the client provided.
+   * @return The id assigned to the client, or {@link Message#NO_ID} if the username is taken
    */
-  static void addClient(ServerThread client, String username) {
-    synchronized (connectedClients) {
-      connectedClients.put(username, client);
+  static int addClient(ClientConnection client, String username) {
+    if (connectedClients.putIfAbsent(username, client) != null) {
+      return Message.NO_ID;
     }
+    int id = directory.add(username, client);
+    ClientConnection[] current;
+    ClientConnection[] updated;
+    do {
+      current = members.get();
+      updated = Arrays.copyOf(current, current.length + 1);
+      updated[current.length] = client;
+    } while (!members.compareAndSet(current, updated));
+    return id;
   }
 
   /**
    * Remove a client handler from the list of connected clients and their username from the list of
-   * client usernames
+   * client usernames. Nothing is removed if the username has been registered again by another
+   * connection in the meantime.
+   *
+   * @param username The client's username
+   * @param client   The connection of the client
+   */
+  static void removeClient(String username, ClientConnection client) {
+    /* Leave the rooms first, so that the username can't be registered again while it still is a
+    member of them */
+    if (connectedClients.get(username) != client) {
+      return;
+    }
+    rooms.leaveAll(username, client);
+
+    boolean removed;
+    presenceLock.lock();
+    try {
+      removed = connectedClients.remove(username, client);
+      if (removed) {
+        if (sessions != null) {
+          sessions.close(username);
+        }
+        directory.detach(username, client);
+        if (cluster != null) {
+          cluster.localUserLeft(username);
+        }
+      }
+    } finally {
+      presenceLock.unlock();
+    }
+    if (removed) {
+      unpublish(client);
+      Metrics.connectionClosed(client);
+    }
+  }
+
+  /**
+   * Keeps the session of a client whose connection was lost, for the client to resume. A
+   * {@link DetachedSession} takes the place of the connection, so the client stays online and in
+   * its rooms, and the frames sent to it are kept. The session is ended if it is not resumed in
+   * time.
    *
-   * @param username: The client's username
+   * @param client The connection that was lost, which must not be closed yet
+   * @return False if the session can't be resumed, in which case the client has to be removed
    */
-  static void removeClient(String username) {
-    synchronized (connectedClients) {
-      connectedClients.remove(username);
+  static boolean detachClient(ClientConnection client) {
+    User user = client.getUser();
+    if (sessions == null || user == null || !client.isConnected()) {
+      return false;
+    }
+    String username = user.getUsername();
+    DetachedSession session = sessions.detach(client);
+    if (!connectedClients.replace(username, client, session)) {
+      return false;
     }
+    directory.add(username, session);
+    replaceMember(client, session);
+    rooms.replace(username, client, session);
+    /* Taken once the session has taken the connection's place, so no frame falls in between */
+    session.takeUnconfirmed(client);
+    sessions.detached(session);
+    Metrics.connectionClosed(client);
+    Logger.log(Level.INFO, "SESSION", "%s:%d -> lost the connection of '%s', keeping its session",
+        client.getInetAddress(), client.getPort(), username);
+    return true;
+  }
+
+  /**
+   * Ends a session that was not resumed in time. The client is removed and the other clients are
+   * notified, as if it had disconnected.
+   *
+   * @param session The session
+   */
+  static void endSession(DetachedSession session) {
+    String username = session.getUser().getUsername();
+    removeClient(username, session);
+    notifyDisconnection(username);
+  }
+
+  /**
+   * Publishes a copy of the snapshot of the connected clients with a connection in the place of
+   * another.
+   *
+   * @param current     The connection to replace
+   * @param replacement The connection that takes its place
+   */
+  private static void replaceMember(ClientConnection current, ClientConnection replacement) {
+    ClientConnection[] snapshot;
+    ClientConnection[] updated;
+    do {
+      snapshot = members.get();
+      int index = Arrays.asList(snapshot).indexOf(current);
+      if (index < 0) {
+        return;
+      }
+      updated = snapshot.clone();
+      updated[index] = replacement;
+    } while (!members.compareAndSet(snapshot, updated));
+  }
+
+  /**
+   * Publishes a copy of the snapshot of the connected clients without the given connection.
+   *
+   * @param client The connection to remove
+   */
+  private static void unpublish(ClientConnection client) {
+    ClientConnection[] current;
+    ClientConnection[] updated;
+    do {
+      current = members.get();
+      int index = 0;
+      while (index < current.length && current[index] != client) {
+        index++;
+      }
+      if (index == current.length) {
+        return;
+      }
+      updated = new ClientConnection[current.length - 1];
+      System.arraycopy(current, 0, updated, 0, index);
+      System.arraycopy(current, index + 1, updated, index, updated.length - index);
+    } while (!members.compareAndSet(current, updated));
   }
 
   /**
@@ -143,16 +1006,59 @@ public class Server {
     return connectedClients.containsKey(username);
   }
 
+  /**
+   * Checks if a user with the given username is connected to this server, or to another node of
+   * the cluster.
+   *
+   * @param username The username of the user to lookup
+   * @return True if the user is connected
+   */
+  static boolean isOnline(String username) {
+    return hasClient(username) || (cluster != null && cluster.hasRemoteUser(username));
+  }
+
+  /**
+   * @return The persistent history of chat messages, or null if it is disabled
+   */
+  static HistoryStore getHistory() {
+    return history;
+  }
+
+  /**
+   * @return The cluster this server is part of, or null if it runs on its own
+   */
+  static Cluster getCluster() {
+    return cluster;
+  }
+
+  /**
+   * @return The chat rooms and their members
+   */
+  static RoomRegistry getRooms() {
+    return rooms;
+  }
+
+  /**
+   * @return A snapshot of the connections of the connected clients
+   */
+  static Collection<ClientConnection> getConnectedClients() {
+    return Collections.unmodifiableList(Arrays.asList(members.get()));
+  }
+
   /**
    * Returns a list of usernames of clients currently connected. This is done by connected the map's
-   * keySet to an Arraylist.
+   * keySet to an Arraylist. In a cluster, the users connected to the other nodes are included.
    *
    * @return The list of usernames of connected clients
    */
   public static List<String> getClientUsernames() {
-    List<String> usernames;
-    synchronized (connectedClients) {
-      usernames = new ArrayList<>(connectedClients.keySet());
+    List<String> usernames = new ArrayList<>(connectedClients.keySet());
+    if (cluster != null) {
+      for (String username : cluster.getRemoteUsernames()) {
+        if (!connectedClients.containsKey(username)) {
+          usernames.add(username);
+        }
+      }
     }
     return usernames;
   }
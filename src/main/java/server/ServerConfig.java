@@ -0,0 +1,115 @@
+package server;
+
+/**
+ * Tunable server settings, read once from system properties (e.g.
+ * {@code java -Dchat.outbound.capacity=4096 TCPChatApp server localhost 5000}).
+ *
+ * @author Group4
+ */
+final class ServerConfig {
+
+  /* The number of frames that can wait in a client's outbound queue */
+  static final int OUTBOUND_CAPACITY = intProperty("chat.outbound.capacity", 1024);
+  /* What happens to a frame sent to a client whose outbound queue is full */
+  static final OutboundQueue.OverflowPolicy OUTBOUND_POLICY = OutboundQueue.OverflowPolicy.valueOf(
+      System.getProperty("chat.outbound.policy", "drop_oldest").toUpperCase());
+  /* The queued bytes, frames and stall (ms) at which a slow client is downgraded (0 = never) */
+  static final long SLOW_DOWNGRADE_BYTES = longProperty("chat.slow.downgradeBytes", 256 * 1024);
+  static final int SLOW_DOWNGRADE_FRAMES = intProperty("chat.slow.downgradeFrames",
+      OUTBOUND_CAPACITY / 2);
+  static final long SLOW_DOWNGRADE_MILLIS = longProperty("chat.slow.downgradeMillis", 2000);
+  /* The queued bytes and stall (ms) at which a slow client is evicted (0 = never) */
+  static final long SLOW_EVICT_BYTES = longProperty("chat.slow.evictBytes", 4L << 20);
+  static final long SLOW_EVICT_MILLIS = longProperty("chat.slow.evictMillis", 30_000);
+  /* The maximum number of frames written to a client with a single write and flush */
+  static final int BATCH_MAX_FRAMES = Math.max(1, intProperty("chat.batch.max", 64));
+  /* How long a writer waits for more frames to fill a batch (0 writes as soon as possible) */
+  static final long BATCH_LINGER_MICROS = Math.max(0, longProperty("chat.batch.lingerMicros", 0));
+  /* The number of lock stripes the chat rooms are spread over */
+  static final int ROOM_STRIPES = Math.max(1, intProperty("chat.rooms.stripes", 64));
+  /* The directory of the persistent chat history (empty disables it) */
+  static final String HISTORY_DIR = System.getProperty("chat.history.dir", "");
+  /* The number of recent chat messages sent to a client after it registered */
+  static final int HISTORY_REPLAY = Math.max(0, intProperty("chat.history.replay", 50));
+  /* The size and age at which a new history segment is started */
+  static final long HISTORY_SEGMENT_BYTES = longProperty("chat.history.segmentBytes", 16L << 20);
+  static final long HISTORY_SEGMENT_MINUTES = longProperty("chat.history.segmentMinutes", 60);
+  /* The total size of the history, and how long a segment is kept after its last message */
+  static final long HISTORY_RETAIN_BYTES = longProperty("chat.history.retainBytes", 1L << 30);
+  static final long HISTORY_RETAIN_HOURS = longProperty("chat.history.retainHours", 7 * 24);
+  /* The number of chat messages that can wait to be written to the history */
+  static final int HISTORY_QUEUE_CAPACITY = intProperty("chat.history.queue", 8192);
+  /* The size of the off-heap ring of recent chat frames, used for replays (0 disables it) */
+  static final int SCROLLBACK_BYTES = intProperty("chat.scrollback.bytes", 256 * 1024);
+  /* The maximum number of frames kept in the ring of recent chat frames */
+  static final int SCROLLBACK_FRAMES = intProperty("chat.scrollback.frames", 1024);
+  /* The port this node accepts the links of its cluster peers on (0 runs a single server) */
+  static final int CLUSTER_PORT = intProperty("chat.cluster.port", 0);
+  /* The name of this node as host:port, which must match the name its peers know it by */
+  static final String CLUSTER_NODE = System.getProperty("chat.cluster.node",
+      "localhost:" + CLUSTER_PORT);
+  /* The other nodes of the cluster, as a comma separated list of host:port */
+  static final String CLUSTER_PEERS = System.getProperty("chat.cluster.peers", "");
+  /* The number of frames that can wait in the link to a peer before the link is closed */
+  static final int CLUSTER_QUEUE_CAPACITY = intProperty("chat.cluster.queue", 65536);
+  /* How long the writer of a link waits for more frames to fill a batch */
+  static final long CLUSTER_LINGER_MICROS = Math.max(0,
+      longProperty("chat.cluster.lingerMicros", 200));
+  /* How long a node waits for the owner of a username to reserve it */
+  static final long CLUSTER_TIMEOUT_MILLIS = longProperty("chat.cluster.timeoutMillis", 2000);
+  /* The silence (ms) after which a client is pinged (0 never pings or disconnects idle clients) */
+  static final long IDLE_TIMEOUT_MILLIS = longProperty("chat.idle.timeoutMillis", 60_000);
+  /* The time (ms) a pinged client has to answer before it is disconnected */
+  static final long IDLE_PONG_MILLIS = longProperty("chat.idle.pongMillis", 15_000);
+  /* The length (ms) of a tick of the idle timer, which is the precision of the idle timeouts */
+  static final long IDLE_TICK_MILLIS = longProperty("chat.idle.tickMillis", 500);
+  /* How long (ms) the session of a client whose connection was lost can be resumed (0 ends the
+  session right away) */
+  static final long SESSION_GRACE_MILLIS = longProperty("chat.session.graceMillis", 30_000);
+  /* The number of frames kept for a lost session, beyond which the session ends. They are all
+  queued at once when the session is resumed, so this stays well below the outbound capacity */
+  static final int SESSION_BUFFER_FRAMES = Math.max(1, intProperty("chat.session.bufferFrames",
+      OUTBOUND_CAPACITY / 4));
+  /* The number of frames last written to each client that are kept to resend after a resume */
+  static final int SESSION_RECENT_FRAMES = Math.max(1, intProperty("chat.session.recentFrames",
+      64));
+  /* The local port that serves metric snapshots (0 disables it) */
+  static final int STATS_PORT = intProperty("chat.stats.port", 0);
+  /* The file that metric snapshots are periodically written to (empty disables it) */
+  static final String STATS_FILE = System.getProperty("chat.stats.file", "");
+  /* How often the metric snapshot file is rewritten */
+  static final int STATS_INTERVAL_SECONDS = intProperty("chat.stats.intervalSeconds", 10);
+
+  private ServerConfig() {
+  }
+
+  /**
+   * Reads an integer system property.
+   *
+   * @param name         The name of the property
+   * @param defaultValue The value used when the property is missing or not a number
+   * @return The value of the property
+   */
+  static int intProperty(String name, int defaultValue) {
+    try {
+      return Integer.parseInt(System.getProperty(name, String.valueOf(defaultValue)));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Reads a long system property.
+   *
+   * @param name         The name of the property
+   * @param defaultValue The value used when the property is missing or not a number
+   * @return The value of the property
+   */
+  static long longProperty(String name, long defaultValue) {
+    try {
+      return Long.parseLong(System.getProperty(name, String.valueOf(defaultValue)));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
@@ -3,104 +3,121 @@ package server;
 import utils.*;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import utils.Logger.Level;
 import utils.Message.MessageType;
 
-import static server.Server.REQUIRED_USERNAME_LENGTH;
-
 /**
  * Represent a server thread that communicates with a client via sockets.
  * <p>
  * This class handles all communication made by connected clients to the server, such as messages
- * sent by a client or when a client disconnects. Each client is handled in a separate thread, which
- * is killed once the client disconnects.
+ * sent by a client or when a client disconnects. Each client is handled in a separate (platform or
+ * virtual) thread, which finishes once the client disconnects.
+ * <p>
+ * Messages sent to the client are never written by the sending thread. They are added to the
+ * client's bounded {@link OutboundQueue} and written by the client's own writer, which runs on the
+ * executor given to the constructor.
  * <p>
  * This class is a subclass of the {@link utils.AbstractThread} class.
  *
  * @author Group4
  */
-public class ServerThread extends AbstractThread {
+public class ServerThread extends AbstractThread implements ClientConnection {
+
+  /* Frames waiting to be written to the client */
+  private final OutboundQueue outbound = new OutboundQueue();
+  /* The frames last handed to the socket, or null if sessions can't be resumed */
+  private final RecentFrames recent = RecentFrames.fromConfig();
+  /* Runs the writer that drains the outbound queue */
+  private final Executor writerExecutor;
+  /* The time the last message was received from the client */
+  private volatile long lastActivityNanos = System.nanoTime();
 
   /**
-   * Constructor that takes a client's socket as an argument.
+   * Constructor that takes a client's socket as an argument. The writer runs on a new platform
+   * thread.
    *
    * @param socket The client's socket connection
    * @see AbstractThread#AbstractThread(Socket)
    */
   public ServerThread(Socket socket) throws IOException {
+    this(socket, writer -> new Thread(writer).start());
+  }
+
+  /**
+   * Constructor that takes a client's socket and the executor of its writer as arguments.
+   *
+   * @param socket         The client's socket connection
+   * @param writerExecutor The executor used to run the writer of the outbound queue
+   * @see AbstractThread#AbstractThread(Socket)
+   */
+  public ServerThread(Socket socket, Executor writerExecutor) throws IOException {
     super(socket);
+    this.writerExecutor = writerExecutor;
   }
 
   /**
    * Validate the username provided by the client. If invalid, notify the client of the validation
    * error if valid, instantiate the user object with the client's username and InetAddress, and
    * then add the ServerThread instance to the list of connected clients and their username to the
-   * list of client usernames.
+   * list of client usernames. In a cluster, this thread waits until the username is reserved.
    */
   private void validateUsername() {
     try {
-      String errorMessage = "";
-      boolean validUsername = true;
-
       Message clientMessage = getMessage();
       String username = clientMessage.getBody();
-      if (username == null) {
-        validUsername = false;
-        errorMessage = "Username can't be null";
-      } else if (username.length() < REQUIRED_USERNAME_LENGTH) {
-        validUsername = false;
-        errorMessage = "Username must be more than 1 character";
-      } else if (!username.matches("[a-z0-9_-]+")) {
-        validUsername = false;
-        errorMessage = "Username can only contain lowercase characters, digits, hyphens, underscores";
-      } else if (Server.hasClient(username)) {
-        validUsername = false;
-        errorMessage = "Username is already taken";
+      if (FrameCompressor.ENABLED && FrameCompressor.NAME.equals(clientMessage.getReceiver())) {
+        enableCompression();
+      }
+      if (clientMessage.getType() == MessageType.RESUME) {
+        String errorMessage = Server.resumeClient(this, clientMessage);
+        if (errorMessage != null) {
+          sendMessage(new Message(MessageType.INVALID_USERNAME, "", "", errorMessage));
+        }
+        return;
+      }
+      String errorMessage = Server.checkUsername(username);
+      if (errorMessage == null) {
+        errorMessage = Server.reserveUsername(username).join();
       }
 
-      if (validUsername) {
-        this.registerClient(username);
-      } else {
+      if (errorMessage == null) {
+        errorMessage = this.registerClient(username);
+      }
+      if (errorMessage != null) {
         sendMessage(new Message(MessageType.INVALID_USERNAME, "", "", errorMessage));
       }
+    } catch (MalformedMessageException e) {
+      Logger.log(Level.WARN, "DATA CORRUPTION", "Failed to decode a message frame: %s",
+          e.getMessage());
     } catch (IOException e) {
       try {
         super.disconnect();
-        String log = "Socket -> " + clientSocket.getInetAddress() + ":" + clientSocket.getPort()
-            + " disconnected";
-        Logger.toConsole("DISCONNECTION", log);
+        Logger.log(Level.INFO, "DISCONNECTION", "Socket -> %s:%d disconnected",
+            clientSocket.getInetAddress(), clientSocket.getPort());
       } catch (IOException ignored) {
         String logMessage = "Closing socket of user: '" + user.getUsername() + "'";
-        Logger.toConsole("SERVER ERROR", logMessage);
+        Logger.log(Level.ERROR, "SERVER ERROR", logMessage);
       }
     } catch (NullPointerException e) {
-      Logger.toConsole("CLIENT ERROR", e.getMessage());
-    } catch (ClassNotFoundException e) {
-      Logger.toConsole("DATA CORRUPTION", "Failed to deserialize data to a message object");
+      Logger.log(Level.WARN, "CLIENT ERROR", e.getMessage());
     }
   }
 
   /**
-   * Register client to the server. This entails; creating a user instance to hold certain
-   * information about the client, adding the client socket to the map of connected clients, adding
-   * the clients username to the list of client username, notifying other clients of a new user
-   * joining the chat and sending the list of connected.
+   * Register client to the server.
    *
    * @param username THe username provided by the client
+   * @return The reason the client was not registered, or null if it was registered
+   * @see Server#registerClient(ClientConnection, String)
    */
-  synchronized void registerClient(String username) {
-    setUser(new User(username, clientSocket.getInetAddress()));
-    Server.addClient(this, username);
-    sendMessage(new Message(MessageType.CONNECTION, "", username, "Connected to server"));
-    setConnected(true);
-
-    // Notify all connected client of a new client connection
-    String messageBody = String.format("'%s' connected", username);
-    Server.broadcastMessage(new Message(MessageType.NEW_USER, "", "", messageBody));
-
-    Server.broadcastUsersList(); // Send the list of connected users to all clients
-    String log = String.format("%s:%d -> ", clientSocket.getInetAddress(), clientSocket.getPort());
-    Logger.toConsole("REGISTRATION", log + messageBody);
+  String registerClient(String username) {
+    return Server.registerClient(this, username);
   }
 
   /**
@@ -111,62 +128,143 @@ public class ServerThread extends AbstractThread {
    */
   @Override
   public void run() {
+    writerExecutor.execute(this::writeOutbound);
     validateUsername();
     while (isConnected()) {
       try {
-        Message message = getMessage();
-        switch (message.getType()) {
-          case CHAT:
-            /* Send the client's message to all connected clients */
-            if (message.getBody().length() != 0 && message.getSender().equals(user.getUsername())) {
-              Server.broadcastMessage(message);
-            }
-            break;
-          case WHISPER:
-            /* Send a private message to the provided client [getReceiver()] */
-            if (message.getReceiver() == null) {
-              String error = "No username was provided";
-              sendMessage(new Message(MessageType.INVALID_MESSAGE, "", "", error));
-            } else if (!Server.hasClient(message.getReceiver())) {
-              String error = "Cannot whisper to a non-existent user";
-              sendMessage(new Message(MessageType.NONEXISTENT_USER, "", "", error));
-            } else if (message.getReceiver().equals(user.getUsername())) {
-              String error = "You cannot whisper to yourself";
-              sendMessage(new Message(MessageType.INVALID_MESSAGE, "", "", error));
-            } else {
-              sendMessage(message); //Send the message back to the sender
-              Server.sendWhisperMessage(message);
-            }
-            break;
-          default:
-            throw new IllegalStateException(
-                "User " + user.getUsername() + " sent an invalid message " + "type: "
-                    + message.getType());
-        }
+        Server.handleMessage(this, getMessage());
+      } catch (MalformedMessageException e) {
+        /* The frame was received completely, so the next frame can still be read */
+        Logger.log(Level.WARN, "DATA CORRUPTION", "Failed to decode a message frame: %s",
+            e.getMessage());
       } catch (IOException e) {
-        /* If the client is unreachable close their socket connection and remove them from the
-        connected clients map */
+        /* If the client is unreachable keep its session for it to resume, or close their socket
+        connection and remove them from the connected clients map */
+        boolean detached = Server.detachClient(this);
         disconnect();
 
         /* Notify the other clients that a client has disconnected */
-        String message = user.getUsername() + " has disconnected";
-        Server.broadcastMessage(
-            new Message(MessageType.DISCONNECTION, "", "", message));
-
-        /* update client user list */
-        Server.broadcastUsersList();
-        Logger.toConsole("DISCONNECTION", message);
+        if (!detached) {
+          Server.notifyDisconnection(user.getUsername());
+        }
       } catch (NullPointerException e) {
         /* Handle null objects sent by a client */
-        Logger.toConsole("CLIENT ERROR", e.getMessage());
+        Logger.log(Level.WARN, "CLIENT ERROR", e.getMessage());
       } catch (IllegalStateException e) {
         /* Handle exception when a client sends a message with an invalid message type */
-        Logger.toConsole("CLIENT ERROR", e.getMessage());
-      } catch (ClassNotFoundException e) {
-        Logger.toConsole("DATA CORRUPTION",
-            "Failed to deserialize data to a message object");
+        Logger.log(Level.WARN, "CLIENT ERROR", e.getMessage());
       }
     }
+    /* Let the writer finish the queued frames (e.g. a rejected username) and stop */
+    outbound.close();
+  }
+
+  /**
+   * Reads a message from the client and counts it in the server's metrics.
+   *
+   * @return The message received
+   * @throws IOException If the frame could not be read or decoded
+   * @see AbstractThread#getMessage()
+   */
+  @Override
+  public Message getMessage() throws IOException {
+    Message message = super.getMessage();
+    lastActivityNanos = System.nanoTime();
+    Metrics.messageReceived(message.getType());
+    return message;
+  }
+
+  /**
+   * Encodes a message and adds it to the client's outbound queue.
+   *
+   * @param message The message to send
+   */
+  @Override
+  public void sendMessage(Message message) {
+    try {
+      sendFrame(Frame.encode(message, getCodec()));
+    } catch (IOException e) {
+      Logger.log(Level.ERROR, "SERVER ERROR", "Failed to encode message: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Adds an encoded frame to the client's outbound queue. This never blocks; if the queue is full
+   * the configured {@link OutboundQueue.OverflowPolicy} is applied, and a client that is too far
+   * behind is disconnected.
+   *
+   * @param frame The encoded frame to send
+   */
+  @Override
+  public void sendFrame(Frame frame) {
+    if (!outbound.offer(frame)) {
+      String username = user == null ? clientSocket.getInetAddress().toString() : user.getUsername();
+      Logger.log(Level.WARN, "SLOW CLIENT", "Evicting '%s': %s", username,
+          outbound.getEvictionReason());
+      disconnect();
+    }
+  }
+
+  /**
+   * Writes the frames of the outbound queue to the socket until the queue is closed or a write
+   * fails. Every drain cycle writes all the queued frames (up to the configured batch size) with
+   * one write and one flush. A failed write closes the socket, which the reading thread then
+   * handles as a disconnection.
+   */
+  private void writeOutbound() {
+    List<Frame> batch = new ArrayList<>(ServerConfig.BATCH_MAX_FRAMES);
+    long lingerNanos = TimeUnit.MICROSECONDS.toNanos(ServerConfig.BATCH_LINGER_MICROS);
+    try {
+      while (outbound.takeBatch(batch, ServerConfig.BATCH_MAX_FRAMES, lingerNanos)) {
+        if (recent != null) {
+          recent.addAll(batch);
+        }
+        writeFrames(batch);
+        for (Frame frame : batch) {
+          Metrics.messageSent(frame.getType());
+        }
+        batch.clear();
+        if (outbound.takeRestored() && isConnected()) {
+          /* The presence updates dropped while the client was downgraded are replaced */
+          Server.sendUsersSnapshot(this);
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      outbound.close();
+      outbound.clear();
+      /* Only close the socket, the reading thread still has to remove the client */
+      try {
+        clientSocket.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /**
+   * Closes the socket of a client that is no longer reachable. The reading thread then handles it
+   * as any failed connection.
+   */
+  @Override
+  public void connectionLost() {
+    try {
+      clientSocket.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  @Override
+  public long takeUnconfirmedFrames(List<Frame> frames) {
+    long written = recent == null ? 0 : recent.takeAll(frames);
+    Frame frame;
+    while ((frame = outbound.poll()) != null) {
+      frames.add(frame);
+    }
+    return written;
+  }
+
+  @Override
+  public long getLastActivityNanos() {
+    return lastActivityNanos;
   }
 
   /**
@@ -174,13 +272,32 @@ public class ServerThread extends AbstractThread {
    */
   @Override
   public void disconnect() {
+    outbound.close();
     try {
       super.disconnect();
     } catch (IOException e) {
       String logMessage = "Closing socket of user: '" + user.getUsername() + "'";
-      Logger.toConsole("SERVER ERROR", logMessage);
+      Logger.log(Level.ERROR, "SERVER ERROR", logMessage);
     } finally {
-      Server.removeClient(user.getUsername());
+      if (user != null) {
+        Server.removeClient(user.getUsername(), this);
+      }
     }
   }
+
+  /**
+   * @return The IP address of the client
+   */
+  @Override
+  public InetAddress getInetAddress() {
+    return clientSocket.getInetAddress();
+  }
+
+  /**
+   * @return The remote port of the client's socket
+   */
+  @Override
+  public int getPort() {
+    return clientSocket.getPort();
+  }
 }
@@ -0,0 +1,222 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import utils.Logger;
+import utils.Logger.Level;
+
+/**
+ * The resumable sessions of the local clients.
+ * <p>
+ * Every client is given a random resume token when it registers. When the connection of a client
+ * is lost, its session is kept as a {@link DetachedSession} for {@code chat.session.graceMillis},
+ * and a client that reconnects within that window with its token resumes the session instead of
+ * registering again: the other clients never see it leave and join, and it is sent the messages
+ * it missed. Sessions that are not resumed in time are ended by the registry's timer thread, in
+ * the same way as a client that disconnected.
+ *
+ * @author Group4
+ */
+final class SessionRegistry {
+
+  /* The number of random bytes of a resume token */
+  private static final int TOKEN_BYTES = 18;
+  private static final SecureRandom random = new SecureRandom();
+
+  /* The number of sessions that were detached, resumed and ended after their grace window */
+  private static final LongAdder detachments = new LongAdder();
+  private static final LongAdder resumes = new LongAdder();
+  private static final LongAdder expiries = new LongAdder();
+
+  private final long graceMillis;
+  private final int capacity;
+  /* The resume token of the session of every local user */
+  private final ConcurrentHashMap<String, String> tokens = new ConcurrentHashMap<>();
+  /* The sessions whose connection was lost, by username */
+  private final ConcurrentHashMap<String, DetachedSession> lost = new ConcurrentHashMap<>();
+  /* Ends the sessions that were not resumed in time */
+  private final ScheduledExecutorService timer;
+
+  /**
+   * Constructor
+   *
+   * @param graceMillis How long a lost session can be resumed
+   * @param capacity    The number of frames kept for a lost session
+   */
+  SessionRegistry(long graceMillis, int capacity) {
+    this.graceMillis = graceMillis;
+    this.capacity = capacity;
+    this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "session-expiry");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @return The registry configured by the {@code chat.session.*} properties, or null if sessions
+   * can't be resumed
+   * @see ServerConfig
+   */
+  static SessionRegistry fromConfig() {
+    if (ServerConfig.SESSION_GRACE_MILLIS <= 0) {
+      return null;
+    }
+    return new SessionRegistry(ServerConfig.SESSION_GRACE_MILLIS,
+        ServerConfig.SESSION_BUFFER_FRAMES);
+  }
+
+  /**
+   * Starts the session of a client that registered.
+   *
+   * @param username The username of the client
+   * @return The resume token of the session
+   */
+  String open(String username) {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    random.nextBytes(bytes);
+    String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    tokens.put(username, token);
+    return token;
+  }
+
+  /**
+   * Forgets the session of a client that left.
+   *
+   * @param username The username of the client
+   */
+  void close(String username) {
+    tokens.remove(username);
+  }
+
+  /**
+   * Creates the session that takes the place of a lost connection. The session only starts its
+   * grace window once it has taken the connection's place, see {@link #detached(DetachedSession)}.
+   *
+   * @param client The connection that was lost
+   * @return The session
+   */
+  DetachedSession detach(ClientConnection client) {
+    return new DetachedSession(this, client, capacity);
+  }
+
+  /**
+   * Starts the grace window of a session that has taken the place of a lost connection.
+   *
+   * @param session The session
+   */
+  void detached(DetachedSession session) {
+    lost.put(session.getUser().getUsername(), session);
+    detachments.increment();
+    timer.schedule(() -> end(session), graceMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Checks a resume token.
+   *
+   * @param username The username of the client
+   * @param token    The token presented by the client
+   * @return True if the token is the one of the client's session
+   */
+  boolean isToken(String username, String token) {
+    String expected = username == null ? null : tokens.get(username);
+    return expected != null && token != null && MessageDigest.isEqual(
+        expected.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Claims a lost session for a client that presented its token. A session can only be claimed
+   * once, and not after it ended. A claimed session is then either resumed, see
+   * {@link #resumed()}, or rejected, see {@link #reject(DetachedSession)}.
+   *
+   * @param username The username of the client
+   * @param token    The token presented by the client
+   * @return The session, or null if the token is wrong or there is no lost session to resume
+   */
+  DetachedSession claim(String username, String token) {
+    if (!isToken(username, token)) {
+      return null;
+    }
+    DetachedSession session = lost.get(username);
+    if (session == null || !session.settle()) {
+      return null;
+    }
+    lost.remove(username, session);
+    return session;
+  }
+
+  /**
+   * Counts a claimed session that was resumed.
+   */
+  void resumed() {
+    resumes.increment();
+  }
+
+  /**
+   * Ends a claimed session that could not be resumed, because the messages the client missed are
+   * no longer known, as if the client had disconnected. The client can then register again with
+   * the same username.
+   *
+   * @param session The session
+   */
+  void reject(DetachedSession session) {
+    expiries.increment();
+    Logger.log(Level.INFO, "SESSION", "The session of '%s' can't be resumed, its missed "
+        + "messages are no longer kept", session.getUser().getUsername());
+    session.setConnected(false);
+    Server.endSession(session);
+  }
+
+  /**
+   * Ends a lost session on the registry's thread, e.g. because it can't keep any more frames.
+   *
+   * @param session The session
+   */
+  void endSoon(DetachedSession session) {
+    timer.execute(() -> end(session));
+  }
+
+  /**
+   * Ends a lost session that was not resumed, as if the client had disconnected.
+   */
+  private void end(DetachedSession session) {
+    if (!session.settle()) {
+      return;
+    }
+    String username = session.getUser().getUsername();
+    lost.remove(username, session);
+    expiries.increment();
+    Logger.log(Level.INFO, "SESSION", "The session of '%s' ended without being resumed",
+        username);
+    session.setConnected(false);
+    Server.endSession(session);
+  }
+
+  /**
+   * @return The number of sessions whose connection was lost
+   */
+  static long detachments() {
+    return detachments.sum();
+  }
+
+  /**
+   * @return The number of lost sessions that were resumed
+   */
+  static long resumes() {
+    return resumes.sum();
+  }
+
+  /**
+   * @return The number of lost sessions that ended without being resumed, or could not be resumed
+   */
+  static long expiries() {
+    return expiries.sum();
+  }
+}
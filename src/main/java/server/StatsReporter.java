@@ -0,0 +1,132 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import utils.Logger;
+import utils.Logger.Level;
+
+/**
+ * Publishes snapshots of the server's {@link Metrics}, so they can be scraped without attaching a
+ * profiler.
+ * <p>
+ * ADMIN PORT ({@code chat.stats.port}): a local port that answers every connection with the current
+ * snapshot as a plain text HTTP response (e.g. {@code curl http://localhost:5001/}). The port is only
+ * bound to the loopback address.
+ * <p>
+ * DUMP FILE ({@code chat.stats.file}): a file that is replaced with the current snapshot every
+ * {@code chat.stats.intervalSeconds} seconds.
+ * <p>
+ * Both are disabled unless their property is set.
+ *
+ * @author Group4
+ */
+final class StatsReporter {
+
+  /* How long the admin port waits for the request of a scraper before answering anyway */
+  private static final int REQUEST_TIMEOUT_MILLIS = 500;
+
+  private StatsReporter() {
+  }
+
+  /**
+   * Starts the configured admin port and dump file writer.
+   *
+   * @see ServerConfig
+   */
+  static void start() {
+    if (ServerConfig.STATS_PORT > 0) {
+      try {
+        ServerSocket adminSocket = new ServerSocket(ServerConfig.STATS_PORT, 50,
+            InetAddress.getLoopbackAddress());
+        startDaemon("stats-port", () -> serve(adminSocket));
+        Logger.log(Level.INFO, "SERVER", "Stats available on port %d", ServerConfig.STATS_PORT);
+      } catch (IOException e) {
+        Logger.log(Level.ERROR, "SERVER ERROR", "Failed to open the stats port: " + e.getMessage());
+      }
+    }
+
+    if (!ServerConfig.STATS_FILE.isEmpty()) {
+      startDaemon("stats-file", () -> dump(Paths.get(ServerConfig.STATS_FILE)));
+    }
+  }
+
+  private static void startDaemon(String name, Runnable task) {
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Answers every connection to the admin port with a snapshot.
+   */
+  private static void serve(ServerSocket adminSocket) {
+    while (true) {
+      try (Socket socket = adminSocket.accept()) {
+        skipRequest(socket);
+        byte[] body = Metrics.snapshot(Server.getConnectedClients())
+            .getBytes(StandardCharsets.UTF_8);
+        String header = "HTTP/1.0 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\n"
+            + "Content-Length: " + body.length + "\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+      } catch (IOException e) {
+        Logger.log(Level.ERROR, "SERVER ERROR", "Failed to send stats: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Reads the request of a scraper up to the empty line that ends its headers, so that closing the
+   * socket does not reset the connection before the response was read. Clients such as nc, that
+   * send no request at all, are answered once the timeout expires.
+   */
+  private static void skipRequest(Socket socket) throws IOException {
+    socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+    try {
+      String line;
+      while ((line = in.readLine()) != null && !line.isEmpty()) {
+        /* Only the end of the request matters */
+      }
+    } catch (SocketTimeoutException ignored) {
+    }
+  }
+
+  /**
+   * Replaces the dump file with a snapshot at the configured interval. The snapshot is written to a
+   * temporary file first and then moved over the dump file, so readers never see a partial
+   * snapshot.
+   */
+  private static void dump(Path file) {
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    long intervalMillis = Math.max(1, ServerConfig.STATS_INTERVAL_SECONDS) * 1_000;
+    while (true) {
+      try {
+        Thread.sleep(intervalMillis);
+        Files.write(temporary,
+            Metrics.snapshot(Server.getConnectedClients()).getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException e) {
+        Logger.log(Level.ERROR, "SERVER ERROR", "Failed to write stats to %s: %s", file,
+            e.getMessage());
+      }
+    }
+  }
+}
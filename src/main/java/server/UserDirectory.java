@@ -0,0 +1,169 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import utils.Message;
+import utils.Presence;
+
+/**
+ * Assigns a small integer id to every online user, and finds the user and its connection by id.
+ * <p>
+ * The ids index two arrays (usernames and connections), so routing a message that refers to its
+ * receiver by id needs no string hashing or comparing. The users connected to other nodes of a
+ * cluster get an id too, without a connection. The ids of users that left are reused, but only
+ * once {@link #REUSE_AFTER} ids are free (oldest first), so that a client that has not yet seen a
+ * user leave is unlikely to see its id reused for another user. The arrays grow when needed, and
+ * only change while holding the directory's lock; lookups never lock.
+ *
+ * @author Group4
+ */
+final class UserDirectory {
+
+  /* The number of free ids that are kept before the oldest of them is reused */
+  static final int REUSE_AFTER = 1024;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /* The id of each online user */
+  private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+  /* The username and the local connection (null for remote users) of each id */
+  private volatile AtomicReferenceArray<String> names =
+      new AtomicReferenceArray<>(INITIAL_CAPACITY);
+  private volatile AtomicReferenceArray<ClientConnection> connections =
+      new AtomicReferenceArray<>(INITIAL_CAPACITY);
+  /* The ids of the users that left, oldest first (guarded by the lock) */
+  private final ArrayDeque<Integer> freeIds = new ArrayDeque<>();
+  /* The lowest id that was never used (guarded by the lock) */
+  private int nextId = 0;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Assigns an id to a user, or updates the connection of a user that already has one.
+   *
+   * @param username The username of the user
+   * @param client   The connection of the user, or null if it is connected to another node
+   * @return The id of the user
+   */
+  int add(String username, ClientConnection client) {
+    lock.lock();
+    try {
+      Integer existing = ids.get(username);
+      if (existing != null) {
+        connections.set(existing, client);
+        return existing;
+      }
+
+      int id = freeIds.size() > REUSE_AFTER ? freeIds.pollFirst() : nextId++;
+      ensureCapacity(id + 1);
+      names.set(id, username);
+      connections.set(id, client);
+      ids.put(username, id);
+      return id;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the connection of a user that disconnected. The user keeps its id until its departure
+   * is announced, see {@link #remove(String)}.
+   *
+   * @param username The username of the user
+   * @param client   The connection that was closed, so that a newer connection is not removed
+   */
+  void detach(String username, ClientConnection client) {
+    lock.lock();
+    try {
+      Integer id = ids.get(username);
+      if (id != null) {
+        connections.compareAndSet(id, client, null);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes a user that left, and frees its id.
+   *
+   * @param username The username of the user
+   * @return The id the user had, or {@link Message#NO_ID} if it had none
+   */
+  int remove(String username) {
+    lock.lock();
+    try {
+      Integer id = ids.remove(username);
+      if (id == null) {
+        return Message.NO_ID;
+      }
+      names.set(id, null);
+      connections.set(id, null);
+      freeIds.addLast(id);
+      return id;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param username A username
+   * @return The id of the user, or {@link Message#NO_ID} if it is not online
+   */
+  int idOf(String username) {
+    Integer id = username == null ? null : ids.get(username);
+    return id == null ? Message.NO_ID : id;
+  }
+
+  /**
+   * @param id An id
+   * @return The username of the user with the id, or null if no user has it
+   */
+  String nameOf(int id) {
+    AtomicReferenceArray<String> current = names;
+    return id >= 0 && id < current.length() ? current.get(id) : null;
+  }
+
+  /**
+   * @param id An id
+   * @return The connection of the local user with the id, or null if no local user has it
+   */
+  ClientConnection connectionOf(int id) {
+    AtomicReferenceArray<ClientConnection> current = connections;
+    return id >= 0 && id < current.length() ? current.get(id) : null;
+  }
+
+  /**
+   * @return The presence entries ({@code id=username}) of the online users
+   * @see Presence#entry(int, String)
+   */
+  List<String> entries() {
+    List<String> entries = new ArrayList<>(ids.size());
+    for (Map.Entry<String, Integer> user : ids.entrySet()) {
+      entries.add(Presence.entry(user.getValue(), user.getKey()));
+    }
+    return entries;
+  }
+
+  /**
+   * Grows the arrays to hold at least the given number of ids. The caller must hold the lock.
+   */
+  private void ensureCapacity(int capacity) {
+    int length = names.length();
+    if (capacity <= length) {
+      return;
+    }
+    int grown = Math.max(capacity, length * 2);
+    AtomicReferenceArray<String> newNames = new AtomicReferenceArray<>(grown);
+    AtomicReferenceArray<ClientConnection> newConnections = new AtomicReferenceArray<>(grown);
+    for (int i = 0; i < length; i++) {
+      newNames.set(i, names.get(i));
+      newConnections.set(i, connections.get(i));
+    }
+    names = newNames;
+    connections = newConnections;
+  }
+}
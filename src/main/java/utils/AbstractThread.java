@@ -1,24 +1,58 @@
 package utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A subclass of the {@link Thread} class. Provides common functionalities that can be used by
- * multiple threads.
+ * Provides common functionalities for the handlers of a socket connection, which are used by both
+ * the client and the server.
+ * <p>
+ * Handlers implement {@link Runnable}, so they can run on a platform thread, a virtual thread or any
+ * other executor. Locks are used instead of synchronized blocks, since a virtual thread that blocks
+ * on socket I/O inside a synchronized block pins its carrier thread.
+ * <p>
+ * Once compression is negotiated, large frames are compressed by a {@link FrameCompressor} right
+ * before they are written, and compressed frames are decompressed right after they are read.
  *
  * @author Group4
  */
-public abstract class AbstractThread extends Thread {
+public abstract class AbstractThread implements Runnable {
 
-  public final Socket clientSocket;
+  /* The initial size of the reusable frame buffers, which grow when a larger frame is handled */
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+
+  /* The socket connection, which a client replaces when it reconnects */
+  public volatile Socket clientSocket;
   public User user;
-  private ObjectOutputStream out;
-  private ObjectInputStream in;
+  private DataOutputStream out;
+  private DataInputStream in;
+  /* Encodes and decodes the payload of the frames sent over the socket */
+  private final MessageCodec codec;
+  /* Reusable buffers for outgoing and incoming frames (guarded by the write and read locks) */
+  private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+  private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+  /* Prevents frames written by different threads from interleaving */
+  private final ReentrantLock writeLock = new ReentrantLock();
+  /* Prevents multiple threads from reading parts of the same frame */
+  private final ReentrantLock readLock = new ReentrantLock();
+  /* Compresses the written frames and decompresses the read ones, or null if not negotiated */
+  private volatile FrameCompressor compressor;
+  /* Whether large frames are compressed before they are written */
+  private volatile boolean compressing = false;
   /* Indicates the status of a socket connection */
-  private boolean isConnected = false;
+  private volatile boolean isConnected = false;
+  /* The number of bytes read and written (only updated while holding the read or write lock) */
+  private volatile long bytesRead = 0;
+  private volatile long bytesWritten = 0;
+  /* The number of frames read, including the ones that could not be decoded (read lock) */
+  private volatile long framesRead = 0;
 
   /**
    * Constructor that takes a client's socket as an argument.
@@ -27,7 +61,19 @@ public abstract class AbstractThread extends Thread {
    * @throws IOException If an I/O error occurs while writing stream header.
    */
   public AbstractThread(Socket clientSocket) throws IOException {
+    this(clientSocket, MessageCodec.DEFAULT);
+  }
+
+  /**
+   * Constructor that takes a client's socket and the codec used for its messages as arguments.
+   *
+   * @param clientSocket The socket connection between the server and client
+   * @param codec        The codec used to encode and decode messages
+   * @throws IOException If an I/O error occurs while creating the streams.
+   */
+  public AbstractThread(Socket clientSocket, MessageCodec codec) throws IOException {
     this.clientSocket = clientSocket;
+    this.codec = codec;
     createIOStreams();
   }
 
@@ -40,20 +86,46 @@ public abstract class AbstractThread extends Thread {
    * @throws IOException If an I/O error occurs while writing stream header.
    */
   public AbstractThread(String hostname, int port) throws IOException {
-    this.clientSocket = new Socket(hostname, port);
-    createIOStreams();
+    this(new Socket(hostname, port), MessageCodec.DEFAULT);
   }
 
   /**
-   * Instantiate the output and input streams (IN THIS ORDER -> To avoid blocking caused by
-   * instantiating the ObjectInputStream as it tries to read the object stream header from the
-   * InputStream).
+   * Instantiate the buffered output and input streams used to write and read message frames, and
+   * turn off Nagle's algorithm on the socket.
    *
-   * @throws IOException If an I/O error occurs while writing stream header.
+   * @throws IOException If an I/O error occurs while creating the streams.
+   * @see MessageFrames
    */
   private void createIOStreams() throws IOException {
-    this.out = new ObjectOutputStream(clientSocket.getOutputStream());
-    this.in = new ObjectInputStream(clientSocket.getInputStream());
+    /* Every frame or batch is flushed on its own, so it should not wait for the previous ACK */
+    clientSocket.setTcpNoDelay(true);
+    this.out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+    this.in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+  }
+
+  /**
+   * Replaces the socket connection with a new one, e.g. after the old one failed. The old socket is
+   * closed, and compression has to be negotiated again over the new one.
+   *
+   * @param socket The new socket connection
+   * @throws IOException If an I/O error occurs while creating the streams.
+   */
+  protected void replaceSocket(Socket socket) throws IOException {
+    readLock.lock();
+    writeLock.lock();
+    try {
+      try {
+        clientSocket.close();
+      } catch (IOException ignored) {
+      }
+      clientSocket = socket;
+      compressor = null;
+      compressing = false;
+      createIOStreams();
+    } finally {
+      writeLock.unlock();
+      readLock.unlock();
+    }
   }
 
   /**
@@ -68,18 +140,135 @@ public abstract class AbstractThread extends Thread {
   }
 
   /**
-   * Sends serialized message objects between the client and server.
+   * Sends encoded message objects between the client and server, as length-prefixed frames.
    *
-   * @param message Message: The message object to be serialized and sent by the client/server
+   * @param message Message: The message object to be encoded and sent by the client/server
    */
   public void sendMessage(Message message) {
+    writeLock.lock();
     try {
-      this.out.writeObject(message);
+      writeBuffer = MessageFrames.writeFrame(message, codec, writeBuffer);
+      ByteBuffer frame = compressing ? compressor.compress(writeBuffer) : writeBuffer;
+      this.out.write(frame.array(), 0, frame.limit());
       this.out.flush();
+      bytesWritten += frame.limit();
     } catch (IOException ignored) {
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Sends a frame that has already been encoded, such as a broadcast message shared by all
+   * recipients.
+   *
+   * @param frame The encoded frame to send
+   */
+  public void sendFrame(Frame frame) {
+    try {
+      writeFrame(frame);
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * Writes and flushes an encoded frame to the socket.
+   *
+   * @param frame The encoded frame to write
+   * @throws IOException If an I/O error occurs while writing to the socket
+   */
+  protected void writeFrame(Frame frame) throws IOException {
+    writeLock.lock();
+    try {
+      if (compressing) {
+        frame = compressor.compress(frame);
+      }
+      frame.writeTo(this.out);
+      this.out.flush();
+      bytesWritten += frame.length();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Writes a batch of encoded frames to the socket. The frames are gathered into one buffer, so the
+   * whole batch is written with a single write and a single flush.
+   *
+   * @param frames The encoded frames to write, in order
+   * @throws IOException If an I/O error occurs while writing to the socket
+   */
+  protected void writeFrames(List<Frame> frames) throws IOException {
+    writeLock.lock();
+    try {
+      writeBuffer.clear();
+      for (Frame frame : frames) {
+        if (compressing) {
+          frame = compressor.compress(frame);
+        }
+        writeBuffer = MessageCodec.ensureRemaining(writeBuffer, frame.length());
+        frame.writeTo(writeBuffer);
+      }
+      this.out.write(writeBuffer.array(), 0, writeBuffer.position());
+      this.out.flush();
+      bytesWritten += writeBuffer.position();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of bytes of the frames read from the socket
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * @return The number of frames read from the socket, over all the connections of the handler
+   */
+  public long getFramesRead() {
+    return framesRead;
+  }
+
+  /**
+   * @return The number of bytes of the frames written to the socket
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * @return The codec used to encode and decode the messages of this connection
+   */
+  protected MessageCodec getCodec() {
+    return codec;
+  }
+
+  /**
+   * Accepts compressed frames from the other side, e.g. after asking the server for compression.
+   */
+  protected void acceptCompression() {
+    if (compressor == null) {
+      compressor = new FrameCompressor();
     }
   }
 
+  /**
+   * Accepts compressed frames from the other side, and compresses the large frames written to it.
+   */
+  protected void enableCompression() {
+    acceptCompression();
+    compressing = true;
+  }
+
+  /**
+   * @return True if large frames are compressed before they are written
+   */
+  public boolean isCompressionEnabled() {
+    return compressing;
+  }
+
   /**
    * Sets the user object containing the connected client's information, such as their username and
    * IP Address.
@@ -90,15 +279,39 @@ public abstract class AbstractThread extends Thread {
     this.user = user;
   }
 
+  /**
+   * @return The user object containing the connected client's information
+   */
+  public User getUser() {
+    return user;
+  }
+
   /**
    * Read and return a message object from the input stream
    *
    * @return The message received
-   * @throws IOException            Input/Output related exceptions
-   * @throws ClassNotFoundException WHen the class of a serialized object cannot be found.
+   * @throws MalformedMessageException If a complete frame was received, but it could not be decoded
+   * @throws IOException               Input/Output related exceptions
    */
-  public synchronized Message getMessage() throws IOException, ClassNotFoundException {
-    Message message = (Message) in.readObject();
+  public Message getMessage() throws IOException {
+    Message message;
+    readLock.lock();
+    try {
+      int header = in.readInt();
+      int length = MessageFrames.payloadLength(header);
+      MessageFrames.checkPayloadLength(length);
+      if (readBuffer.capacity() < length) {
+        readBuffer = ByteBuffer.allocate(Math.max(length, readBuffer.capacity() * 2));
+      }
+      in.readFully(readBuffer.array(), 0, length);
+      bytesRead += MessageFrames.HEADER_LENGTH + length;
+      framesRead++;
+      readBuffer.clear().limit(length);
+      message = codec.decode(decompress(header, readBuffer));
+    } finally {
+      readLock.unlock();
+    }
+
     if (message == null) {
       throw new NullPointerException(
           String.format("User '%s' sent null as an object", this.user.getUsername())
@@ -107,6 +320,24 @@ public abstract class AbstractThread extends Thread {
     return message;
   }
 
+  /**
+   * Decompresses the payload of a frame if its header marks it as compressed.
+   *
+   * @param header  The header of the frame
+   * @param payload The payload of the frame
+   * @return The original payload
+   * @throws MalformedMessageException If the payload could not be decompressed, or compression
+   *                                   was not negotiated
+   */
+  private ByteBuffer decompress(int header, ByteBuffer payload) throws MalformedMessageException {
+    if (!MessageFrames.isCompressed(header)) {
+      return payload;
+    } else if (compressor == null) {
+      throw new MalformedMessageException("Received a compressed frame without negotiating it");
+    }
+    return compressor.inflate(payload);
+  }
+
   /**
    * @return True if the socket connection is still alive, otherwise false.
    */
@@ -0,0 +1,274 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import utils.Message.MessageType;
+
+/**
+ * A compact binary codec for message objects.
+ * <p>
+ * PAYLOAD FORMAT =>
+ * <p>
+ * TYPE: 1 byte, the ordinal of the {@link MessageType} in the lower 5 bits. The upper 3 bits are
+ * set if the sender (0x80) or the receiver (0x40) is sent as a user id, or if the message carries
+ * the stamp of a server (0x20).
+ * <p>
+ * STAMP: only if the message is stamped, a varlong holding the sequence number followed by 8 bytes
+ * holding the receive time in nanoseconds since the epoch.
+ * <p>
+ * SENDER, RECEIVER, BODY: each a varint followed by that many UTF-8 bytes. The varint holds the
+ * length of the string plus one, so that 0 can represent a null string. A sender or receiver that
+ * is sent as a user id is a single varint holding the id instead.
+ * <p>
+ * Strings are encoded straight into the destination buffer, so encoding a message does not
+ * allocate anything once the buffer is large enough. New message types must only be appended to
+ * the end of {@link MessageType}, since the ordinal is part of the wire format.
+ *
+ * @author Group4
+ */
+public final class BinaryMessageCodec implements MessageCodec {
+
+  private static final MessageType[] TYPES = MessageType.values();
+  /* The bits of the type byte that mark a sender or receiver sent as a user id, and a stamp */
+  private static final int SENDER_ID = 0x80;
+  private static final int RECEIVER_ID = 0x40;
+  private static final int STAMPED = 0x20;
+  private static final int TYPE_MASK = 0x1F;
+
+  @Override
+  public ByteBuffer encode(Message message, ByteBuffer buffer) {
+    int senderId = message.getSenderId();
+    int receiverId = message.getReceiverId();
+    int senderLength = utf8Length(message.getSender());
+    int receiverLength = utf8Length(message.getReceiver());
+    int bodyLength = utf8Length(message.getBody());
+    long sequence = message.getSequence();
+    int required = 1 + sizeOf(bodyLength)
+        + (sequence == Message.NO_SEQUENCE ? 0 : 10 + Long.BYTES)
+        + (senderId == Message.NO_ID ? sizeOf(senderLength) : 5)
+        + (receiverId == Message.NO_ID ? sizeOf(receiverLength) : 5);
+
+    buffer = MessageCodec.ensureRemaining(buffer, required);
+    int typeCode = message.getType().ordinal();
+    if (senderId != Message.NO_ID) {
+      typeCode |= SENDER_ID;
+    }
+    if (receiverId != Message.NO_ID) {
+      typeCode |= RECEIVER_ID;
+    }
+    if (sequence != Message.NO_SEQUENCE) {
+      typeCode |= STAMPED;
+    }
+    buffer.put((byte) typeCode);
+    if (sequence != Message.NO_SEQUENCE) {
+      writeVarLong(buffer, sequence);
+      buffer.putLong(message.getTimestamp());
+    }
+    if (senderId == Message.NO_ID) {
+      writeString(buffer, message.getSender(), senderLength);
+    } else {
+      writeVarInt(buffer, senderId);
+    }
+    if (receiverId == Message.NO_ID) {
+      writeString(buffer, message.getReceiver(), receiverLength);
+    } else {
+      writeVarInt(buffer, receiverId);
+    }
+    writeString(buffer, message.getBody(), bodyLength);
+    return buffer;
+  }
+
+  @Override
+  public Message decode(ByteBuffer payload) throws MalformedMessageException {
+    if (!payload.hasRemaining()) {
+      throw new MalformedMessageException("Empty message payload");
+    }
+
+    int flags = payload.get() & 0xFF;
+    int typeCode = flags & TYPE_MASK;
+    if (typeCode >= TYPES.length) {
+      throw new MalformedMessageException("Unknown message type: " + typeCode);
+    }
+
+    long sequence = Message.NO_SEQUENCE;
+    long timestamp = 0;
+    if ((flags & STAMPED) != 0) {
+      sequence = readVarLong(payload);
+      if (payload.remaining() < Long.BYTES) {
+        throw new MalformedMessageException("Truncated message stamp");
+      }
+      timestamp = payload.getLong();
+    }
+    int senderId = (flags & SENDER_ID) != 0 ? readVarInt(payload) : Message.NO_ID;
+    String sender = senderId == Message.NO_ID ? readString(payload) : null;
+    int receiverId = (flags & RECEIVER_ID) != 0 ? readVarInt(payload) : Message.NO_ID;
+    String receiver = receiverId == Message.NO_ID ? readString(payload) : null;
+    String body = readString(payload);
+    if (payload.hasRemaining()) {
+      throw new MalformedMessageException("Unexpected bytes after the message body");
+    }
+    return new Message(TYPES[typeCode], sender, receiver, body, senderId, receiverId, sequence,
+        timestamp);
+  }
+
+  /**
+   * Writes a varint (7 bits per byte, least significant group first).
+   */
+  static void writeVarInt(ByteBuffer buffer, int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  /**
+   * Reads a non-negative varint written by {@link #writeVarInt(ByteBuffer, int)}.
+   */
+  static int readVarInt(ByteBuffer buffer) throws MalformedMessageException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (!buffer.hasRemaining()) {
+        throw new MalformedMessageException("Truncated varint");
+      }
+      byte b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          throw new MalformedMessageException("Negative varint");
+        }
+        return value;
+      }
+    }
+    throw new MalformedMessageException("Varint is too long");
+  }
+
+  /**
+   * Writes a varlong, like {@link #writeVarInt(ByteBuffer, int)} (at most 10 bytes).
+   */
+  static void writeVarLong(ByteBuffer buffer, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  /**
+   * Reads a non-negative varlong written by {@link #writeVarLong(ByteBuffer, long)}.
+   */
+  static long readVarLong(ByteBuffer buffer) throws MalformedMessageException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!buffer.hasRemaining()) {
+        throw new MalformedMessageException("Truncated varlong");
+      }
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          throw new MalformedMessageException("Negative varlong");
+        }
+        return value;
+      }
+    }
+    throw new MalformedMessageException("Varlong is too long");
+  }
+
+  /**
+   * @return The number of bytes needed to encode a string of the given UTF-8 length (or -1 for
+   * null), including its varint length prefix
+   */
+  private static int sizeOf(int utf8Length) {
+    int value = utf8Length + 1;
+    int size = 1;
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size + Math.max(utf8Length, 0);
+  }
+
+  /**
+   * @return The number of bytes of the UTF-8 encoding of a string, or -1 if the string is null
+   */
+  private static int utf8Length(String value) {
+    if (value == null) {
+      return -1;
+    }
+
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Writes the varint length prefix and UTF-8 bytes of a string.
+   */
+  private static void writeString(ByteBuffer buffer, String value, int utf8Length) {
+    writeVarInt(buffer, utf8Length + 1);
+    if (value == null) {
+      return;
+    }
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        buffer.put((byte) c);
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xC0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer.put((byte) (0xF0 | (codePoint >> 18)));
+        buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+      } else {
+        /* Unpaired surrogates are encoded as is, the decoder replaces them with '?' */
+        buffer.put((byte) (0xE0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+
+  /**
+   * Reads a string written by {@link #writeString(ByteBuffer, String, int)}.
+   */
+  private static String readString(ByteBuffer buffer) throws MalformedMessageException {
+    int length = readVarInt(buffer) - 1;
+    if (length < 0) {
+      return null;
+    }
+    if (length > buffer.remaining()) {
+      throw new MalformedMessageException("String length exceeds the message payload");
+    }
+
+    String value;
+    if (buffer.hasArray()) {
+      value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+          StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      value = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,172 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import utils.Message.MessageType;
+
+/**
+ * An immutable, already encoded message frame (header and payload).
+ * <p>
+ * A frame is encoded once and can then be written to any number of connections, which is what
+ * makes broadcasting cheap: the cost of encoding a message no longer grows with the number of
+ * recipients. The same holds for its compressed form, which is cached in the frame once a
+ * {@link FrameCompressor} produced it.
+ *
+ * @author Group4
+ */
+public final class Frame {
+
+  private final MessageType type;
+  private final byte[] bytes;
+  /* The stamp of the encoded message, see Message#getSequence() */
+  private final long sequence;
+  private final long timestamp;
+  /* The number of frames in the bytes, more than one if several frames were wrapped */
+  private final int count;
+  /* Whether the bytes are a single uncompressed frame, which can be compressed */
+  private final boolean compressible;
+  /* The compressed form of the frame (or the frame itself if it does not compress), or null */
+  private volatile Frame compressed;
+
+  /**
+   * Constructor
+   *
+   * @param type         The type of the encoded message
+   * @param bytes        The bytes of the frame, which must not be modified afterwards
+   * @param count        The number of frames in the bytes
+   * @param compressible Whether the bytes are a single uncompressed frame
+   */
+  private Frame(MessageType type, byte[] bytes, int count, boolean compressible) {
+    this(type, bytes, count, compressible, Message.NO_SEQUENCE, 0);
+  }
+
+  private Frame(MessageType type, byte[] bytes, int count, boolean compressible, long sequence,
+      long timestamp) {
+    this.type = type;
+    this.bytes = bytes;
+    this.count = count;
+    this.compressible = compressible;
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Encodes a message into a frame.
+   *
+   * @param message The message to encode
+   * @param codec   The codec used to encode the payload
+   * @return The encoded frame
+   * @throws IOException If the message could not be encoded
+   */
+  public static Frame encode(Message message, MessageCodec codec) throws IOException {
+    return new Frame(message.getType(), MessageFrames.encode(message, codec), 1, true,
+        message.getSequence(), message.getTimestamp());
+  }
+
+  /**
+   * Wraps bytes that have already been encoded, such as several consecutive frames copied out of a
+   * buffer of recent messages. Writing the result writes all of those frames at once. Wrapped bytes
+   * are never compressed.
+   *
+   * @param type  The type of the encoded messages
+   * @param bytes The encoded bytes, which must not be modified afterwards
+   * @param count The number of frames in the bytes
+   * @return The frame
+   */
+  public static Frame wrap(MessageType type, byte[] bytes, int count) {
+    return new Frame(type, bytes, count, false);
+  }
+
+  /**
+   * @return The type of the encoded message
+   */
+  public MessageType getType() {
+    return type;
+  }
+
+  /**
+   * @return The sequence number of the encoded message, or {@link Message#NO_SEQUENCE} if it was
+   * not stamped, or the frame wraps several messages
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @return The time the server received the encoded message, in nanoseconds since the epoch, or
+   * 0 if it was not stamped
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return The number of frames in the bytes, which the other side reads one by one
+   */
+  public int count() {
+    return count;
+  }
+
+  /**
+   * @return The number of bytes of the frame, including its header
+   */
+  public int length() {
+    return bytes.length;
+  }
+
+  /**
+   * @return A new read-only buffer over the bytes of the frame, which does not copy them
+   */
+  public ByteBuffer asByteBuffer() {
+    return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+  }
+
+  /**
+   * @return True if the frame is a single uncompressed frame
+   */
+  boolean isCompressible() {
+    return compressible;
+  }
+
+  /**
+   * @return The cached compressed form of the frame, or null if it was not compressed yet
+   */
+  Frame getCompressed() {
+    return compressed;
+  }
+
+  /**
+   * @param compressed The compressed form of the frame, or the frame itself if it does not
+   *                   compress
+   */
+  void setCompressed(Frame compressed) {
+    this.compressed = compressed;
+  }
+
+  /**
+   * @return The bytes of the frame, which must not be modified
+   */
+  byte[] bytes() {
+    return bytes;
+  }
+
+  /**
+   * Copies the bytes of the frame into a buffer.
+   *
+   * @param buffer The buffer to copy into, which must have {@link #length()} bytes remaining
+   */
+  public void writeTo(ByteBuffer buffer) {
+    buffer.put(bytes);
+  }
+
+  /**
+   * Writes the bytes of the frame to an output stream.
+   *
+   * @param out The stream to write to
+   * @throws IOException If an I/O error occurs while writing
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(bytes);
+  }
+}
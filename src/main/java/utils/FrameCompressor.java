@@ -0,0 +1,158 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the frames of a single connection with deflate.
+ * <p>
+ * Compression is negotiated in the registration: a client that supports it sends
+ * {@link #NAME} as the receiver of its {@link Message.MessageType#CONNECTION} request, and a server
+ * that accepts it answers with {@link #NAME} as the sender of its response. From then on, either
+ * side may send a frame whose payload is at least {@link #THRESHOLD} bytes long compressed, if that
+ * makes it smaller. A compressed frame has the {@link MessageFrames#COMPRESSED} flag set in its
+ * header, and its payload is the length of the original payload (4 bytes) followed by the raw
+ * deflate data.
+ * <p>
+ * Every connection owns one compressor, which reuses its {@link Deflater} and {@link Inflater}
+ * for all of its frames. The compressed form of a shared {@link Frame} is cached in the frame, so
+ * a broadcast is compressed once, by the first recipient's writer, and the other recipients send
+ * the same bytes. A compressor is not thread-safe: frames must be compressed by one thread at a
+ * time, and decompressed by one thread at a time.
+ *
+ * @author Group4
+ */
+public final class FrameCompressor {
+
+  /* The name of the compression in the registration messages */
+  public static final String NAME = "deflate";
+  /* The smallest payload that is compressed (0 turns compression off) */
+  public static final int THRESHOLD = Integer.getInteger("chat.compression.threshold", 1024);
+  /* Whether this side offers and accepts compression */
+  public static final boolean ENABLED = THRESHOLD > 0;
+  /* The bytes before the deflate data: the frame header and the length of the original payload */
+  private static final int PREFIX_LENGTH = MessageFrames.HEADER_LENGTH + 4;
+
+  /* Frames are compressed by the writers of the connections, so speed matters more than size */
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+  private final Inflater inflater = new Inflater(true);
+  /* Reusable buffers for the compressed and the decompressed bytes */
+  private byte[] deflated = new byte[1024];
+  private ByteBuffer inflated = ByteBuffer.allocate(1024);
+
+  /**
+   * Returns the compressed form of a frame, which is compressed once and then shared by every
+   * connection that sends the frame.
+   *
+   * @param frame The frame to send
+   * @return The compressed frame, or the frame itself if it is too small or does not compress
+   */
+  public Frame compress(Frame frame) {
+    if (!frame.isCompressible() || frame.length() - MessageFrames.HEADER_LENGTH < THRESHOLD) {
+      return frame;
+    }
+
+    Frame compressed = frame.getCompressed();
+    if (compressed == null) {
+      int length = deflate(frame.bytes(), frame.length());
+      compressed = length < 0 ? frame
+          : Frame.wrap(frame.getType(), Arrays.copyOf(deflated, length), 1);
+      frame.setCompressed(compressed);
+    }
+    return compressed;
+  }
+
+  /**
+   * Compresses an encoded frame held in a buffer, such as a message sent by a client.
+   *
+   * @param frame The frame, from position 0 to its limit, backed by an array
+   * @return A buffer with the compressed frame, which is reused by the next call, or the given
+   * buffer if the frame is too small or does not compress
+   */
+  public ByteBuffer compress(ByteBuffer frame) {
+    if (frame.limit() - MessageFrames.HEADER_LENGTH < THRESHOLD) {
+      return frame;
+    }
+    int length = deflate(frame.array(), frame.limit());
+    return length < 0 ? frame : ByteBuffer.wrap(deflated, 0, length);
+  }
+
+  /**
+   * Decompresses the payload of a compressed frame.
+   *
+   * @param payload The payload of the frame, backed by an array, which is consumed
+   * @return A buffer with the original payload, which is reused by the next call
+   * @throws MalformedMessageException If the payload could not be decompressed
+   */
+  public ByteBuffer inflate(ByteBuffer payload) throws MalformedMessageException {
+    if (payload.remaining() < 4) {
+      throw new MalformedMessageException("Compressed payload without a length");
+    }
+    int length = payload.getInt();
+    if (length < 0 || length > MessageFrames.MAX_PAYLOAD_LENGTH) {
+      throw new MalformedMessageException("Invalid decompressed length: " + length);
+    }
+    if (inflated.capacity() < length) {
+      inflated = ByteBuffer.allocate(Math.max(length, inflated.capacity() * 2));
+    }
+
+    inflater.reset();
+    inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(),
+        payload.remaining());
+    payload.position(payload.limit());
+    int read = 0;
+    try {
+      while (read < length && !inflater.finished()) {
+        int count = inflater.inflate(inflated.array(), read, length - read);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        read += count;
+      }
+    } catch (DataFormatException e) {
+      throw new MalformedMessageException("Failed to decompress a frame", e);
+    }
+    if (read != length) {
+      throw new MalformedMessageException(
+          String.format("Decompressed %d bytes instead of %d", read, length));
+    }
+
+    inflated.clear().limit(length);
+    return inflated;
+  }
+
+  /**
+   * Compresses the payload of a frame into {@link #deflated}, as a complete compressed frame.
+   *
+   * @param frame  The bytes of the frame, starting with its header
+   * @param length The length of the frame
+   * @return The length of the compressed frame, or -1 if it would not be smaller than the frame
+   */
+  private int deflate(byte[] frame, int length) {
+    if (length <= PREFIX_LENGTH) {
+      return -1;
+    }
+    if (deflated.length < length) {
+      deflated = new byte[length];
+    }
+
+    deflater.reset();
+    deflater.setInput(frame, MessageFrames.HEADER_LENGTH, length - MessageFrames.HEADER_LENGTH);
+    deflater.finish();
+    int written = PREFIX_LENGTH;
+    while (!deflater.finished()) {
+      if (written == length) {
+        return -1;
+      }
+      written += deflater.deflate(deflated, written, length - written);
+    }
+
+    ByteBuffer prefix = ByteBuffer.wrap(deflated);
+    prefix.putInt(MessageFrames.COMPRESSED | (written - MessageFrames.HEADER_LENGTH));
+    prefix.putInt(length - MessageFrames.HEADER_LENGTH);
+    return written;
+  }
+}
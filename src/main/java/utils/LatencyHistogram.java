@@ -0,0 +1,128 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of latencies in nanoseconds, with logarithmic buckets.
+ * <p>
+ * Every power of two is split into 32 buckets, so a recorded value is off by at most about 3% while
+ * the whole range of positive longs fits into a fixed array of counters. Recording a value is a
+ * single atomic increment, so many threads can record into the same histogram without locking.
+ *
+ * @author Group4
+ */
+public final class LatencyHistogram {
+
+  /* The number of bits of a value that select its bucket within a power of two */
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder count = new LongAdder();
+
+  /**
+   * Records a single latency.
+   *
+   * @param nanos The latency in nanoseconds, negative values are recorded as 0
+   */
+  public void record(long nanos) {
+    buckets.incrementAndGet(bucketOf(Math.max(0, nanos)));
+    count.increment();
+  }
+
+  /**
+   * @return The number of recorded latencies
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Returns the latency below which the given percentage of the recorded latencies fall.
+   *
+   * @param percentile The percentile to look up, between 0 and 100 (e.g. 99.9)
+   * @return The latency in nanoseconds, or 0 if nothing has been recorded
+   */
+  public long getPercentile(double percentile) {
+    long[] counts = new long[BUCKET_COUNT];
+    addCountsTo(counts);
+    return percentileOf(counts, percentile);
+  }
+
+  /**
+   * Adds the number of latencies recorded in each bucket to an array of counts, e.g. to compute the
+   * percentiles of several histograms together.
+   *
+   * @param counts The counts, {@link #BUCKET_COUNT} long
+   */
+  void addCountsTo(long[] counts) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] += buckets.get(i);
+    }
+  }
+
+  /**
+   * @param counts     The number of latencies in each bucket
+   * @param percentile The percentile to look up, between 0 and 100
+   * @return The latency in nanoseconds, or 0 if the counts are all 0
+   * @see #getPercentile(double)
+   */
+  static long percentileOf(long[] counts, double percentile) {
+    long total = 0;
+    for (long count : counts) {
+      total += count;
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return highestValueOf(i);
+      }
+    }
+    return highestValueOf(BUCKET_COUNT - 1);
+  }
+
+  /**
+   * Discards all the recorded latencies. Latencies recorded at the same time may or may not be
+   * kept.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      buckets.set(i, 0);
+    }
+    count.reset();
+  }
+
+  /**
+   * @param value A non-negative value
+   * @return The index of the bucket that counts the value
+   */
+  private static int bucketOf(long value) {
+    int highestBit = 63 - Long.numberOfLeadingZeros(value);
+    if (highestBit < SUB_BUCKET_BITS) {
+      return (int) value;
+    }
+    int shift = highestBit - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) | (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+  }
+
+  /**
+   * @param bucket The index of a bucket
+   * @return The highest value counted by the bucket
+   */
+  private static long highestValueOf(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT) {
+      return bucket;
+    }
+    int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+    long lowest = (long) ((bucket & (SUB_BUCKET_COUNT - 1)) | SUB_BUCKET_COUNT) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
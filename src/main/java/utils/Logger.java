@@ -1,20 +1,288 @@
 package utils;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
- * A simple logger used to log formatted messages to the console.
+ * An asynchronous logger used to log formatted messages to the console or to a rotating file.
+ * <p>
+ * Logging a message only creates a small record and adds it to a bounded queue, so the calling
+ * thread never formats a message or waits for the output stream. A background thread formats the
+ * queued records and writes them in batches. If the queue is full, the record is dropped and
+ * counted instead of blocking the caller, and the writer reports the number of dropped records.
+ * <p>
+ * The logger is configured with system properties:
+ * <p>
+ * chat.log.level: the lowest level that is logged, debug / info (default) / warn / error / off.
+ * Per-connection messages are logged at the info level, so warn turns them off under load.
+ * <p>
+ * chat.log.file: the file to log to instead of the console. Once it reaches chat.log.maxBytes
+ * (default 10 MB) it is renamed to FILE.1 (older files to FILE.2 and so on) and a new file is
+ * started. Up to chat.log.files (default 5) rotated files are kept.
+ * <p>
+ * chat.log.queue: the number of records that can wait for the writer (default 8192).
  *
  * @author Group4
  */
 public class Logger {
 
   /**
-   * Log messages to the console
+   * An enumeration of the levels of log messages, from the least to the most severe.
+   */
+  public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    /* Only used to turn off logging */
+    OFF
+  }
+
+  /* The maximum number of records the writer formats and writes at once */
+  private static final int MAX_BATCH_SIZE = 256;
+
+  private static final Level LEVEL = levelProperty("chat.log.level", Level.INFO);
+  private static final String FILE = System.getProperty("chat.log.file", "");
+  private static final long MAX_FILE_BYTES = Long.getLong("chat.log.maxBytes", 10L * 1024 * 1024);
+  private static final int MAX_FILES = Integer.getInteger("chat.log.files", 5);
+  private static final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(
+      Math.max(1, Integer.getInteger("chat.log.queue", 8192)));
+
+  /* The number of records dropped because the queue was full */
+  private static final LongAdder dropped = new LongAdder();
+  /* The number of dropped records that have already been reported */
+  private static long reportedDropped = 0;
+  /* Held while records are written, by the writer thread or by the shutdown hook */
+  private static final ReentrantLock writeLock = new ReentrantLock();
+  private static final StringBuilder text = new StringBuilder(16 * 1024);
+  private static OutputStream out;
+  /* Indicates that the messages are written to the log file rather than the console */
+  private static boolean toFile = false;
+  private static long fileBytes = 0;
+
+  static {
+    openOutput();
+    Thread writer = new Thread(Logger::writeRecords, "logger");
+    writer.setDaemon(true);
+    writer.start();
+    /* Write the records that are still queued when the program exits */
+    Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush, "logger-flush"));
+  }
+
+  /**
+   * Reads a level system property.
+   *
+   * @param name         The name of the property
+   * @param defaultValue The level used when the property is missing or not a level
+   * @return The value of the property
+   */
+  private static Level levelProperty(String name, Level defaultValue) {
+    try {
+      return Level.valueOf(System.getProperty(name, defaultValue.name()).toUpperCase());
+    } catch (IllegalArgumentException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * A log message that has not been formatted yet.
+   */
+  private static final class Record {
+
+    final long time;
+    final Level level;
+    final String logType;
+    final String format;
+    final Object[] args;
+
+    Record(Level level, String logType, String format, Object[] args) {
+      this.time = System.currentTimeMillis();
+      this.level = level;
+      this.logType = logType;
+      this.format = format;
+      this.args = args;
+    }
+  }
+
+  /**
+   * Log a message
+   *
+   * @param level   The level of the message
+   * @param logType The type of log output
+   * @param log     The log message content
+   */
+  public static void log(Level level, String logType, String log) {
+    if (isEnabled(level)) {
+      enqueue(new Record(level, logType, log, null));
+    }
+  }
+
+  /**
+   * Log a message that is formatted by the writer thread (see {@link String#format}), so that the
+   * calling thread does not pay for the formatting. The arguments must not be modified afterwards.
    *
-   * @param logType : The type of log output
-   * @param log:    The log message content
+   * @param level   The level of the message
+   * @param logType The type of log output
+   * @param format  The format of the log message content
+   * @param args    The arguments referenced by the format
+   */
+  public static void log(Level level, String logType, String format, Object... args) {
+    if (isEnabled(level)) {
+      enqueue(new Record(level, logType, format, args));
+    }
+  }
+
+  /**
+   * @param level The level of a message
+   * @return True if messages of the level are logged, otherwise false
+   */
+  public static boolean isEnabled(Level level) {
+    return level != Level.OFF && level.compareTo(LEVEL) >= 0;
+  }
+
+  /**
+   * @return The number of messages dropped because the writer could not keep up
+   */
+  public static long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  private static void enqueue(Record record) {
+    if (!queue.offer(record)) {
+      dropped.increment();
+    }
+  }
+
+  /**
+   * Writes the queued records in batches, for as long as the program runs.
+   */
+  private static void writeRecords() {
+    List<Record> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    while (true) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+      write(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+   * Writes all the queued records right away.
+   */
+  public static void flush() {
+    List<Record> batch = new ArrayList<>();
+    queue.drainTo(batch);
+    write(batch);
+  }
+
+  /**
+   * Formats a batch of records and writes them with a single write.
+   */
+  private static void write(List<Record> batch) {
+    writeLock.lock();
+    try {
+      text.setLength(0);
+      for (Record record : batch) {
+        format(record);
+      }
+
+      long droppedCount = dropped.sum();
+      if (droppedCount > reportedDropped) {
+        format(new Record(Level.WARN, "LOGGER",
+            (droppedCount - reportedDropped) + " log messages dropped", null));
+        reportedDropped = droppedCount;
+      }
+
+      if (text.length() > 0) {
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        if (toFile && fileBytes > 0 && fileBytes + bytes.length > MAX_FILE_BYTES) {
+          rotate();
+        }
+        out.write(bytes);
+        out.flush();
+        fileBytes += bytes.length;
+      }
+    } catch (IOException e) {
+      System.err.println("[Status: LOGGER] - Failed to write log messages: " + e.getMessage());
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Appends a formatted record to the text of the current batch. Console messages keep the
+   * original format, file messages also carry their time and level.
+   */
+  private static void format(Record record) {
+    if (toFile) {
+      text.append(Instant.ofEpochMilli(record.time)).append(' ').append(record.level).append(' ');
+    }
+
+    String log = record.format;
+    if (record.args != null) {
+      try {
+        log = String.format(record.format, record.args);
+      } catch (RuntimeException e) {
+        log = record.format;
+      }
+    }
+    text.append("[Status: ").append(record.logType).append("] - ").append(log).append('\n');
+  }
+
+  /**
+   * Opens the log file, or falls back to the console if there is no log file or it can't be
+   * opened.
+   */
+  private static void openOutput() {
+    if (!FILE.isEmpty()) {
+      try {
+        Path path = Paths.get(FILE);
+        fileBytes = Files.exists(path) ? Files.size(path) : 0;
+        out = new FileOutputStream(path.toFile(), true);
+        toFile = true;
+        return;
+      } catch (IOException e) {
+        System.err.println("[Status: LOGGER] - Failed to open " + FILE + ", logging to console");
+      }
+    }
+    out = System.out;
+  }
+
+  /**
+   * Renames the full log file to FILE.1, shifting the older files up by one and deleting the
+   * oldest one, and starts a new log file.
    */
-  public static void toConsole(String logType, String log) {
-    String formattedLog = String.format("[Status: %s] - %s", logType, log);
-    System.out.println(formattedLog);
+  private static void rotate() throws IOException {
+    out.close();
+    for (int i = MAX_FILES - 1; i >= 1; i--) {
+      Path older = Paths.get(FILE + "." + i);
+      if (Files.exists(older)) {
+        Files.move(older, Paths.get(FILE + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    if (MAX_FILES > 0) {
+      Files.move(Paths.get(FILE), Paths.get(FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(Paths.get(FILE));
+    }
+    out = new FileOutputStream(FILE, true);
+    fileBytes = 0;
   }
 }
@@ -0,0 +1,35 @@
+package utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the payload of a frame cannot be decoded into a message. The frame boundaries are
+ * still intact when this exception is thrown, so the connection can carry on reading the next
+ * frame.
+ *
+ * @author Group4
+ */
+public class MalformedMessageException extends IOException {
+
+  /*  An identifier that is used to serialize/deserialize an object of a Serializable class */
+  private static final long serialVersionUID = 1337L;
+
+  /**
+   * Constructor
+   *
+   * @param message The reason the payload could not be decoded
+   */
+  public MalformedMessageException(String message) {
+    super(message);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param message The reason the payload could not be decoded
+   * @param cause   The exception that caused the failure
+   */
+  public MalformedMessageException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -7,6 +7,18 @@ import java.io.Serializable;
  * <p>
  * This class implements the Serializable interface, which allows user objects to be converted in
  * byte streams which can be transmitted over a network.
+ * <p>
+ * The server assigns every connected user a small integer id, and tells the clients which id
+ * belongs to which username in its presence messages (see {@link Presence}). A message may refer
+ * to its sender and receiver by those ids instead of their usernames, which keeps the frames small
+ * and lets the server route a message by indexing an array. When an id is set, the codecs send the
+ * id in place of the name.
+ * <p>
+ * The server stamps every message it receives from a client with a sequence number, which grows
+ * by one with every message the server receives, and the time it received the message, in
+ * nanoseconds since the epoch. The messages the server sends on behalf of the client (e.g. the chat
+ * message it delivers to a room) keep that stamp, so the stamp identifies the message from end to
+ * end. Messages that were not stamped have sequence {@link #NO_SEQUENCE}.
  *
  * @author Group4
  */
@@ -18,11 +30,13 @@ public class Message implements Serializable {
    * @author Group4
    */
   public enum MessageType {
-    /* Represents a normal chat message, this is sent to all connected clients */
+    /* Represents a normal chat message, this is sent to all members of the room in the receiver
+     * field (the lobby if it is empty) */
     CHAT,
     /* Represents a message notifying a new client of a successful login attempt */
     CONNECTION,
-    /* Represents a message notifying all clients of a disconnected client */
+    /* Represents a message notifying all clients of a disconnected client. A client sends this
+     * message to the server when it leaves, which ends its session right away */
     DISCONNECTION,
     /* Represents a message sent by the server to a client when they send an invalid or malformed
      *  message.
@@ -36,12 +50,36 @@ public class Message implements Serializable {
     /* Represents a message notifying all clients of a new client connection */
     NEW_USER,
     /**
-     * Represents a message sent by the server to a client containing a list of currently connected
-     * users.
+     * Represents a message sent by the server to a client containing a versioned snapshot of the
+     * currently connected users (see {@link Presence}). A client sends this message to the server
+     * to request a new snapshot.
      */
     USERS,
     /* Represents a private chat message sent between 2 clients, and not visible to others */
-    WHISPER
+    WHISPER,
+    /* Represents a versioned presence delta notifying all clients of a user joining the chat */
+    USER_JOINED,
+    /* Represents a versioned presence delta notifying all clients of a user leaving the chat */
+    USER_LEFT,
+    /* Represents a request to join a chat room (the body is the room name, e.g. #general), the
+     * server answers with the same message type once the client joined */
+    JOIN_ROOM,
+    /* Represents a request to leave a chat room (the body is the room name), the server answers
+     * with the same message type once the client left */
+    LEAVE_ROOM,
+    /* Represents a control message between the nodes of a server cluster, it is never sent to
+     * clients */
+    CLUSTER,
+    /* Represents a heartbeat sent to a connection that has been idle, which the other side
+     * answers with a PONG message */
+    PING,
+    /* Represents the answer to a PING message */
+    PONG,
+    /* Represents the token of a resumable session, which the server sends to a client after it
+     * registered. A client whose connection was lost sends this message (with its token and the
+     * stamp of the last message it received) instead of registering again, and the server answers
+     * with the same message type once the session was resumed */
+    RESUME
 
   }
 
@@ -49,10 +87,24 @@ public class Message implements Serializable {
   private final String sender;
   private final String receiver;
   private final String body;
+  /* The ids of the sender and the receiver, or NO_ID if they are referred to by name */
+  private final int senderId;
+  private final int receiverId;
+  /* The sequence number and the receive time (epoch nanoseconds) the server stamped on the message,
+  or NO_SEQUENCE and 0 if it was not stamped */
+  private final long sequence;
+  private final long timestamp;
   /*  An identifier that is used to serialize/deserialize an object of a Serializable class */
   private static final long serialVersionUID = 69L;
+  /* The room that every client joins when it connects, and that chat messages without a room are
+  sent to */
+  public static final String LOBBY = "#lobby";
   /* The character used to separate the elements (username) of connected clients */
   public static final String DELIMITER = ",";
+  /* The id of a sender or receiver that is referred to by name */
+  public static final int NO_ID = -1;
+  /* The sequence number of a message that was not stamped by a server */
+  public static final long NO_SEQUENCE = 0;
 
   /**
    * Constructor
@@ -63,10 +115,73 @@ public class Message implements Serializable {
    * @param body:     The content of the message, such as "Hello User1"
    */
   public Message(MessageType type, String sender, String receiver, String body) {
+    this(type, sender, receiver, body, NO_ID, NO_ID);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param type       The type of message to be sent
+   * @param sender     The client sending the message, or null if it is only known by its id
+   * @param receiver   The client receiving the message, or null if it is only known by its id
+   * @param body       The content of the message
+   * @param senderId   The id of the sender, or {@link #NO_ID}
+   * @param receiverId The id of the receiver, or {@link #NO_ID}
+   */
+  public Message(MessageType type, String sender, String receiver, String body, int senderId,
+      int receiverId) {
+    this(type, sender, receiver, body, senderId, receiverId, NO_SEQUENCE, 0);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param type       The type of message to be sent
+   * @param sender     The client sending the message, or null if it is only known by its id
+   * @param receiver   The client receiving the message, or null if it is only known by its id
+   * @param body       The content of the message
+   * @param senderId   The id of the sender, or {@link #NO_ID}
+   * @param receiverId The id of the receiver, or {@link #NO_ID}
+   * @param sequence   The sequence number stamped by the server, or {@link #NO_SEQUENCE}
+   * @param timestamp  The time the server received the message, in nanoseconds since the epoch
+   */
+  public Message(MessageType type, String sender, String receiver, String body, int senderId,
+      int receiverId, long sequence, long timestamp) {
     this.type = type;
     this.sender = sender;
     this.receiver = receiver;
     this.body = body;
+    this.senderId = senderId;
+    this.receiverId = receiverId;
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * @param senderId   The id of the sender, or {@link #NO_ID}
+   * @param receiverId The id of the receiver, or {@link #NO_ID}
+   * @return A copy of the message that refers to its sender and receiver by these ids
+   */
+  public Message withIds(int senderId, int receiverId) {
+    return new Message(type, sender, receiver, body, senderId, receiverId, sequence, timestamp);
+  }
+
+  /**
+   * @return The message without ids, e.g. to store it or send it to another server, where the
+   * ids mean nothing
+   */
+  public Message withoutIds() {
+    return senderId == NO_ID && receiverId == NO_ID ? this
+        : new Message(type, sender, receiver, body, NO_ID, NO_ID, sequence, timestamp);
+  }
+
+  /**
+   * @param sequence  The sequence number stamped by the server
+   * @param timestamp The time the server received the message, in nanoseconds since the epoch
+   * @return A copy of the message with this stamp
+   */
+  public Message withStamp(long sequence, long timestamp) {
+    return new Message(type, sender, receiver, body, senderId, receiverId, sequence, timestamp);
   }
 
   /**
@@ -91,6 +206,35 @@ public class Message implements Serializable {
     return receiver;
   }
 
+  /**
+   * @return The id of the sender, or {@link #NO_ID} if it is referred to by name
+   */
+  public int getSenderId() {
+    return senderId;
+  }
+
+  /**
+   * @return The id of the receiver, or {@link #NO_ID} if it is referred to by name
+   */
+  public int getReceiverId() {
+    return receiverId;
+  }
+
+  /**
+   * @return The sequence number the server stamped on the message, or {@link #NO_SEQUENCE}
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @return The time the server received the message, in nanoseconds since the epoch, or 0 if the
+   * message was not stamped
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
   /**
    * @return String: The content of the message.
    */
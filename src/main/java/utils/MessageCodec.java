@@ -0,0 +1,72 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes message objects into frame payloads and decodes them back again.
+ * <p>
+ * Codecs write into and read from caller supplied buffers, so a connection can reuse the same
+ * buffers for every message it sends or receives. The client and server must use the same codec,
+ * which is selected with the {@code chat.codec} system property (binary / serialized).
+ *
+ * @author Group4
+ */
+public interface MessageCodec {
+
+  /* The codec used by connections that do not specify one */
+  MessageCodec DEFAULT = forName(System.getProperty("chat.codec", "binary"));
+
+  /**
+   * Encodes a message, appending the payload at the buffer's position. If the buffer does not have
+   * enough space remaining, a larger buffer containing the buffer's contents is used instead.
+   *
+   * @param message The message to encode
+   * @param buffer  The buffer to write the payload into
+   * @return The buffer that the payload was written into, positioned after the payload
+   * @throws IOException If the message could not be encoded
+   */
+  ByteBuffer encode(Message message, ByteBuffer buffer) throws IOException;
+
+  /**
+   * Decodes a message from the bytes between the buffer's position and limit. The buffer is
+   * positioned at its limit afterwards.
+   *
+   * @param payload The buffer containing the payload
+   * @return The decoded message, which may be null if the peer sent a null object
+   * @throws MalformedMessageException If the payload is not a valid message
+   */
+  Message decode(ByteBuffer payload) throws MalformedMessageException;
+
+  /**
+   * Looks up a codec by name.
+   *
+   * @param name The name of the codec: binary or serialized
+   * @return The codec, or the binary codec if the name is unknown
+   */
+  static MessageCodec forName(String name) {
+    if ("serialized".equalsIgnoreCase(name)) {
+      return new SerializedMessageCodec();
+    }
+    return new BinaryMessageCodec();
+  }
+
+  /**
+   * Makes sure a buffer has at least the given number of bytes remaining.
+   *
+   * @param buffer   The buffer to check
+   * @param required The number of bytes that will be written into the buffer
+   * @return The buffer itself if it is large enough, otherwise a larger copy of it
+   */
+  static ByteBuffer ensureRemaining(ByteBuffer buffer, int required) {
+    if (buffer.remaining() >= required) {
+      return buffer;
+    }
+
+    int capacity = Math.max(buffer.capacity() * 2, buffer.position() + required);
+    ByteBuffer larger = ByteBuffer.allocate(capacity);
+    buffer.flip();
+    larger.put(buffer);
+    return larger;
+  }
+}
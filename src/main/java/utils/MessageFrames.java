@@ -0,0 +1,97 @@
+package utils;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts message objects to and from the frames that are sent over a socket connection.
+ * <p>
+ * Every frame starts with a 4 byte (big-endian) header containing the length of the payload that
+ * follows it. Framing the messages allows a reader to know exactly how many bytes make up the next
+ * message, which is required by the non-blocking server engine, since it can only decode a message
+ * once all of its bytes have arrived. The payload itself is produced by a {@link MessageCodec}.
+ * <p>
+ * The length of a payload never uses the upper bits of the header, so a connection that negotiated
+ * compression marks its compressed frames with the {@link #COMPRESSED} bit (see
+ * {@link FrameCompressor}).
+ *
+ * @author Group4
+ */
+public final class MessageFrames {
+
+  /* The number of bytes used by the length header of a frame */
+  public static final int HEADER_LENGTH = 4;
+  /* The largest payload that will be accepted from a peer */
+  public static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+  /* The bit of the header that marks a compressed payload */
+  public static final int COMPRESSED = 1 << 30;
+
+  private MessageFrames() {
+  }
+
+  /**
+   * Encode a message into a complete frame (header and payload).
+   *
+   * @param message The message to encode
+   * @param codec   The codec used to encode the payload
+   * @return The bytes of the frame
+   * @throws IOException If the message could not be encoded
+   */
+  public static byte[] encode(Message message, MessageCodec codec) throws IOException {
+    ByteBuffer frame = writeFrame(message, codec, ByteBuffer.allocate(256));
+    byte[] bytes = new byte[frame.remaining()];
+    frame.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Encode a message into a complete frame, reusing the given buffer when it is large enough.
+   *
+   * @param message The message to encode
+   * @param codec   The codec used to encode the payload
+   * @param buffer  The buffer to reuse, its contents are discarded
+   * @return The buffer containing the frame, flipped so that it is ready to be written
+   * @throws IOException If the message could not be encoded
+   */
+  public static ByteBuffer writeFrame(Message message, MessageCodec codec, ByteBuffer buffer)
+      throws IOException {
+    buffer.clear();
+    buffer.position(HEADER_LENGTH);
+    buffer = codec.encode(message, buffer);
+
+    int length = buffer.position() - HEADER_LENGTH;
+    checkPayloadLength(length);
+    buffer.putInt(0, length);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * @param header The header of a frame
+   * @return True if the payload of the frame is compressed
+   */
+  public static boolean isCompressed(int header) {
+    return (header & COMPRESSED) != 0;
+  }
+
+  /**
+   * @param header The header of a frame
+   * @return The length of the payload that follows the header
+   */
+  public static int payloadLength(int header) {
+    return header & ~COMPRESSED;
+  }
+
+  /**
+   * Validates a payload length read from a frame header.
+   *
+   * @param length The payload length
+   * @throws StreamCorruptedException If the length is negative or larger than allowed
+   */
+  public static void checkPayloadLength(int length) throws StreamCorruptedException {
+    if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+      throw new StreamCorruptedException("Invalid frame length: " + length);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Formats and parses the bodies of versioned presence messages.
+ * <p>
+ * The server keeps a presence version that is incremented every time a user joins or leaves.
+ * Every presence message carries the version it brings the client up to:
+ * <p>
+ * USERS: "[VERSION]:[ID1]=[USER1],[ID2]=[USER2],..." A full snapshot of the connected users.
+ * <p>
+ * USER_JOINED / USER_LEFT: "[VERSION]:[ID]=[USERNAME]" A delta that applies on top of the previous
+ * version.
+ * <p>
+ * The ids are the ones the server assigned to the users (see {@link Message#getSenderId()}), so
+ * the presence messages double as the client's dictionary from ids to usernames. An id is only
+ * reused by the server long after its user left.
+ * <p>
+ * A client that receives a delta whose version does not directly follow its own version has
+ * missed an update, and requests a new snapshot by sending a USERS message to the server.
+ *
+ * @author Group4
+ */
+public final class Presence {
+
+  /* The character separating the version from the rest of the body */
+  public static final String VERSION_SEPARATOR = ":";
+  /* The character separating the id of a user from its username */
+  public static final String ID_SEPARATOR = "=";
+
+  private Presence() {
+  }
+
+  /**
+   * Creates the entry of a user in a presence message.
+   *
+   * @param id       The id of the user
+   * @param username The username of the user
+   * @return The entry
+   */
+  public static String entry(int id, String username) {
+    return id + ID_SEPARATOR + username;
+  }
+
+  /**
+   * Creates the body of a USERS snapshot.
+   *
+   * @param version The presence version of the snapshot
+   * @param entries The entries of the connected users, see {@link #entry(int, String)}
+   * @return The body of the snapshot message
+   */
+  public static String snapshot(long version, List<String> entries) {
+    return version + VERSION_SEPARATOR + String.join(Message.DELIMITER, entries);
+  }
+
+  /**
+   * Creates the body of a USER_JOINED or USER_LEFT delta.
+   *
+   * @param version  The presence version after applying the delta
+   * @param id       The id of the user that joined or left
+   * @param username The user that joined or left
+   * @return The body of the delta message
+   */
+  public static String delta(long version, int id, String username) {
+    return version + VERSION_SEPARATOR + entry(id, username);
+  }
+
+  /**
+   * @param body The body of a presence message
+   * @return The presence version of the message
+   * @throws NumberFormatException If the body does not start with a version
+   */
+  public static long version(String body) {
+    return Long.parseLong(body.substring(0, body.indexOf(VERSION_SEPARATOR)));
+  }
+
+  /**
+   * @param body The body of a USER_JOINED or USER_LEFT delta
+   * @return The username of the delta
+   */
+  public static String username(String body) {
+    String entry = body.substring(body.indexOf(VERSION_SEPARATOR) + 1);
+    return entry.substring(entry.indexOf(ID_SEPARATOR) + 1);
+  }
+
+  /**
+   * @param body The body of a USER_JOINED or USER_LEFT delta
+   * @return The id of the user of the delta, or {@link Message#NO_ID} if it has none
+   */
+  public static int id(String body) {
+    String entry = body.substring(body.indexOf(VERSION_SEPARATOR) + 1);
+    return parseId(entry);
+  }
+
+  /**
+   * @param body The body of a USERS snapshot
+   * @return The usernames of the snapshot
+   */
+  public static List<String> usernames(String body) {
+    return new ArrayList<>(users(body).values());
+  }
+
+  /**
+   * @param body The body of a USERS snapshot
+   * @return The usernames of the snapshot by their ids, in the order of the snapshot (users
+   * without an id are left out)
+   */
+  public static Map<Integer, String> users(String body) {
+    Map<Integer, String> users = new LinkedHashMap<>();
+    String list = body.substring(body.indexOf(VERSION_SEPARATOR) + 1);
+    if (list.isEmpty()) {
+      return users;
+    }
+    for (String entry : list.split(Message.DELIMITER)) {
+      int id = parseId(entry);
+      if (id != Message.NO_ID) {
+        users.put(id, entry.substring(entry.indexOf(ID_SEPARATOR) + 1));
+      }
+    }
+    return users;
+  }
+
+  /**
+   * @return The id of an entry, or {@link Message#NO_ID} if it has none
+   */
+  private static int parseId(String entry) {
+    int separator = entry.indexOf(ID_SEPARATOR);
+    try {
+      return separator < 0 ? Message.NO_ID : Integer.parseInt(entry.substring(0, separator));
+    } catch (NumberFormatException e) {
+      return Message.NO_ID;
+    }
+  }
+}
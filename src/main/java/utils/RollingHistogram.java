@@ -0,0 +1,111 @@
+package utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent histogram of the latencies recorded in a recent window of time.
+ * <p>
+ * The window is split into a ring of slots, each a {@link LatencyHistogram} that covers an equal
+ * part of the window. Latencies are recorded into the slot of the current time, and when the time
+ * moves into a new slot, the slot is cleared, which drops the latencies recorded one window ago.
+ * Recording stays a single atomic increment, the lock is only taken by the first thread that sees
+ * that a new slot has started. The percentiles cover between the last {@code slots - 1} and
+ * {@code slots} slots, depending on how far into the current slot the time is.
+ *
+ * @author Group4
+ */
+public final class RollingHistogram {
+
+  private final LatencyHistogram[] slots;
+  private final long slotNanos;
+  /* The time of slot 0 */
+  private final long startNanos = System.nanoTime();
+  /* The number of slots that started since the start, the current slot is this modulo the length */
+  private volatile long current = 0;
+  /* Makes clearing the slots that have started a single step */
+  private final ReentrantLock rotationLock = new ReentrantLock();
+
+  /**
+   * Constructor
+   *
+   * @param window The length of the window
+   * @param unit   The unit of the window
+   * @param slots  The number of slots the window is split into
+   */
+  public RollingHistogram(long window, TimeUnit unit, int slots) {
+    if (window <= 0 || slots <= 0) {
+      throw new IllegalArgumentException("Window and slots must be positive: " + window + ", "
+          + slots);
+    }
+    this.slots = new LatencyHistogram[slots];
+    for (int i = 0; i < slots; i++) {
+      this.slots[i] = new LatencyHistogram();
+    }
+    this.slotNanos = Math.max(1, unit.toNanos(window) / slots);
+  }
+
+  /**
+   * Records a single latency.
+   *
+   * @param nanos The latency in nanoseconds, negative values are recorded as 0
+   */
+  public void record(long nanos) {
+    slots[(int) (rotate() % slots.length)].record(nanos);
+  }
+
+  /**
+   * @return The number of latencies recorded in the window
+   */
+  public long getCount() {
+    rotate();
+    long count = 0;
+    for (LatencyHistogram slot : slots) {
+      count += slot.getCount();
+    }
+    return count;
+  }
+
+  /**
+   * Returns the latency below which the given percentage of the latencies in the window fall.
+   *
+   * @param percentile The percentile to look up, between 0 and 100 (e.g. 99.9)
+   * @return The latency in nanoseconds, or 0 if nothing was recorded in the window
+   */
+  public long getPercentile(double percentile) {
+    rotate();
+    long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+    for (LatencyHistogram slot : slots) {
+      slot.addCountsTo(counts);
+    }
+    return LatencyHistogram.percentileOf(counts, percentile);
+  }
+
+  /**
+   * Clears the slots that started since the last rotation. Latencies recorded into a slot while it
+   * is cleared may or may not be kept.
+   *
+   * @return The number of the current slot
+   */
+  private long rotate() {
+    long slot = (System.nanoTime() - startNanos) / slotNanos;
+    if (slot == current) {
+      return slot;
+    }
+
+    rotationLock.lock();
+    try {
+      long last = current;
+      if (slot > last) {
+        /* After a whole window without latencies, every slot is cleared once */
+        for (long i = Math.max(last + 1, slot - slots.length + 1); i <= slot; i++) {
+          slots[(int) (i % slots.length)].reset();
+        }
+        current = slot;
+      }
+    } finally {
+      rotationLock.unlock();
+    }
+    return slot;
+  }
+}
@@ -0,0 +1,51 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The original codec, which uses Java serialization ({@link ObjectOutputStream} and
+ * {@link ObjectInputStream}) to encode message objects.
+ * <p>
+ * Every payload is a complete object stream, including the class descriptor of the message. It is
+ * kept for compatibility and as a baseline for benchmarks, the {@link BinaryMessageCodec} should be
+ * preferred.
+ *
+ * @author Group4
+ */
+public final class SerializedMessageCodec implements MessageCodec {
+
+  @Override
+  public ByteBuffer encode(Message message, ByteBuffer buffer) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(message);
+    out.flush();
+
+    buffer = MessageCodec.ensureRemaining(buffer, bytes.size());
+    buffer.put(bytes.toByteArray());
+    return buffer;
+  }
+
+  @Override
+  public Message decode(ByteBuffer payload) throws MalformedMessageException {
+    byte[] bytes = new byte[payload.remaining()];
+    payload.get(bytes);
+
+    Object object;
+    try {
+      object = new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+    } catch (IOException | ClassNotFoundException e) {
+      throw new MalformedMessageException("Failed to deserialize data to a message object", e);
+    }
+
+    if (object != null && !(object instanceof Message)) {
+      throw new MalformedMessageException("Payload does not contain a message");
+    }
+    return (Message) object;
+  }
+}
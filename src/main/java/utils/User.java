@@ -15,6 +15,8 @@ public class User implements Serializable {
 
   private final String username;
   private final InetAddress ip;
+  /* The id the server assigned to the user, or Message.NO_ID */
+  private final int id;
   /*  An identifier that is used to serialize/deserialize an object of a Serializable class */
   private static final long serialVersionUID = 420L;
 
@@ -25,8 +27,27 @@ public class User implements Serializable {
    * @param ip       The IP address of the connected client
    */
   public User(String username, InetAddress ip) {
+    this(username, ip, Message.NO_ID);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param username The username provided by the client
+   * @param ip       The IP address of the connected client
+   * @param id       The id the server assigned to the user
+   */
+  public User(String username, InetAddress ip, int id) {
     this.username = username;
     this.ip = ip;
+    this.id = id;
+  }
+
+  /**
+   * @return The id the server assigned to the user, or {@link Message#NO_ID} if it has none
+   */
+  public int getId() {
+    return id;
   }
 
   /**